@@ -0,0 +1,245 @@
+package darformula;
+
+/**
+ *
+ * The statistics of a stream of values, kept in constant memory: count, sum,
+ * minimum, maximum, mean and variance, and optionally a histogram with fixed
+ * bins. The sum is compensated (Kahan-Babuska) and the variance is updated
+ * with Welford's method, so that neither loses precision over millions of
+ * values. Two Aggregates of the same shape can be merged, which lets each
+ * thread aggregate its part of the values.
+ *
+ * NaN values are only counted, by getNaNs(). An Aggregate is not thread safe.
+ *
+ */
+
+public class Aggregate
+{
+	private long count, nans;
+	private double sum, compensation;
+	private double min=Double.POSITIVE_INFINITY, max=Double.NEGATIVE_INFINITY;
+	private double mean, squares;
+	// Histogram : null if there is none
+	private final long[] bins;
+	private final double low, high;
+	private long below, above;
+
+	/**
+	 * An Aggregate without histogram
+	 */
+
+	public Aggregate()
+	{
+		bins=null;
+		low=high=0;
+	}
+
+	/**
+	 * An Aggregate with a histogram of bins bins of the same width between
+	 * low and high; high is counted in the last bin.
+	 */
+
+	public Aggregate(double low, double high, int bins)
+	{
+		if(!(low<high) || Double.isInfinite(high-low))
+			throw new IllegalArgumentException("Invalid histogram range : "+low+" to "+high);
+		if(bins<=0)
+			throw new IllegalArgumentException("Invalid number of bins : "+bins);
+		this.bins=new long[bins];
+		this.low=low;
+		this.high=high;
+	}
+
+	/**
+	 * @return an empty Aggregate with the same histogram bins
+	 */
+
+	public Aggregate emptyCopy()
+	{
+		return bins==null?new Aggregate():new Aggregate(low, high, bins.length);
+	}
+
+	public void add(double value)
+	{
+		if(Double.isNaN(value))
+		{
+			nans++;
+			return;
+		}
+		count++;
+		addToSum(value);
+		if(value<min)
+			min=value;
+		if(value>max)
+			max=value;
+		double delta=value-mean;
+		mean+=delta/count;
+		squares+=delta*(value-mean);
+		if(bins!=null)
+		{
+			if(value<low)
+				below++;
+			else if(value>high)
+				above++;
+			else
+				bins[Math.min(bins.length-1, (int)((value-low)/(high-low)*bins.length))]++;
+		}
+	}
+
+	private void addToSum(double value)
+	{
+		double total=sum+value;
+		if(Math.abs(sum)>=Math.abs(value))
+			compensation+=(sum-total)+value;
+		else
+			compensation+=(value-total)+sum;
+		sum=total;
+	}
+
+	/**
+	 * Adds the values of other to this Aggregate
+	 *
+	 * @throws IllegalArgumentException if their histograms have different
+	 * bins
+	 */
+
+	public void merge(Aggregate other)
+	{
+		if((bins==null)!=(other.bins==null) || (bins!=null && (low!=other.low || high!=other.high || bins.length!=other.bins.length)))
+			throw new IllegalArgumentException("Aggregates with different histograms");
+		nans+=other.nans;
+		if(other.count==0)
+			return;
+		if(count==0)
+		{
+			mean=other.mean;
+			squares=other.squares;
+		}
+		else
+		{
+			// Chan et al.
+			long total=count+other.count;
+			double delta=other.mean-mean;
+			mean+=delta*other.count/total;
+			squares+=other.squares+delta*delta*((double)count*other.count/total);
+		}
+		count+=other.count;
+		addToSum(other.sum);
+		compensation+=other.compensation;
+		min=Math.min(min, other.min);
+		max=Math.max(max, other.max);
+		if(bins!=null)
+		{
+			for(int i=0;i<bins.length;i++)
+				bins[i]+=other.bins[i];
+			below+=other.below;
+			above+=other.above;
+		}
+	}
+
+	/**
+	 * @return the number of values added, except NaN
+	 */
+
+	public long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * @return the number of NaN values added
+	 */
+
+	public long getNaNs()
+	{
+		return nans;
+	}
+
+	public double getSum()
+	{
+		return sum+compensation;
+	}
+
+	/**
+	 * @return the mean, or NaN if there is no value
+	 */
+
+	public double getMean()
+	{
+		return count==0?Double.NaN:mean;
+	}
+
+	/**
+	 * @return the minimum, or NaN if there is no value
+	 */
+
+	public double getMin()
+	{
+		return count==0?Double.NaN:min;
+	}
+
+	/**
+	 * @return the maximum, or NaN if there is no value
+	 */
+
+	public double getMax()
+	{
+		return count==0?Double.NaN:max;
+	}
+
+	/**
+	 * @return the population variance, or NaN if there is no value
+	 */
+
+	public double getVariance()
+	{
+		return count==0?Double.NaN:squares/count;
+	}
+
+	/**
+	 * @return the sample variance, or NaN if there are less than 2 values
+	 */
+
+	public double getSampleVariance()
+	{
+		return count<2?Double.NaN:squares/(count-1);
+	}
+
+	public double getStandardDeviation()
+	{
+		return Math.sqrt(getVariance());
+	}
+
+	/**
+	 * @return a copy of the number of values in each bin, or null if there
+	 * is no histogram
+	 */
+
+	public long[] getHistogram()
+	{
+		return bins==null?null:bins.clone();
+	}
+
+	/**
+	 * @return the number of values lower than the first bin
+	 */
+
+	public long getBelow()
+	{
+		return below;
+	}
+
+	/**
+	 * @return the number of values higher than the last bin
+	 */
+
+	public long getAbove()
+	{
+		return above;
+	}
+
+	public String toString()
+	{
+		return count+" values, sum "+getSum()+", mean "+getMean()+", min "+getMin()+", max "+getMax()+", standard deviation "+getStandardDeviation()+(nans==0?"":", "+nans+" NaN");
+	}
+}
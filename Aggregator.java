@@ -0,0 +1,201 @@
+package darformula;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Stream;
+
+/**
+ *
+ * Aggregator evaluates a formula, compiled once, for each row of its input
+ * and adds the values to an Aggregate, without keeping them. The rows can be
+ * the columns of a Dataset, split between the threads of a ForkJoinPool, or
+ * arrays from an Iterator or a Stream; a parallel Stream is aggregated by
+ * each of its threads and the partial Aggregates are merged.
+ *
+ * The variables of the formula are read from the columns of the same name;
+ * the other variables keep the value they have in the formula when the
+ * Aggregator is created.
+ *
+ */
+
+public class Aggregator
+{
+	// Number of rows under which a task is not split anymore
+	static private final int THRESHOLD=1<<14;
+
+	private final CompactFormula formula;
+	private final Map<String, Double> values;
+	private final Aggregate empty;
+	private ForkJoinPool pool;
+
+	/**
+	 * An Aggregator without histogram
+	 */
+
+	public Aggregator(RuntimeFormula formula)
+	{
+		this(formula, new Aggregate());
+	}
+
+	/**
+	 * An Aggregator whose Aggregates have a histogram of bins bins between
+	 * low and high
+	 */
+
+	public Aggregator(RuntimeFormula formula, double low, double high, int bins)
+	{
+		this(formula, new Aggregate(low, high, bins));
+	}
+
+	private Aggregator(RuntimeFormula formula, Aggregate empty)
+	{
+		this.formula=formula.compile();
+		this.values=new HashMap<String, Double>(formula.getAllVars());
+		this.empty=empty;
+		this.pool=ForkJoinPool.commonPool();
+	}
+
+	public void setPool(ForkJoinPool pool)
+	{
+		this.pool=pool;
+	}
+
+	/**
+	 * @throws UnexpectedVariableException if a variable is neither a column
+	 * nor a variable of the formula
+	 */
+
+	public Aggregate aggregate(Dataset dataset) throws UnexpectedVariableException
+	{
+		return pool.invoke(new Task(dataset.bind(formula, values), 0, dataset.size()));
+	}
+
+	/**
+	 * @param columns the names of the values of each row
+	 * @throws UnexpectedVariableException if a variable is neither a column
+	 * nor a variable of the formula
+	 */
+
+	public Aggregate aggregate(String[] columns, Iterator<double[]> rows) throws UnexpectedVariableException
+	{
+		Rows.Partial partial=new Rows(columns).new Partial();
+		while(rows.hasNext())
+			partial.add(rows.next());
+		return partial.aggregate;
+	}
+
+	/**
+	 * @param columns the names of the values of each row
+	 * @throws UnexpectedVariableException if a variable is neither a column
+	 * nor a variable of the formula
+	 */
+
+	public Aggregate aggregate(String[] columns, Stream<double[]> rows) throws UnexpectedVariableException
+	{
+		Rows input=new Rows(columns);
+		return rows.collect(() -> input.new Partial(), Rows.Partial::add, Rows.Partial::merge).aggregate;
+	}
+
+	/**
+	 *
+	 * The position in a row of each variable of the formula, or its value
+	 */
+
+	private class Rows
+	{
+		// -1 for the variables which are not columns
+		final int[] positions;
+		final double[] constants;
+
+		Rows(String[] columns) throws UnexpectedVariableException
+		{
+			String[] variables=formula.getVariables();
+			positions=new int[variables.length];
+			constants=new double[variables.length];
+			for(int i=0;i<variables.length;i++)
+			{
+				positions[i]=-1;
+				for(int j=0;j<columns.length && positions[i]<0;j++)
+					if(columns[j].equals(variables[i]))
+						positions[i]=j;
+				if(positions[i]<0)
+				{
+					Double value=values.get(variables[i]);
+					if(value==null)
+						throw new UnexpectedVariableException("Variable : "+variables[i]);
+					constants[i]=value;
+				}
+			}
+		}
+
+		/**
+		 *
+		 * The Aggregate of the rows seen by a thread, with its frame
+		 */
+
+		class Partial
+		{
+			final Aggregate aggregate=empty.emptyCopy();
+			final double[] frame=formula.newFrame();
+
+			Partial()
+			{
+				System.arraycopy(constants, 0, frame, 0, constants.length);
+			}
+
+			void add(double[] row)
+			{
+				for(int i=0;i<positions.length;i++)
+					if(positions[i]>=0)
+						frame[i]=row[positions[i]];
+				aggregate.add(formula.calcValue(frame));
+			}
+
+			void merge(Partial other)
+			{
+				aggregate.merge(other.aggregate);
+			}
+		}
+	}
+
+	private class Task extends RecursiveTask<Aggregate>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Dataset.Input input;
+		private final int start, end;
+
+		Task(Dataset.Input input, int start, int end)
+		{
+			this.input=input;
+			this.start=start;
+			this.end=end;
+		}
+
+		protected Aggregate compute()
+		{
+			if(end-start>THRESHOLD)
+			{
+				int middle=(start+end)>>>1;
+				Task second=new Task(input, middle, end);
+				second.fork();
+				Aggregate first=new Task(input, start, middle).compute();
+				first.merge(second.join());
+				return first;
+			}
+			Aggregate aggregate=empty.emptyCopy();
+			double[] frame=input.newFrame();
+			for(int row=start;row<end;row++)
+				aggregate.add(input.calcValue(frame, row));
+			return aggregate;
+		}
+	}
+
+	public String toString()
+	{
+		return "Aggregator of "+formula;
+	}
+}
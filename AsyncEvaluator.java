@@ -0,0 +1,214 @@
+package darformula;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ *
+ * AsyncEvaluator evaluates batches of jobs, each made of a formula and the
+ * values of its variables, and returns a CompletableFuture for each job.
+ *
+ * The jobs of a batch that share a formula are parsed once: the formula is
+ * taken from a FormulaStore and its CompactFormula is evaluated by every job,
+ * in tasks of up to batchSize jobs.
+ *
+ * By default the tasks run on a virtual thread each when the JVM has them,
+ * and on the common ForkJoinPool otherwise.
+ *
+ */
+
+public class AsyncEvaluator implements AutoCloseable
+{
+	private final Executor executor;
+	private final boolean ownsExecutor;
+	private final FormulaStore store;
+	private int batchSize;
+
+	/**
+	 *
+	 * A formula to evaluate with the values of its variables
+	 */
+
+	static public class Job
+	{
+		private final String formula;
+		private final String[] expectedVariables;
+		private final Map<String, Double> variables;
+
+		public Job(String formula, String[] expectedVariables, Map<String, Double> variables)
+		{
+			this.formula=formula;
+			this.expectedVariables=expectedVariables;
+			this.variables=variables;
+		}
+
+		public String getFormula()
+		{
+			return formula;
+		}
+
+		public Map<String, Double> getVariables()
+		{
+			return variables;
+		}
+
+		public String toString()
+		{
+			return formula+" "+variables;
+		}
+	}
+
+	public AsyncEvaluator()
+	{
+		this(virtualThreadExecutor(), new FormulaStore(), true);
+	}
+
+	/**
+	 * @param executor runs the parsing and evaluation tasks; it is not shut
+	 * down by close()
+	 */
+
+	public AsyncEvaluator(Executor executor, FormulaStore store)
+	{
+		this(executor, store, false);
+	}
+
+	private AsyncEvaluator(Executor executor, FormulaStore store, boolean ownsExecutor)
+	{
+		if(executor==null)
+		{
+			executor=ForkJoinPool.commonPool();
+			ownsExecutor=false;
+		}
+		this.executor=executor;
+		this.store=store;
+		this.ownsExecutor=ownsExecutor;
+		this.batchSize=16;
+	}
+
+	/**
+	 * @return an executor starting a virtual thread per task, or null if the
+	 * JVM doesn't have virtual threads
+	 */
+
+	static ExecutorService virtualThreadExecutor()
+	{
+		try
+		{
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch(ReflectiveOperationException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * @param batchSize the number of jobs of the same formula evaluated by
+	 * one task
+	 */
+
+	public void setBatchSize(int batchSize)
+	{
+		if(batchSize<1)
+			throw new IllegalArgumentException("The batch size must be positive");
+		this.batchSize=batchSize;
+	}
+
+	public CompletableFuture<Double> evaluate(String formula, String[] expectedVariables, Map<String, Double> variables)
+	{
+		return evaluate(Arrays.asList(new Job(formula, expectedVariables, variables))).get(0);
+	}
+
+	/**
+	 * @return the futures of the values of the jobs, in the same order. A
+	 * future completes exceptionally with the exception of setFormula if the
+	 * formula is not valid, or with an UnexpectedVariableException if a
+	 * variable has no value.
+	 */
+
+	public List<CompletableFuture<Double>> evaluate(List<Job> jobs)
+	{
+		List<CompletableFuture<Double>> results=new ArrayList<CompletableFuture<Double>>(jobs.size());
+		Map<String, List<Integer>> groups=new LinkedHashMap<String, List<Integer>>();
+		for(int i=0;i<jobs.size();i++)
+		{
+			results.add(new CompletableFuture<Double>());
+			Job job=jobs.get(i);
+			String key=job.formula+"\n"+Arrays.toString(job.expectedVariables);
+			List<Integer> group=groups.get(key);
+			if(group==null)
+			{
+				group=new ArrayList<Integer>();
+				groups.put(key, group);
+			}
+			group.add(i);
+		}
+		for(List<Integer> group:groups.values())
+			submit(jobs, group, results);
+		return results;
+	}
+
+	private void submit(final List<Job> jobs, final List<Integer> group, final List<CompletableFuture<Double>> results)
+	{
+		final Job first=jobs.get(group.get(0));
+		CompletableFuture.supplyAsync(() -> store.acquire(first.formula, first.expectedVariables), executor)
+		.whenComplete((shared, exception) -> {
+			if(exception!=null)
+			{
+				Throwable cause=exception.getCause()!=null?exception.getCause():exception;
+				for(int i:group)
+					results.get(i).completeExceptionally(cause);
+				return;
+			}
+			List<CompletableFuture<Void>> tasks=new ArrayList<CompletableFuture<Void>>();
+			for(int start=0;start<group.size();start+=batchSize)
+			{
+				final List<Integer> batch=group.subList(start, Math.min(group.size(), start+batchSize));
+				tasks.add(CompletableFuture.runAsync(() -> run(shared.getFormula(), jobs, batch, results), executor));
+			}
+			CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[tasks.size()])).whenComplete((ignored, e) -> store.release(shared));
+		});
+	}
+
+	private void run(CompactFormula formula, List<Job> jobs, List<Integer> batch, List<CompletableFuture<Double>> results)
+	{
+		String[] variables=formula.getVariables();
+		double[] frame=formula.newFrame();
+		for(int i:batch)
+		{
+			try
+			{
+				Map<String, Double> values=jobs.get(i).variables;
+				for(int slot=0;slot<variables.length;slot++)
+				{
+					Double value=values.get(variables[slot]);
+					if(value==null)
+						throw new UnexpectedVariableException("Variable : "+variables[slot]);
+					frame[slot]=value;
+				}
+				results.get(i).complete(formula.calcValue(frame));
+			} catch(RuntimeException e)
+			{
+				results.get(i).completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * Shuts down the executor if it was created by this object
+	 */
+
+	public void close()
+	{
+		if(ownsExecutor)
+			((ExecutorService)executor).shutdown();
+	}
+}
@@ -0,0 +1,109 @@
+package darformula;
+
+/**
+ *
+ * A BoundFormula is a copy of a RuntimeFormula where some variables, the slot
+ * variables, are read from an array of doubles instead of the Map of the
+ * RuntimeFormula. Setting a slot is a plain array store, which makes it the
+ * fastest way to evaluate the same formula for many values.
+ *
+ * A BoundFormula is not thread-safe; use copy() to get one for each thread.
+ *
+ */
+
+public class BoundFormula
+{
+	private final RuntimeFormula formula;
+	private final String[] variables;
+	private final double[] slots;
+
+	BoundFormula(RuntimeFormula formula, String[] variables, double[] slots)
+	{
+		this.formula=formula;
+		this.variables=variables;
+		this.slots=slots;
+	}
+
+	/**
+	 * @return the slot variables, in the order of the slots
+	 */
+
+	public String[] getVariables()
+	{
+		return variables.clone();
+	}
+
+	/**
+	 * @return the index of the slot of variable, or -1 if it is not a slot
+	 * variable
+	 */
+
+	public int indexOf(String variable)
+	{
+		for(int i=0;i<variables.length;i++)
+			if(variables[i].equals(variable))
+				return i;
+		return -1;
+	}
+
+	public void set(int slot, double value)
+	{
+		slots[slot]=value;
+	}
+
+	public double get(int slot)
+	{
+		return slots[slot];
+	}
+
+	/**
+	 * @return the array read by the formula; writing in it sets the slot
+	 * variables
+	 */
+
+	public double[] slots()
+	{
+		return slots;
+	}
+
+	/**
+	 * @return the RuntimeFormula evaluated by this object, which holds the
+	 * values of the variables that are not slot variables
+	 */
+
+	public RuntimeFormula getFormula()
+	{
+		return formula;
+	}
+
+	public double calcValue() throws UnexpectedVariableException
+	{
+		return formula.calcValue();
+	}
+
+	/**
+	 * @param values the values of the slot variables, in order
+	 */
+
+	public double calcValue(double... values) throws UnexpectedVariableException
+	{
+		System.arraycopy(values, 0, slots, 0, slots.length);
+		return formula.calcValue();
+	}
+
+	/**
+	 * @return an independent BoundFormula with the same formula and values
+	 */
+
+	public BoundFormula copy()
+	{
+		BoundFormula copy=formula.bind(variables);
+		System.arraycopy(slots, 0, copy.slots, 0, slots.length);
+		return copy;
+	}
+
+	public String toString()
+	{
+		return formula.formulaToString();
+	}
+}
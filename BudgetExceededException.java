@@ -0,0 +1,30 @@
+package darformula;
+
+/**
+ *
+ * Thrown by RuntimeFormula.calcValue when the evaluation would take more
+ * operations or time than the budget of the formula, see
+ * RuntimeFormula.setEvaluationBudget
+ *
+ */
+
+public class BudgetExceededException extends RuntimeException {
+
+	private static final long serialVersionUID = 60L;
+	public BudgetExceededException() {
+		super();
+	}
+
+	public BudgetExceededException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	public BudgetExceededException(String message) {
+		super(message);
+	}
+
+	public BudgetExceededException(Throwable cause) {
+		super(cause);
+	}
+	
+}
@@ -0,0 +1,624 @@
+package darformula;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * CompactFormula stores a formula as parallel arrays of primitives, one entry
+ * per node, instead of a graph of FormulaElements: an opcode, the indices of
+ * the left and right children, and a value holding a constant or a slot. The
+ * nodes are in postorder, so the children of a node always come before it and
+ * the formula is evaluated in a single pass over the arrays.
+ *
+ * Variables are read from the slots of a frame, an array given to calcValue
+ * which also holds the value of every node. The frame belongs to the caller,
+ * so a CompactFormula is immutable and can be shared by any number of
+ * threads, each with its own frame (see newFrame()).
+ *
+ * The loops of sum and mult are stored as a COUNTER node, followed by the
+ * nodes of the operand, followed by the SUM or MULT node. Each loop has its
+ * own slot for the counting variable, after those of the variables of the
+ * formula.
+ *
+ */
+
+public class CompactFormula
+{
+	static final byte CONSTANT=0, VARIABLE=1, RANDOM=2, COUNTER=3;
+	static final byte NEGATE=4, SQRT=5, LOG=6, LN=7, SIN=8, COS=9, TAN=10, SINH=11, COSH=12, TANH=13, ASIN=14, ACOS=15, ATAN=16, ABS=17, CEIL=18, FLOOR=19, FACTORIAL=20;
+	static final byte ADD=21, SUBTRACT=22, MULTIPLY=23, DIVIDE=24, MODULO=25, POWER=26, EQUAL=27, NOT_EQUAL=28, GREATER=29, LESS=30;
+	static final byte SUM=31, MULT=32, CALL1=33, CALL2=34, FMA=35, CONSTANT_POWER=36, STEP=37;
+
+	// Bytes of the arrays for one node: opcode, left, right and value
+	static public final int BYTES_PER_NODE=1+4+4+8;
+	// Header and length of an array, with compressed references
+	static private final int ARRAY_HEADER_BYTES=16;
+
+	private final byte[] opcode;
+	private final int[] left, right;
+	private final double[] value;
+	private final String[] slots; 	// interned
+	private final int variableCount;
+	private final FunctionRegistry.Function[] functions;
+	private final boolean catchesArithmeticExceptions;
+	private final long treeBytes;
+
+	private CompactFormula(Builder builder, String[] slots, int variableCount, boolean catchesArithmeticExceptions)
+	{
+		this.opcode=Arrays.copyOf(builder.opcode, builder.size);
+		this.left=Arrays.copyOf(builder.left, builder.size);
+		this.right=Arrays.copyOf(builder.right, builder.size);
+		this.value=Arrays.copyOf(builder.value, builder.size);
+		this.slots=slots;
+		this.variableCount=variableCount;
+		this.functions=builder.functions.toArray(new FunctionRegistry.Function[builder.functions.size()]);
+		this.catchesArithmeticExceptions=catchesArithmeticExceptions;
+		this.treeBytes=builder.treeBytes;
+	}
+
+	/**
+	 *
+	 * Adds the nodes of a formula in postorder. Used by the FormulaElements
+	 * when RuntimeFormula.compile() is called.
+	 */
+
+	static class Builder
+	{
+		private byte[] opcode=new byte[16];
+		private int[] left=new int[16], right=new int[16];
+		private double[] value=new double[16];
+		private int size;
+		// Slot of each variable, in order of appearance
+		private final Map<String, Integer> slots=new LinkedHashMap<String, Integer>();
+		// Counting variable of each loop; loop c uses the temporary slot -c-1
+		private final List<String> counters=new ArrayList<String>();
+		// Loops whose operand is being added, innermost last
+		private final List<Integer> openLoops=new ArrayList<Integer>();
+		private final List<FunctionRegistry.Function> functions=new ArrayList<FunctionRegistry.Function>();
+		// Estimated size of the FormulaElements compiled, with compressed references
+		private long treeBytes;
+		// True if the series can be compiled, see step
+		final boolean series;
+
+		Builder()
+		{
+			this(false);
+		}
+
+		/**
+		 * @param series true if the formula is only evaluated by the
+		 * RuntimeFormula owning the series, whose state it changes
+		 */
+
+		Builder(boolean series)
+		{
+			this.series=series;
+		}
+
+		private int add(byte op, int l, int r, double v)
+		{
+			if(size==opcode.length)
+			{
+				int capacity=size*2;
+				opcode=Arrays.copyOf(opcode, capacity);
+				left=Arrays.copyOf(left, capacity);
+				right=Arrays.copyOf(right, capacity);
+				value=Arrays.copyOf(value, capacity);
+			}
+			opcode[size]=op;
+			left[size]=l;
+			right[size]=r;
+			value[size]=v;
+			return size++;
+		}
+
+		private int slot(String variable)
+		{
+			for(int i=openLoops.size()-1;i>=0;i--)
+				if(counters.get(openLoops.get(i)).equals(variable))
+					return -openLoops.get(i)-1;
+			Integer slot=slots.get(variable);
+			if(slot==null)
+			{
+				slot=slots.size();
+				slots.put(variable, slot);
+			}
+			return slot;
+		}
+
+		int constant(double constant)
+		{
+			treeBytes+=32;
+			return add(CONSTANT, -1, -1, constant);
+		}
+
+		/**
+		 * Adds a variable, or one of the named constants e and pi, or the
+		 * random number r, like SimpleElement
+		 */
+
+		int variable(String variable)
+		{
+			treeBytes+=32;
+			if(variable.equals("r"))
+				return add(RANDOM, -1, -1, 0);
+			if(variable.toLowerCase().equals("pi"))
+				return add(CONSTANT, -1, -1, Math.PI);
+			if(variable.toLowerCase().equals("e"))
+				return add(CONSTANT, -1, -1, Math.E);
+			return add(VARIABLE, slot(variable), -1, 0);
+		}
+
+		/**
+		 * @param operator the Character of the UnaryElement
+		 */
+
+		int unary(char operator, int operand)
+		{
+			treeBytes+=24;
+			byte op;
+			switch(operator)
+			{
+			case '-':op=NEGATE;break;
+			case 'x':op=SQRT;break;
+			case 'l':op=LOG;break;
+			case 'e':op=LN;break;
+			case 's':op=SIN;break;
+			case 'c':op=COS;break;
+			case 't':op=TAN;break;
+			case 'h':op=SINH;break;
+			case 'o':op=COSH;break;
+			case 'n':op=TANH;break;
+			case 'a':op=ASIN;break;
+			case 'q':op=ACOS;break;
+			case 'u':op=ATAN;break;
+			case 'i':op=ABS;break;
+			case 'k':op=CEIL;break;
+			case 'f':op=FLOOR;break;
+			case 'r':op=FACTORIAL;break;
+			default: throw new RuntimeException("Unexpected Unary operator. Please contact the developer(s). Bad "+operator);
+			}
+			return add(op, operand, -1, 0);
+		}
+
+		/**
+		 * @param operator the Character of the BinaryElement
+		 */
+
+		int binary(char operator, int operand1, int operand2)
+		{
+			treeBytes+=32;
+			byte op;
+			switch(operator)
+			{
+			case '+':op=ADD;break;
+			case '-':op=SUBTRACT;break;
+			case '*':op=MULTIPLY;break;
+			case '/':op=DIVIDE;break;
+			case '%':op=MODULO;break;
+			case '^':op=POWER;break;
+			case '=':op=EQUAL;break;
+			case '!':op=NOT_EQUAL;break;
+			case '>':op=GREATER;break;
+			case '<':op=LESS;break;
+			default: throw new RuntimeException("Unexpected Binary operator. Please contact the developer(s). Bad "+operator);
+			}
+			return add(op, operand1, operand2, 0);
+		}
+
+		/**
+		 * Adds a power with a constant exponent
+		 *
+		 * @param kind the powerKind of the exponent, see RuntimeFormula.power
+		 */
+
+		int power(int base, int kind, double exponent)
+		{
+			treeBytes+=32;
+			return add(CONSTANT_POWER, base, kind, exponent);
+		}
+
+		/**
+		 * Adds the fused multiply-add operand1*operand2+addend, used by the
+		 * HornerElements
+		 */
+
+		int fma(int operand1, int operand2, double addend)
+		{
+			treeBytes+=8;
+			return add(FMA, operand1, operand2, addend);
+		}
+
+		/**
+		 * Starts the operand of a loop, after its limit was added
+		 *
+		 * @return the index of the COUNTER node, to give to endLoop
+		 */
+
+		int beginLoop(String counter)
+		{
+			// The SimpleElement of the counting variable
+			treeBytes+=32;
+			openLoops.add(counters.size());
+			counters.add(counter);
+			return add(COUNTER, -1, -1, -counters.size());
+		}
+
+		/**
+		 * @param operator the Character of the TernaryElement
+		 * @param limit the index of the root of the limit
+		 * @param counter the index returned by beginLoop
+		 * @param iterationCost the operations spent by each iteration out of
+		 * the nested loops, see FormulaCost
+		 */
+
+		int endLoop(char operator, int limit, int counter, double iterationCost)
+		{
+			treeBytes+=32;
+			byte op;
+			switch(operator)
+			{
+			case 's':op=SUM;break;
+			case 'm':op=MULT;break;
+			default: throw new RuntimeException("Unexpected Ternary Operator. Please contact the developer. Bad "+operator);
+			}
+			int loop=add(op, limit, counter, iterationCost);
+			left[counter]=loop;
+			openLoops.remove(openLoops.size()-1);
+			return loop;
+		}
+
+		/**
+		 * @param operand2 -1 for a function of one argument
+		 */
+
+		int call(FunctionRegistry.Function function, int operand1, int operand2)
+		{
+			treeBytes+=32;
+			int index=functions.indexOf(function);
+			if(index<0)
+			{
+				index=functions.size();
+				functions.add(function);
+			}
+			if(operand2<0)
+				return add(CALL1, operand1, index, 0);
+			return add(CALL2, operand1, operand2, index);
+		}
+
+		/**
+		 * Adds the next row of a series, whose state is kept by step
+		 */
+
+		int step(FunctionRegistry.Function step, int operand)
+		{
+			treeBytes+=32;
+			int index=functions.size();
+			functions.add(step);
+			return add(STEP, operand, index, 0);
+		}
+
+		/**
+		 * Puts the slots of the counting variables after those of the
+		 * variables, and interns their names
+		 */
+
+		CompactFormula build(boolean catchesArithmeticExceptions)
+		{
+			int variableCount=slots.size();
+			String[] names=new String[variableCount+counters.size()];
+			for(Map.Entry<String, Integer> e:slots.entrySet())
+				names[e.getValue()]=e.getKey().intern();
+			for(int c=0;c<counters.size();c++)
+				names[variableCount+c]=counters.get(c).intern();
+			for(int i=0;i<size;i++)
+			{
+				if(opcode[i]==VARIABLE && left[i]<0)
+					left[i]=variableCount-left[i]-1;
+				else if(opcode[i]==COUNTER)
+					value[i]=variableCount-value[i]-1;
+			}
+			return new CompactFormula(this, names, variableCount, catchesArithmeticExceptions);
+		}
+	}
+
+	/**
+	 * @return the variables of the formula, in the order of their slots
+	 */
+
+	public String[] getVariables()
+	{
+		return Arrays.copyOf(slots, variableCount);
+	}
+
+	/**
+	 * @return the slot of variable in a frame, or -1 if the formula does not
+	 * use it
+	 */
+
+	public int indexOf(String variable)
+	{
+		for(int i=0;i<variableCount;i++)
+			if(slots[i].equals(variable))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * @return the number of nodes
+	 */
+
+	public int size()
+	{
+		return opcode.length;
+	}
+
+	/**
+	 * @return an array to give to calcValue, with a slot for each variable
+	 * followed by room for the counting variables and the nodes
+	 */
+
+	public double[] newFrame()
+	{
+		return new double[slots.length+opcode.length];
+	}
+
+	/**
+	 * @return the bytes used by this object and its arrays, excluding the
+	 * variable names, which are interned and shared
+	 */
+
+	public long estimatedBytes()
+	{
+		return 48+5*ARRAY_HEADER_BYTES+(long)opcode.length*BYTES_PER_NODE+4L*slots.length+4L*functions.length;
+	}
+
+	/**
+	 * @return the estimated bytes of the FormulaElements this formula was
+	 * compiled from
+	 */
+
+	public long estimatedTreeBytes()
+	{
+		return treeBytes;
+	}
+
+	/**
+	 * @param frame an array from newFrame(), with the value of each variable
+	 * in its slot
+	 * @return the value of the formula
+	 */
+
+	public double calcValue(double[] frame)
+	{
+		return calcValue(frame, null);
+	}
+
+	/**
+	 * @param budget spent by each iteration of the loops, or null
+	 * @throws BudgetExceededException if the budget is exceeded
+	 */
+
+	double calcValue(double[] frame, Budget budget)
+	{
+		run(frame, 0, opcode.length-1, budget);
+		return frame[slots.length+opcode.length-1];
+	}
+
+	/**
+	 * @param values the value of each variable, in the order of
+	 * getVariables()
+	 * @return the value of the formula, computed in a new frame
+	 */
+
+	public double calcValueOf(double... values)
+	{
+		double[] frame=newFrame();
+		System.arraycopy(values, 0, frame, 0, variableCount);
+		return calcValue(frame);
+	}
+
+	/**
+	 * Computes the nodes from first to last, in a frame where node i is at
+	 * base+i
+	 */
+
+	private void run(double[] frame, int first, int last, Budget budget)
+	{
+		final int base=slots.length;
+		double a, b;
+		for(int i=first;i<=last;i++)
+		{
+			switch(opcode[i])
+			{
+			case CONSTANT:a=value[i];break;
+			case VARIABLE:a=frame[left[i]];break;
+			case RANDOM:a=Math.random();break;
+			case COUNTER:
+				{
+					// Runs the loop and skips to the SUM or MULT node
+					int loop=left[i];
+					int counter=(int)value[i];
+					double limit=frame[base+left[loop]], cost=value[loop];
+					if(opcode[loop]==SUM)
+					{
+						a=0;
+						for(double k=1;k<=limit;k++)
+						{
+							if(budget!=null)
+								budget.spend(cost);
+							frame[counter]=k;
+							run(frame, i+1, loop-1, budget);
+							a+=frame[base+loop-1];
+						}
+					}
+					else
+					{
+						a=1;
+						for(double k=1;k<=limit;k++)
+						{
+							if(budget!=null)
+								budget.spend(cost);
+							frame[counter]=k;
+							run(frame, i+1, loop-1, budget);
+							a*=frame[base+loop-1];
+						}
+					}
+					i=loop;
+				}
+				break;
+			case NEGATE:a=-frame[base+left[i]];break;
+			case SQRT:
+				a=frame[base+left[i]];
+				a=(a<0 && catchesArithmeticExceptions)?RuntimeFormula.caught():Math.sqrt(a);
+				break;
+			case LOG:
+				a=frame[base+left[i]];
+				a=(a<=0 && catchesArithmeticExceptions)?RuntimeFormula.caught():Math.log10(a);
+				break;
+			case LN:
+				a=frame[base+left[i]];
+				a=(a<=0 && catchesArithmeticExceptions)?RuntimeFormula.caught():Math.log(a);
+				break;
+			case SIN:a=Math.sin(frame[base+left[i]]);break;
+			case COS:a=Math.cos(frame[base+left[i]]);break;
+			case TAN:
+				a=frame[base+left[i]];
+				a=(Math.cos(a)==0 && catchesArithmeticExceptions)?RuntimeFormula.caught():Math.tan(a);
+				break;
+			case SINH:a=Math.sinh(frame[base+left[i]]);break;
+			case COSH:a=Math.cosh(frame[base+left[i]]);break;
+			case TANH:a=Math.tanh(frame[base+left[i]]);break;
+			case ASIN:
+				a=frame[base+left[i]];
+				a=((a>1 || a<-1) && catchesArithmeticExceptions)?RuntimeFormula.caught():Math.asin(a);
+				break;
+			case ACOS:
+				a=frame[base+left[i]];
+				a=((a>1 || a<-1) && catchesArithmeticExceptions)?RuntimeFormula.caught():Math.acos(a);
+				break;
+			case ATAN:a=Math.atan(frame[base+left[i]]);break;
+			case ABS:a=Math.abs(frame[base+left[i]]);break;
+			case CEIL:a=Math.ceil(frame[base+left[i]]);break;
+			case FLOOR:a=Math.floor(frame[base+left[i]]);break;
+			case FACTORIAL:
+				b=frame[base+left[i]];
+				if((b>12 || b<0) && catchesArithmeticExceptions)
+					a=RuntimeFormula.caught();
+				else
+				{
+					a=1;
+					for(double k=Math.floor(b);k>1;k--)
+						a*=k;
+				}
+				break;
+			case ADD:a=frame[base+left[i]]+frame[base+right[i]];break;
+			case SUBTRACT:a=frame[base+left[i]]-frame[base+right[i]];break;
+			case MULTIPLY:a=frame[base+left[i]]*frame[base+right[i]];break;
+			case FMA:a=Math.fma(frame[base+left[i]], frame[base+right[i]], value[i]);break;
+			case DIVIDE:
+				b=frame[base+right[i]];
+				a=(b==0 && catchesArithmeticExceptions)?RuntimeFormula.caught():frame[base+left[i]]/b;
+				break;
+			case MODULO:
+				b=frame[base+right[i]];
+				a=(b==0 && catchesArithmeticExceptions)?RuntimeFormula.caught():(frame[base+left[i]]%b+b)%b;
+				break;
+			case POWER:
+				a=Math.pow(frame[base+left[i]], frame[base+right[i]]);
+				if(Double.isNaN(a) && catchesArithmeticExceptions)
+					a=RuntimeFormula.caught();
+				break;
+			case CONSTANT_POWER:
+				a=RuntimeFormula.power(frame[base+left[i]], right[i], value[i]);
+				if(Double.isNaN(a) && catchesArithmeticExceptions)
+					a=RuntimeFormula.caught();
+				break;
+			case EQUAL:a=Math.abs(frame[base+left[i]]-frame[base+right[i]])<0.00001?1:0;break;
+			case NOT_EQUAL:a=Math.abs(frame[base+left[i]]-frame[base+right[i]])>0.00001?1:0;break;
+			case GREATER:
+				a=frame[base+left[i]];
+				b=frame[base+right[i]];
+				a=(Math.abs(a-b)>0.00001 && a>b)?1:0;
+				break;
+			case LESS:
+				a=frame[base+left[i]];
+				b=frame[base+right[i]];
+				a=(Math.abs(a-b)>0.00001 && a<b)?1:0;
+				break;
+			case CALL1:
+				a=functions[right[i]].unary.applyAsDouble(frame[base+left[i]]);
+				if(Double.isNaN(a) && catchesArithmeticExceptions)
+					a=RuntimeFormula.caught();
+				break;
+			case STEP:
+				// The NaN of the first rows of a series aren't arithmetic exceptions
+				a=functions[right[i]].unary.applyAsDouble(frame[base+left[i]]);
+				break;
+			case CALL2:
+				a=functions[(int)value[i]].binary.applyAsDouble(frame[base+left[i]], frame[base+right[i]]);
+				if(Double.isNaN(a) && catchesArithmeticExceptions)
+					a=RuntimeFormula.caught();
+				break;
+			default: throw new RuntimeException("Unexpected opcode "+opcode[i]+". Please contact the developer(s).");
+			}
+			frame[base+i]=a;
+		}
+	}
+
+	/**
+	 *
+	 * The operations and the time left to an evaluation, spent by each
+	 * iteration of its loops; used once, by one thread
+	 */
+
+	static final class Budget
+	{
+		private final long maxOperations, maxNanos, start;
+		private final String formula;
+		private double spent;
+		private int checks;
+
+		/**
+		 * @param maxOperations or Long.MAX_VALUE for no bound
+		 * @param maxNanos or Long.MAX_VALUE for no bound
+		 * @param formula the name of the formula, for the exceptions
+		 */
+
+		Budget(long maxOperations, long maxNanos, String formula)
+		{
+			this.maxOperations=maxOperations;
+			this.maxNanos=maxNanos;
+			this.formula=formula;
+			start=System.nanoTime();
+		}
+
+		/**
+		 * @throws BudgetExceededException if the operations spent exceed
+		 * maxOperations, or if the evaluation lasted more than maxNanos; the
+		 * clock is only read every 1024 calls
+		 */
+
+		void spend(double operations)
+		{
+			spent+=operations;
+			if(spent>maxOperations)
+				throw new BudgetExceededException("More than "+maxOperations+" operations : "+formula);
+			if(maxNanos!=Long.MAX_VALUE && (++checks&1023)==0 && System.nanoTime()-start>maxNanos)
+				throw new BudgetExceededException("More than "+maxNanos+" ns : "+formula);
+		}
+	}
+
+	/**
+	 * @return the number of nodes and the memory used, compared to the tree
+	 */
+
+	public String toString()
+	{
+		return opcode.length+" nodes, "+estimatedBytes()+" bytes ("+String.format("%.1f", (double)estimatedBytes()/opcode.length)+" per node), tree "+treeBytes+" bytes, variables "+Arrays.toString(getVariables());
+	}
+}
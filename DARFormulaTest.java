@@ -221,4 +221,1452 @@ public class DARFormulaTest {
         }
     }
 
+    @Test
+    public void testFunctionRegistry()
+    {
+        System.out.println("testFunctionRegistry");
+        FunctionRegistry functions = new FunctionRegistry();
+        RuntimeFormula primogenitor = new RuntimeFormula();
+        primogenitor.setFunctionRegistry(functions);
+        try {
+            functions.register("square", new String[]{"a"}, "a*a");
+            functions.register("hyp", new String[]{"a", "b"}, "sqrt(square(a)+square(b))");
+            functions.register("twice", x -> 2 * x, true);
+            functions.register("maxof", Math::max, true);
+            primogenitor.setFormula("hyp(x,4)+twice(y)+maxof(x,y)", new String[]{"x", "y", "z"});
+            primogenitor.putVar("x", 3);
+            primogenitor.putVar("y", 1);
+            if (primogenitor.calcValue() != 10) {
+                System.out.println(primogenitor.formulaToString());
+                fail("calcValue does not return the right answer (1)");
+            }
+            // The body of a formula function is inlined in the tree
+            if (primogenitor.formulaToString().contains("hyp"))
+                fail("hyp should have been inlined : " + primogenitor.formulaToString());
+            // Pure functions of constants are computed when the tree is built
+            primogenitor.setFormula("twice(maxof(2,5))", new String[]{"x", "y", "z"});
+            if (!primogenitor.formulaToString().equals("10.0"))
+                fail("twice(maxof(2,5)) should have been folded : " + primogenitor.formulaToString());
+            primogenitor.setFormula("sum(i,3,maxof(i,2))", new String[]{"x", "y", "z"});
+            if (primogenitor.calcValue() != 7)
+                fail("calcValue does not return the right answer (2)");
+            // A registered function doesn't hide a variable of the same name
+            functions.register("z", q -> q + 100, true);
+            primogenitor.setFormula("z+1+z (1)", new String[]{"x", "y", "z"});
+            primogenitor.putVar("z", 5);
+            assertEquals(107, primogenitor.calcValue(), 0);
+            FormulaEditor editor = new FormulaEditor(functions, new String[]{"z"});
+            FormulaEditor expected = new FormulaEditor(functions, new String[]{"z"});
+            editor.setText("z +1");
+            editor.edit(2, 0, "(2)");
+            expected.setText("z (2)+1");
+            assertEquals(expected.toString(), editor.toString());
+            editor.edit(2, 3, "");
+            expected.setText("z +1");
+            assertEquals(expected.toString(), editor.toString());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            fail("registered functions raise an exception");
+        }
+
+        try {
+            primogenitor.setFormula("hyp(x)", new String[]{"x", "y", "z"});
+            fail("hyp needs two arguments");
+        } catch (UnexpectedTokenException e) {
+            System.out.println(e);
+        }
+        try {
+            functions.register("sin", x -> x, true);
+            fail("built-in functions can't be registered again");
+        } catch (IllegalArgumentException e) {
+            System.out.println(e);
+        }
+        try {
+            primogenitor.setFunctionRegistry(new FunctionRegistry());
+            primogenitor.setFormula("twice(x)", new String[]{"x", "y", "z"});
+            fail("functions of another registry should be unknown");
+        } catch (UnexpectedTokenException e) {
+            System.out.println(e);
+        }
+
+        // The arguments are passed by name, so an argument which isn't pure
+        // can only be used once
+        primogenitor.setFunctionRegistry(functions);
+        functions.register("zero", new String[]{"a"}, "a-a");
+        functions.register("thrice", new String[]{"a"}, "sum(i,3,a)");
+        functions.register("next", new String[]{"a"}, "a+1");
+        String[] impure = new String[]{"zero(r)", "thrice(r*2)", "hyp(r,1)", "zero(next(r))"};
+        for (String formula : impure) {
+            try {
+                primogenitor.setFormula(formula, new String[]{"x"});
+                fail(formula + " evaluates r more than once");
+            } catch (UnexpectedTokenException e) {
+                System.out.println(e);
+            }
+        }
+        primogenitor.setFormula("zero(x*2)+thrice(x)+next(r)*0+hyp(x,x)", new String[]{"x"});
+        primogenitor.putVar("x", 3);
+        assertEquals(9 + Math.sqrt(18), primogenitor.calcValue(), 1e-12);
+    }
+
+    @Test
+    public void testTabulator()
+    {
+        System.out.println("testTabulator");
+        RuntimeFormula primogenitor = new RuntimeFormula();
+        try {
+            primogenitor.setFormula("x*y+sin(x)-z+sum(i,2,i*x)", new String[]{"x", "y", "z"});
+            primogenitor.putVar("z", 3);
+            Tabulator tabulator = new Tabulator(primogenitor, new Tabulator.Axis("x", -1, 1, 101), new Tabulator.Axis("y", 0, 2, 157));
+            double[] grid = tabulator.tabulate();
+            if (grid.length != 101 * 157)
+                fail("tabulate does not return every point");
+            for (int i = 0; i < 101; i++) {
+                for (int j = 0; j < 157; j++) {
+                    primogenitor.putVar("x", -1 + 2.0 * i / 100);
+                    primogenitor.putVar("y", 2.0 * j / 156);
+                    if (grid[i * 157 + j] != primogenitor.calcValue())
+                        fail("tabulate does not return the right answer at " + i + "," + j);
+                }
+            }
+
+            java.nio.file.Path file = java.nio.file.Files.createTempFile("tabulator", ".bin");
+            try {
+                tabulator.tabulate(file);
+                java.nio.DoubleBuffer mapped = java.nio.ByteBuffer.wrap(java.nio.file.Files.readAllBytes(file)).order(java.nio.ByteOrder.nativeOrder()).asDoubleBuffer();
+                for (int i = 0; i < grid.length; i++)
+                    if (mapped.get(i) != grid[i])
+                        fail("the file does not contain the right answer at " + i);
+            } finally {
+                java.nio.file.Files.delete(file);
+            }
+        } catch (java.io.IOException e) {
+            e.printStackTrace();
+            fail("tabulate to a file raises an exception");
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            fail("tabulate raises an exception");
+        }
+    }
+
+    @Test
+    public void testFormulaSolver()
+    {
+        System.out.println("testFormulaSolver");
+        RuntimeFormula primogenitor = new RuntimeFormula();
+        try {
+            primogenitor.setFormula("x^3-2*x*y+sin(x)", new String[]{"x", "y", "z"});
+            primogenitor.putVar("y", 1);
+            RuntimeFormula derivative = primogenitor.derivative("x");
+            derivative.putVar("x", 1);
+            if (Math.abs(derivative.calcValue() - (3 - 2 + Math.cos(1))) > 1e-12)
+                fail("derivative does not return the right answer : " + derivative.formulaToString());
+
+            FormulaSolver solver = new FormulaSolver(primogenitor, "x");
+            double root = solver.findRoot(5, 0, 10);
+            if (Math.abs(solver.valueAt(root) - 5) > 1e-8)
+                fail("findRoot does not return a root : " + root);
+            if (Math.abs(solver.newton(5, 3) - root) > 1e-8)
+                fail("newton and findRoot do not agree");
+            try {
+                solver.findRoot(5, 3, 10);
+                fail("findRoot should refuse an interval without a root");
+            } catch (IllegalArgumentException e) {
+                System.out.println(e);
+            }
+
+            primogenitor.setFormula("(x-y)^2+z", new String[]{"x", "y", "z"});
+            primogenitor.putVar("z", 1);
+            solver = new FormulaSolver(primogenitor, "x", "y");
+            solver.setParameters(2);
+            if (Math.abs(solver.minimize(-10, 10) - 2) > 1e-6)
+                fail("minimize does not return the minimum");
+
+            double[][] parameters = new double[100][];
+            double[] targets = new double[100];
+            for (int k = 0; k < 100; k++) {
+                parameters[k] = new double[]{k};
+                targets[k] = 1 + k;
+            }
+            double[] roots = solver.findRoots(targets, parameters, 100, 200);
+            double[] minima = solver.minimizeAll(parameters, -200, 200);
+            for (int k = 0; k < 100; k++) {
+                if (Math.abs(roots[k] - (k + Math.sqrt(k))) > 1e-8)
+                    fail("findRoots does not return the right answer for " + k + " : " + roots[k]);
+                if (Math.abs(minima[k] - k) > 1e-6)
+                    fail("minimizeAll does not return the right answer for " + k + " : " + minima[k]);
+            }
+            if (!Double.isNaN(roots[0]))
+                fail("findRoots should return NaN without a root");
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            fail("the solver raises an exception");
+        }
+    }
+
+    @Test
+    public void testCompactFormula()
+    {
+        System.out.println("testCompactFormula");
+        FunctionRegistry functions = new FunctionRegistry();
+        functions.register("hypot", Math::hypot, true);
+        RuntimeFormula primogenitor = new RuntimeFormula();
+        primogenitor.setFunctionRegistry(functions);
+        String[] formulas = {"(3 + x)*5^-log(y)", "(x=5)*6+(y%2=1)*4", "sum(i,5,sum(j,i,i+j*x))-mult(k,3,y+k)",
+            "sqrt(x)+ln(y)+asin(z)+!(x)+x/y%z+hypot(x,z)", "x>y+(x<y)*2+(x!=y)*3+pi*e"};
+        java.util.Random random = new java.util.Random(42);
+        try {
+            for (String formula : formulas) {
+                primogenitor.setFormula(formula, new String[]{"x", "y", "z"});
+                CompactFormula compact = primogenitor.compile();
+                System.out.println(compact);
+                if ((long) CompactFormula.BYTES_PER_NODE * compact.size() >= compact.estimatedTreeBytes())
+                    fail("the nodes of the compact formula are not smaller than the tree");
+                double[] frame = compact.newFrame();
+                for (int n = 0; n < 100; n++) {
+                    for (String variable : new String[]{"x", "y", "z"}) {
+                        double value = random.nextInt(4) == 0 ? random.nextInt(6) : random.nextDouble() * 8 - 2;
+                        primogenitor.putVar(variable, value);
+                        if (compact.indexOf(variable) >= 0)
+                            frame[compact.indexOf(variable)] = value;
+                    }
+                    double expected = primogenitor.calcValue();
+                    double actual = compact.calcValue(frame);
+                    if (Double.doubleToLongBits(expected) != Double.doubleToLongBits(actual))
+                        fail(formula + " : the compact formula returns " + actual + " instead of " + expected);
+                }
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            fail("the compact formula raises an exception");
+        }
+    }
+
+    @Test
+    public void testFormulaStore()
+    {
+        System.out.println("testFormulaStore");
+        FormulaStore store = new FormulaStore();
+        String[] expected = new String[]{"x", "y", "z"};
+        try {
+            FormulaStore.SharedFormula first = store.acquire("x+1", expected);
+            FormulaStore.SharedFormula second = store.acquire("1 + x", expected);
+            FormulaStore.SharedFormula third = store.acquire("((x))+1.00", expected);
+            if (first != second || first != third)
+                fail("equivalent formulas are not shared : " + first + " " + second + " " + third);
+            if (store.acquire("y*(2*3)+x", expected) != store.acquire("x + 6*y", expected))
+                fail("y*(2*3)+x and x + 6*y are not shared");
+            if (store.acquire("x-1", expected) == store.acquire("1-x", expected))
+                fail("x-1 and 1-x are shared");
+            if (store.size() != 4 || store.references(first) != 3)
+                fail("wrong count of formulas or references : " + store);
+            if (first.getFormula().calcValueOf(4) != 5)
+                fail("the shared formula does not return the right answer");
+            store.release(first);
+            store.release(second);
+            if (store.size() != 4)
+                fail("a formula still referenced left the store");
+            store.release(third);
+            if (store.size() != 3)
+                fail("a formula not referenced stayed in the store");
+            try {
+                store.release(first);
+                fail("a formula can't be released more than acquired");
+            } catch (IllegalStateException e) {
+                System.out.println(e);
+            }
+            // A loop removes its counting variable once it ends, so i is
+            // read after the sum in one formula and before it in the other
+            RuntimeFormula loop = new RuntimeFormula();
+            loop.setFormula("sum(i,2,i)+i", new String[]{"i"});
+            RuntimeFormula canonical = loop.canonical();
+            canonical.putVar("i", 10);
+            try {
+                canonical.calcValue();
+                fail("i is read after the loop in " + canonical.formulaToString());
+            } catch (UnexpectedVariableException e) {
+            }
+            if (store.acquire("sum(i,2,i)+i", new String[]{"i"}) == store.acquire("i+sum(i,2,i)", new String[]{"i"}))
+                fail("sum(i,2,i)+i and i+sum(i,2,i) are shared");
+            if (store.acquire("x+r", expected) == store.acquire("r+x", expected))
+                fail("x+r and r+x are shared");
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            fail("the store raises an exception");
+        }
+    }
+
+    @Test
+    public void testAsyncEvaluator()
+    {
+        System.out.println("testAsyncEvaluator");
+        String[] expected = new String[]{"x", "y", "z"};
+        try (AsyncEvaluator evaluator = new AsyncEvaluator()) {
+            java.util.List<AsyncEvaluator.Job> jobs = new java.util.ArrayList<AsyncEvaluator.Job>();
+            for (int k = 0; k < 100; k++) {
+                java.util.Map<String, Double> variables = new java.util.HashMap<String, Double>();
+                variables.put("x", (double) k);
+                variables.put("y", 2.0);
+                jobs.add(new AsyncEvaluator.Job(k % 2 == 0 ? "x*y" : "sum(i,x,i)", expected, variables));
+            }
+            jobs.add(new AsyncEvaluator.Job("x+", expected, new java.util.HashMap<String, Double>()));
+            jobs.add(new AsyncEvaluator.Job("x+z", expected, new java.util.HashMap<String, Double>()));
+            java.util.List<java.util.concurrent.CompletableFuture<Double>> results = evaluator.evaluate(jobs);
+            for (int k = 0; k < 100; k++) {
+                double expectedValue = k % 2 == 0 ? 2 * k : k * (k + 1) / 2;
+                if (results.get(k).join() != expectedValue)
+                    fail("job " + k + " does not return the right answer : " + results.get(k).join());
+            }
+            try {
+                results.get(100).join();
+                fail("an invalid formula should fail");
+            } catch (java.util.concurrent.CompletionException e) {
+                if (!(e.getCause() instanceof UnexpectedTokenException))
+                    fail("wrong exception " + e.getCause());
+            }
+            try {
+                results.get(101).join();
+                fail("a missing variable should fail");
+            } catch (java.util.concurrent.CompletionException e) {
+                if (!(e.getCause() instanceof UnexpectedVariableException))
+                    fail("wrong exception " + e.getCause());
+            }
+        }
+    }
+
+    @Test
+    public void testMinimalParentheses()
+    {
+        System.out.println("testMinimalParentheses");
+        String[] formulas = {"(3 + x)*5^-log(y)", "x-(y-z)", "(x-y)-z", "x/(y*z)", "x^(y^z)", "(x^y)^z", "-(x+y)*z", "-x^2",
+            "-(x^2)", "-(-x)", "(x=y)=(z>1)", "x!=(y<z)", "sum(i,x+1,i*(y-i))", "!(x)%(y+z)", "0.00001*x+123456789012345678901234567890"};
+        RuntimeFormula primogenitor = new RuntimeFormula();
+        RuntimeFormula parsedAgain = new RuntimeFormula();
+        try {
+            for (String formula : formulas) {
+                primogenitor.setFormula(formula, new String[]{"x", "y", "z"});
+                java.io.StringWriter out = new java.io.StringWriter();
+                primogenitor.appendFormula(out, true);
+                System.out.println(formula + " -> " + out);
+                parsedAgain.setFormula(out.toString(), new String[]{"x", "y", "z"});
+                if (!parsedAgain.formulaToString().equals(primogenitor.formulaToString()))
+                    fail(formula + " is parsed again as " + parsedAgain.formulaToString() + " instead of " + primogenitor.formulaToString());
+            }
+            if (!primogenitor.formulaToString(true).equals("0.00001*x+123456789012345680000000000000"))
+                fail("wrong minimal formula : " + primogenitor.formulaToString(true));
+
+            StringBuilder chain = new StringBuilder("x");
+            for (int i = 0; i < 5000; i++)
+                chain.append(i % 2 == 0 ? "+y" : "*z");
+            primogenitor.setFormula(chain.toString(), new String[]{"x", "y", "z"});
+            if (!primogenitor.formulaToString(true).equals(chain.toString()))
+                fail("the chain is not written with minimal parentheses");
+        } catch (java.io.IOException e) {
+            fail("appendFormula raises an exception");
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            fail("minimal parentheses raise an exception");
+        }
+    }
+
+    @Test
+    public void testTieredExecution() {
+        System.out.println("testTieredExecution");
+        try {
+            RuntimeFormula primogenitor = new RuntimeFormula();
+            primogenitor.setCatchesArithmeticExceptions(false);
+            primogenitor.setFormula("sum(i,3,x*i)+y/x+r*0", new String[]{"x", "y"});
+            primogenitor.setCompilationThreshold(10);
+            primogenitor.putVar("y", 2);
+            RuntimeFormula interpreted = primogenitor.copy();
+            interpreted.setCompilationThreshold(Long.MAX_VALUE);
+            long deadline = System.currentTimeMillis() + 10000;
+            int evaluations = 0;
+            while (!primogenitor.isCompiled()) {
+                if (System.currentTimeMillis() > deadline)
+                    fail("the formula is not compiled after " + evaluations + " evaluations");
+                primogenitor.putVar("x", evaluations + 1);
+                primogenitor.calcValue();
+                evaluations++;
+            }
+            for (int x = 1; x < 50; x++) {
+                primogenitor.putVar("x", x);
+                primogenitor.putVar("y", 3 - x);
+                interpreted.putVar("x", x);
+                interpreted.putVar("y", 3 - x);
+                if (primogenitor.calcValue() != interpreted.calcValue())
+                    fail("the compiled formula gives " + primogenitor.calcValue() + " instead of " + interpreted.calcValue());
+            }
+            primogenitor.putVar("x", 0);
+            interpreted.putVar("x", 0);
+            if (primogenitor.calcValue() != interpreted.calcValue())
+                fail("the compiled formula doesn't keep the mode of the tree");
+            primogenitor.setCatchesArithmeticExceptions(true);
+            if (primogenitor.isCompiled() || primogenitor.calcValue() != 0)
+                fail("the compiled formula is used with another mode");
+
+            primogenitor.setFormula("x+1", new String[]{"x"});
+            if (primogenitor.isCompiled() || primogenitor.calcValue() != 1)
+                fail("the compiled form of the previous formula is used");
+
+            BoundFormula bound = primogenitor.bind("x");
+            bound.getFormula().setCompilationThreshold(1);
+            bound.calcValue(1);
+            while (!bound.getFormula().isCompiled())
+                if (System.currentTimeMillis() > deadline)
+                    fail("the bound formula is not compiled");
+            if (bound.calcValue(41) != 42)
+                fail("the compiled bound formula doesn't read its slots");
+        } catch (UnexpectedCharacterException | UnexpectedTokenException | UnevenParenthesesException | UnexpectedVariableException | UnexpectedEOLException e) {
+            fail("tiered execution raises an exception");
+        }
+    }
+
+    static public class Quote {
+        public final double bid;
+        private final int size;
+        private final Long volume;
+
+        public Quote(double bid, int size, Long volume) {
+            this.bid = bid;
+            this.size = size;
+            this.volume = volume;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public Long volume() {
+            return volume;
+        }
+    }
+
+    @Test
+    public void testObjectBinder() {
+        System.out.println("testObjectBinder");
+        try {
+            RuntimeFormula primogenitor = new RuntimeFormula();
+            primogenitor.setFormula("bid*size+volume/2", new String[]{"bid", "size", "volume"});
+            ObjectBinder<Quote> binder = new ObjectBinder<Quote>(primogenitor, Quote.class, "bid", "size", "volume");
+            Quote[] quotes = new Quote[100];
+            for (int i = 0; i < quotes.length; i++)
+                quotes[i] = new Quote(i * 0.5, i, (long) (2 * i));
+            double[] results = new double[quotes.length];
+            binder.calcValues(quotes, results);
+            for (int i = 0; i < quotes.length; i++) {
+                primogenitor.putVar("bid", i * 0.5);
+                primogenitor.putVar("size", i);
+                primogenitor.putVar("volume", 2 * i);
+                if (results[i] != primogenitor.calcValue() || binder.calcValue(quotes[i]) != results[i])
+                    fail("the binder gives " + results[i] + " instead of " + primogenitor.calcValue());
+            }
+
+            try {
+                new ObjectBinder<Quote>(primogenitor, Quote.class, "bid", "size", "volume", "ask");
+                fail("a variable which is not a member is bound");
+            } catch (UnexpectedVariableException e) {
+            }
+        } catch (UnexpectedCharacterException | UnexpectedTokenException | UnevenParenthesesException | UnexpectedVariableException | UnexpectedEOLException e) {
+            fail("the object binder raises an exception");
+        }
+    }
+
+    @Test
+    public void testRecordEvaluator() {
+        System.out.println("testRecordEvaluator");
+        try {
+            RuntimeFormula primogenitor = new RuntimeFormula();
+            primogenitor.setFormula("price*quantity+fee-id", new String[]{"price", "quantity", "fee", "id"});
+            RecordLayout layout = new RecordLayout(28)
+                    .add("id", 0, RecordLayout.Type.LONG)
+                    .add("price", 8, RecordLayout.Type.DOUBLE)
+                    .add("quantity", 16, RecordLayout.Type.INT)
+                    .add("fee", 20, RecordLayout.Type.FLOAT);
+            RecordEvaluator evaluator = new RecordEvaluator(primogenitor, layout);
+
+            int count = 1000;
+            java.nio.ByteBuffer records = java.nio.ByteBuffer.allocateDirect(count * 28 + 4).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < count; i++) {
+                int record = 4 + i * 28;
+                records.putLong(record, i);
+                records.putDouble(record + 8, i * 0.25);
+                records.putInt(record + 16, i % 7);
+                records.putFloat(record + 20, 1.5f);
+            }
+            java.nio.ByteBuffer output = java.nio.ByteBuffer.allocateDirect(count * 8);
+            evaluator.calcValues(records, 4, count, output, 0);
+            double[] results = new double[count];
+            evaluator.calcValues(records, 4, count, results, 0);
+            for (int i = 0; i < count; i++) {
+                double expected = i * 0.25 * (i % 7) + 1.5 - i;
+                if (output.getDouble(i * 8) != expected || results[i] != expected || evaluator.calcValue(records, 4 + i * 28) != expected)
+                    fail("record " + i + " gives " + results[i] + " instead of " + expected);
+            }
+            if (records.position() != 0 || output.position() != 0)
+                fail("the evaluator moves the buffers");
+
+            try {
+                new RecordEvaluator(primogenitor, new RecordLayout(8).add("price", 0, RecordLayout.Type.DOUBLE));
+                fail("a variable missing from the layout is accepted");
+            } catch (UnexpectedVariableException e) {
+            }
+        } catch (UnexpectedCharacterException | UnexpectedTokenException | UnevenParenthesesException | UnexpectedVariableException | UnexpectedEOLException e) {
+            fail("the record evaluator raises an exception");
+        }
+    }
+
+    @Test
+    public void testDeepFormula() {
+        System.out.println("testDeepFormula");
+        final StringBuilder chain = new StringBuilder("x");
+        final StringBuilder nested = new StringBuilder("x");
+        double expectedChain = 0.5;
+        for (int i = 1; i < 50000; i++) {
+            chain.append(i % 2 == 0 ? "-x" : "+" + (i % 10));
+            nested.append(i % 2 == 0 ? "-(x" : "+(" + (i % 10));
+            expectedChain += i % 2 == 0 ? -0.5 : i % 10;
+        }
+        for (int i = 1; i < 50000; i++)
+            nested.append(')');
+        double expectedNested = 49999 % 10;
+        for (int i = 49999; i >= 1; i--) {
+            double term = i - 1 == 0 || (i - 1) % 2 == 0 ? 0.5 : (i - 1) % 10;
+            expectedNested = i % 2 == 0 ? term - expectedNested : term + expectedNested;
+        }
+        final StringBuilder linear = new StringBuilder("x");
+        double slope = 1, constant = 0;
+        for (int i = 1; i < 20000; i++) {
+            linear.append(i % 3 == 0 ? "+x*y" : i % 3 == 1 ? "-y" : "+x");
+            slope += i % 3 == 0 ? 0.5 : i % 3 == 1 ? 0 : 1;
+            constant -= i % 3 == 1 ? 0.5 : 0;
+        }
+        final double[] values = new double[9];
+        final Throwable[] thrown = new Throwable[1];
+        // A small stack, which recursion over the formulas would overflow
+        Thread thread = new Thread(null, () -> {
+            try {
+                RuntimeFormula primogenitor = new RuntimeFormula();
+                primogenitor.putVar("x", 0.5);
+                primogenitor.setFormula(chain.toString(), new String[]{"x"});
+                values[0] = primogenitor.calcValue();
+                values[1] = primogenitor.bind("x").calcValue(0.5);
+                RuntimeFormula canonical = primogenitor.canonical();
+                canonical.setFormula(canonical.formulaToString(true), new String[]{"x"});
+                canonical.putVar("x", 0.5);
+                values[4] = canonical.calcValue();
+                FormulaStore store = new FormulaStore();
+                FormulaStore.SharedFormula shared = store.acquire(chain.toString(), new String[]{"x"});
+                values[5] = shared.getFormula().calcValueOf(0.5);
+                values[6] = store.acquire(" " + chain, new String[]{"x"}) == shared ? 0 : 1;
+                primogenitor.setFormula(linear.toString(), new String[]{"x", "y"});
+                RuntimeFormula derivative = primogenitor.derivative("x");
+                derivative.putVar("x", 0.1);
+                derivative.putVar("y", 0.5);
+                values[7] = derivative.calcValue();
+                FormulaSolver solver = new FormulaSolver(primogenitor, "x", "y");
+                solver.setParameters(0.5);
+                values[8] = solver.newton(0.5, 0.1);
+                primogenitor.setFormula(nested.toString(), new String[]{"x"});
+                values[2] = primogenitor.calcValue();
+                values[3] = primogenitor.copy().calcValue();
+                primogenitor.setFormula("(((x", new String[]{"x"});
+            } catch (UnevenParenthesesException e) {
+            } catch (Throwable e) {
+                thrown[0] = e;
+            }
+        }, "deep formula", 1 << 18);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            fail("interrupted");
+        }
+        if (thrown[0] != null) {
+            thrown[0].printStackTrace();
+            fail("the deep formula raises " + thrown[0]);
+        }
+        if (values[0] != expectedChain || values[1] != expectedChain)
+            fail("the chain gives " + values[0] + " and " + values[1] + " instead of " + expectedChain);
+        if (values[4] != expectedChain || values[5] != expectedChain || values[6] != 0)
+            fail("the canonical chain gives " + values[4] + " and " + values[5] + " instead of " + expectedChain);
+        if (Math.abs(values[7] - slope) > 1e-9 * slope || Math.abs(values[8] - (0.5 - constant) / slope) > 1e-9)
+            fail("the derivative of the linear chain gives " + values[7] + " and the root " + values[8]);
+        if (values[2] != expectedNested || values[3] != expectedNested)
+            fail("the nested formula gives " + values[2] + " and " + values[3] + " instead of " + expectedNested);
+    }
+
+    @Test
+    public void testHorner() {
+        System.out.println("testHorner");
+        try {
+            RuntimeFormula primogenitor = new RuntimeFormula();
+            String[] formulas = {"3*x^4+2*x^3-x^2+7*x+1", "(x+1)^3-x/2", "x^2*y+2*x*y^2+y^3+sin(x^2+1)", "sum(i,4,i^2*x)+x*y", "x^20+1", "x*y+r*0"};
+            for (String formula : formulas) {
+                primogenitor.setFormula(formula, new String[]{"x", "y"});
+                RuntimeFormula horner = primogenitor.horner();
+                CompactFormula compiled = horner.compile();
+                System.out.println(formula + " -> " + horner.formulaToString(true));
+                for (double x = -3; x <= 3; x += 0.25) {
+                    primogenitor.putVar("x", x);
+                    primogenitor.putVar("y", 1 - x);
+                    horner.putVar("x", x);
+                    horner.putVar("y", 1 - x);
+                    double expected = primogenitor.calcValue();
+                    double[] frame = compiled.newFrame();
+                    for (int v = 0; v < compiled.getVariables().length; v++)
+                        frame[v] = compiled.getVariables()[v].equals("x") ? x : 1 - x;
+                    if (Math.abs(horner.calcValue() - expected) > 1e-9 * Math.max(1, Math.abs(expected))
+                            || Math.abs(compiled.calcValue(frame) - expected) > 1e-9 * Math.max(1, Math.abs(expected)))
+                        fail(formula + " in Horner form gives " + horner.calcValue() + " instead of " + expected + " for x=" + x);
+                }
+            }
+            primogenitor.setFormula("3*x^4+2*x^3-x^2+7*x+1", new String[]{"x"});
+            if (!primogenitor.horner().formulaToString(true).equals("(((3*x+2)*x-1)*x+7)*x+1"))
+                fail("wrong Horner form : " + primogenitor.horner().formulaToString(true));
+            // The powers of sums aren't expanded into terms which cancel out
+            primogenitor.setFormula("(x-1)^10+2*(x-1)^10*x^2", new String[]{"x"});
+            RuntimeFormula factors = primogenitor.horner();
+            for (double x : new double[]{1.0001, 0.999}) {
+                double expected = Math.pow(x - 1, 10) * (1 + 2 * x * x);
+                primogenitor.putVar("x", x);
+                factors.putVar("x", x);
+                for (double actual : new double[]{primogenitor.calcValue(), factors.calcValue(), factors.compile().calcValueOf(x)})
+                    if (Math.abs(actual - expected) > 1e-12 * expected)
+                        fail("(x-1)^10 in Horner form gives " + actual + " instead of " + expected + " for x=" + x);
+            }
+            // The zero coefficients must keep the sign of -y^10 at 0
+            primogenitor.setCatchesArithmeticExceptions(false);
+            primogenitor.setFormula("0.5/-(y^10)", new String[]{"y"});
+            primogenitor.putVar("y", 0);
+            RuntimeFormula horner = primogenitor.horner();
+            horner.putVar("y", 0);
+            for (double actual : new double[]{primogenitor.calcValue(), horner.calcValue(), horner.compile().calcValueOf(0)})
+                if (actual != Double.NEGATIVE_INFINITY)
+                    fail("0.5/-(y^10) gives " + actual + " at 0 in Horner form");
+        } catch (UnexpectedCharacterException | UnexpectedTokenException | UnevenParenthesesException | UnexpectedVariableException | UnexpectedEOLException e) {
+            fail("the Horner form raises an exception");
+        }
+    }
+
+    @Test
+    public void testConstantPowers() {
+        System.out.println("testConstantPowers");
+        String[] exponents = {"0", "1", "2", "3", "7", "-1", "-2", "-3", "64", "65", "-64", "53", "0.5", "-0.5", "(1/3)", "-(1/2)", "1.5", "2.5"};
+        double[] bases = {2, 0.5, 3.7, -2, -0.5, -3.7, 0, -0.0, 1e200, -1e200, 1e-200, 1e5, -1e5, 1e-6, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NaN};
+        try {
+            for (boolean catches : new boolean[]{false, true}) {
+                RuntimeFormula primogenitor = new RuntimeFormula();
+                primogenitor.setCatchesArithmeticExceptions(catches);
+                primogenitor.setCompilationThreshold(Long.MAX_VALUE);
+                for (String exponent : exponents) {
+                    primogenitor.setFormula("x^" + exponent, new String[]{"x"});
+                    CompactFormula compiled = primogenitor.compile();
+                    RuntimeFormula exponentFormula = new RuntimeFormula();
+                    exponentFormula.setFormula(exponent, new String[]{"x"});
+                    double y = exponentFormula.calcValue();
+                    for (double x : bases) {
+                        double expected = Math.pow(x, y);
+                        if (catches && Double.isNaN(expected))
+                            expected = 0;
+                        primogenitor.putVar("x", x);
+                        for (double actual : new double[]{primogenitor.calcValue(), compiled.calcValueOf(x)}) {
+                            boolean special = Double.isNaN(expected) || Double.isInfinite(expected) || expected == 0;
+                            if (special ? Double.compare(actual, expected) != 0 : Math.abs(actual - expected) > 1e-13 * Math.abs(expected))
+                                fail(x + "^" + exponent + " gives " + actual + " instead of " + expected);
+                        }
+                    }
+                }
+            }
+        } catch (UnexpectedCharacterException | UnexpectedTokenException | UnevenParenthesesException | UnexpectedVariableException | UnexpectedEOLException e) {
+            fail("constant powers raise an exception");
+        }
+    }
+
+    @Test
+    public void testSpecialize() {
+        System.out.println("testSpecialize");
+        try {
+            for (boolean catches : new boolean[]{true, false}) {
+                RuntimeFormula primogenitor = new RuntimeFormula();
+                primogenitor.setCatchesArithmeticExceptions(catches);
+                primogenitor.setFormula("rate*x+sqrt(k^2+1)/k-log(x)+sum(i,k,i*x)+x/(k-2)", new String[]{"x", "rate", "k"});
+                primogenitor.putVar("rate", 0.2);
+                primogenitor.putVar("k", 2);
+                java.util.Map<String, Double> constants = new java.util.HashMap<String, Double>();
+                constants.put("rate", 0.2);
+                constants.put("k", 2.0);
+                RuntimeFormula residual = primogenitor.specialize(constants);
+                System.out.println(residual.formulaToString());
+                if (residual.formulaToString().contains("k") || residual.formulaToString().contains("rate") || residual.getAllVars().containsKey("k"))
+                    fail("the constants are still in " + residual.formulaToString());
+                for (double x = -2; x <= 2; x += 0.5) {
+                    primogenitor.putVar("x", x);
+                    residual.putVar("x", x);
+                    double expected = primogenitor.calcValue(), actual = residual.calcValue();
+                    if (Double.compare(expected, actual) != 0 && Math.abs(expected - actual) > 1e-12)
+                        fail("the residual formula gives " + actual + " instead of " + expected + " for x=" + x);
+                }
+                try {
+                    residual.setCatchesArithmeticExceptions(!catches);
+                    fail("the mode of the residual formula changes");
+                } catch (IllegalStateException e) {
+                }
+            }
+            // The exceptions are only caught when the residual formula is evaluated
+            FormulaMetrics metrics = new FormulaMetrics();
+            RuntimeFormula.setListener(metrics);
+            RuntimeFormula primogenitor = new RuntimeFormula();
+            primogenitor.setFormula("x+sqrt(k-3)+1/(k-2)", new String[]{"x", "k"});
+            RuntimeFormula residual = primogenitor.specialize(java.util.Collections.singletonMap("k", 2.0));
+            assertEquals(0, metrics.getCaughtExceptions());
+            residual.putVar("x", 1);
+            assertEquals(1, residual.calcValue(), 0);
+            assertEquals(2, metrics.getCaughtExceptions());
+        } catch (UnexpectedCharacterException | UnexpectedTokenException | UnevenParenthesesException | UnexpectedVariableException | UnexpectedEOLException e) {
+            fail("specialize raises an exception");
+        } finally {
+            RuntimeFormula.setListener(FormulaListener.NONE);
+        }
+    }
+
+    @Test
+    public void testFormulaEditor() {
+        System.out.println("testFormulaEditor");
+        String[] variables = new String[]{"x", "y"};
+        String[] replacements = new String[]{"y", "(x*2)", "sin(y)", "x+1", "1.5", "max(x,y)", "-x", "sum(i,3,i*y)", "zz", "x)", "(x", "x+", "1 2", "x y", "sinx", "#"};
+        RuntimeFormula primogenitor = new RuntimeFormula();
+        FormulaEditor editor = new FormulaEditor(variables);
+        java.util.Random random = new java.util.Random(42);
+        String text = "x+y";
+        int valid = 0;
+        try {
+            editor.setText(text);
+        } catch (UnexpectedCharacterException | UnexpectedTokenException | UnevenParenthesesException | UnexpectedVariableException | UnexpectedEOLException e) {
+            fail("x+y is not valid");
+        }
+        for (int step = 0; step < 5000; step++) {
+            // Replaces a variable or a 1 of the text, and undoes it if the
+            // formula isn't valid anymore, or half of the time
+            java.util.List<Integer> operands = new java.util.ArrayList<Integer>();
+            for (int i = 0; i < text.length(); i++)
+                if ("xyz1".indexOf(text.charAt(i)) >= 0)
+                    operands.add(i);
+            int offset = operands.get(random.nextInt(operands.size()));
+            String removed = text.substring(offset, offset + 1);
+            String inserted = text.length() > 200 ? "x" : replacements[random.nextInt(replacements.length)];
+            boolean undo = random.nextBoolean();
+            for (int i = 0; i < 2; i++) {
+                String previous = text;
+                text = text.substring(0, offset) + inserted + text.substring(offset + removed.length());
+                String expected = null, actual = null;
+                try {
+                    primogenitor.checkFormula(text, variables);
+                    valid++;
+                } catch (IllegalArgumentException e) {
+                    expected = e.getClass().getName() + " " + e.getMessage();
+                }
+                try {
+                    editor.edit(offset, removed.length(), inserted);
+                } catch (IllegalArgumentException e) {
+                    actual = e.getClass().getName() + " " + e.getMessage();
+                }
+                assertEquals(text, editor.getText());
+                assertEquals("\"" + previous + "\" to \"" + text + "\"", expected, actual);
+                assertEquals(expected == null, editor.isValid());
+                if (!undo && expected == null)
+                    break;
+                String restored = removed;
+                removed = inserted;
+                inserted = restored;
+            }
+        }
+        if (valid < 1000)
+            fail("only " + valid + " valid formulas");
+    }
+
+    @Test
+    public void testMetrics() {
+        System.out.println("testMetrics");
+        FormulaMetrics metrics = new FormulaMetrics();
+        RuntimeFormula.setListener(metrics);
+        try {
+            RuntimeFormula primogenitor = new RuntimeFormula();
+            primogenitor.setFormula("sqrt(x)+1/y", new String[]{"x", "y"});
+            try {
+                primogenitor.setFormula("sqrt(x", new String[]{"x"});
+                fail("sqrt(x is valid");
+            } catch (UnevenParenthesesException | UnexpectedEOLException | UnexpectedTokenException e) {
+            }
+            primogenitor.setFormula("sqrt(x)+1/y", new String[]{"x", "y"});
+            primogenitor.putVar("x", -4);
+            try {
+                primogenitor.calcValue();
+                fail("y has no value");
+            } catch (UnexpectedVariableException e) {
+            }
+            primogenitor.putVar("y", 0);
+            for (int i = 0; i < 100; i++)
+                assertEquals(0, primogenitor.calcValue(), 0);
+            assertEquals(3, metrics.getParses());
+            assertEquals(101, metrics.getEvaluations());
+            // sqrt(-4) was also caught by the evaluation without y
+            assertEquals(201, metrics.getCaughtExceptions());
+            assertEquals(2, metrics.getFailures().size());
+            assertEquals(Long.valueOf(1), metrics.getFailures().get("UnexpectedVariableException"));
+            assertEquals(2, metrics.getParseLatency().getCount());
+            LatencyHistogram latency = metrics.getEvaluationLatency("sqrt(x)+1/y");
+            assertEquals(100, latency.getCount());
+            if (latency.getPercentile(50) > latency.getPercentile(99) || latency.getPercentile(99) > latency.getMax())
+                fail("the percentiles of " + latency + " are not ordered");
+            System.out.println(metrics);
+
+            LatencyHistogram histogram = new LatencyHistogram();
+            for (long nanos = 1; nanos <= 1000000; nanos++)
+                histogram.record(nanos);
+            for (double percentile : new double[]{1, 50, 90, 99, 99.9}) {
+                long exact = Math.round(percentile * 10000), estimate = histogram.getPercentile(percentile);
+                if (estimate < exact || estimate > exact * 1.125)
+                    fail("p" + percentile + " is " + estimate + " instead of " + exact);
+            }
+            assertEquals(1000000, histogram.getPercentile(100));
+        } catch (UnexpectedCharacterException | UnexpectedTokenException | UnevenParenthesesException | UnexpectedVariableException | UnexpectedEOLException e) {
+            fail("the metrics raise an exception");
+        } finally {
+            RuntimeFormula.setListener(FormulaListener.NONE);
+        }
+    }
+
+    @Test
+    public void testFormulaFuzzer() {
+        System.out.println("testFormulaFuzzer");
+        try {
+            // Found by the fuzzer: negative operators in a row
+            RuntimeFormula primogenitor = new RuntimeFormula();
+            for (String[] formula : new String[][]{{"--2", "2"}, {"2---1", "1"}, {"3*--2", "6"}, {"2^--3", "8"}, {"-(--1)", "-1"}}) {
+                primogenitor.setFormula(formula[0], new String[]{"x"});
+                assertEquals(formula[0], Double.parseDouble(formula[1]), primogenitor.calcValue(), 0);
+            }
+        } catch (UnexpectedCharacterException | UnexpectedTokenException | UnevenParenthesesException | UnexpectedVariableException | UnexpectedEOLException e) {
+            fail("negative operators raise an exception");
+        }
+        FormulaFuzzer.Report report = new FormulaFuzzer(42).run(300, 20, FormulaFuzzer.Engine.values());
+        System.out.print(report);
+        assertEquals(300, report.getFormulas());
+        if (!report.getMismatches().isEmpty())
+            fail(report.getMismatches().get(0).toString());
+        for (double throughput : report.getThroughput().values())
+            if (throughput <= 0)
+                fail("an engine wasn't measured");
+    }
+
+    @Test
+    public void testRowSelector() {
+        System.out.println("testRowSelector");
+        try {
+            int rows = 100000;
+            java.util.Random random = new java.util.Random(7);
+            double[] x = new double[rows], y = new double[rows];
+            for (int i = 0; i < rows; i++) {
+                x[i] = Math.floor(random.nextDouble() * 100) / 100;
+                y[i] = random.nextDouble() - 0.5;
+            }
+            y[3] = Double.NaN;
+            Dataset dataset = new Dataset(new String[]{"x", "y"}, new double[][]{x, y});
+            RuntimeFormula primogenitor = new RuntimeFormula();
+            primogenitor.putVar("a", 0.25);
+
+            primogenitor.setFormula("(x>a)*(y<x^2)*(sqrt(y+0.3)>0.1)", new String[]{"x", "y", "a"});
+            int[] selected = new RowSelector(primogenitor).filter(dataset);
+            java.util.List<Integer> expected = new java.util.ArrayList<Integer>();
+            for (int i = 0; i < rows; i++) {
+                primogenitor.putVar("x", x[i]);
+                primogenitor.putVar("y", y[i]);
+                if (primogenitor.calcValue() == 1)
+                    expected.add(i);
+            }
+            primogenitor.getAllVars().remove("x");
+            primogenitor.getAllVars().remove("y");
+            assertEquals(expected.size(), selected.length);
+            for (int i = 0; i < selected.length; i++)
+                assertEquals(expected.get(i).intValue(), selected[i]);
+
+            primogenitor.setFormula("x-y*a", new String[]{"x", "y", "a"});
+            RowSelector score = new RowSelector(primogenitor);
+            Integer[] order = new Integer[rows];
+            for (int i = 0; i < rows; i++)
+                order[i] = i;
+            java.util.Arrays.sort(order, (i, j) -> Double.compare(x[j] - y[j] * 0.25, x[i] - y[i] * 0.25));
+            int[] top = score.top(dataset, 50);
+            assertEquals(50, top.length);
+            for (int i = 0, j = 0; i < top.length; i++, j++) {
+                if (order[j] == 3)
+                    j++;
+                assertEquals(order[j].intValue(), top[i]);
+            }
+            assertEquals(rows - 1, score.top(dataset, rows + 10).length);
+            assertEquals(0, score.top(dataset, 0).length);
+
+            primogenitor.setFormula("x*b", new String[]{"x", "b"});
+            try {
+                new RowSelector(primogenitor).filter(dataset);
+                fail("b has no value");
+            } catch (UnexpectedVariableException e) {
+            }
+        } catch (UnexpectedCharacterException | UnexpectedTokenException | UnevenParenthesesException | UnexpectedVariableException | UnexpectedEOLException e) {
+            fail("the row selection raises an exception");
+        }
+    }
+
+    @Test
+    public void testAggregator() {
+        System.out.println("testAggregator");
+        try {
+            int rows = 1000000;
+            java.util.Random random = new java.util.Random(11);
+            double[] x = new double[rows];
+            for (int i = 0; i < rows; i++)
+                x[i] = random.nextDouble();
+            x[5] = -1;
+            Dataset dataset = new Dataset(new String[]{"x"}, new double[][]{x});
+            RuntimeFormula primogenitor = new RuntimeFormula();
+            primogenitor.putVar("a", 1e8);
+            primogenitor.setCatchesArithmeticExceptions(false);
+            primogenitor.setFormula("sqrt(x)+a", new String[]{"x", "a"});
+
+            // Exact sum and two-pass variance
+            java.math.BigDecimal exact = java.math.BigDecimal.ZERO;
+            double[] values = new double[rows - 1];
+            for (int i = 0, j = 0; i < rows; i++)
+                if (i != 5)
+                    exact = exact.add(new java.math.BigDecimal(values[j++] = Math.sqrt(x[i]) + 1e8));
+            double mean = exact.doubleValue() / values.length, squares = 0;
+            for (double value : values)
+                squares += (value - mean) * (value - mean);
+
+            Aggregator aggregator = new Aggregator(primogenitor, 1e8, 1e8 + 1, 4);
+            Aggregate aggregate = aggregator.aggregate(dataset);
+            System.out.println(aggregate);
+            assertEquals(rows - 1, aggregate.getCount());
+            assertEquals(1, aggregate.getNaNs());
+            assertEquals(exact.doubleValue(), aggregate.getSum(), 0);
+            assertEquals(mean, aggregate.getMean(), 1e-7);
+            assertEquals(squares / values.length, aggregate.getVariance(), 1e-6);
+            assertEquals(1e8, aggregate.getMin(), 1e-3);
+            assertEquals(1e8 + 1, aggregate.getMax(), 1e-3);
+            long inBins = 0;
+            for (long bin : aggregate.getHistogram())
+                inBins += bin;
+            assertEquals(rows - 1, inBins + aggregate.getBelow() + aggregate.getAbove());
+            // sqrt is uniform on [0, 1] with density 2x
+            assertEquals(rows / 16.0, aggregate.getHistogram()[0], rows / 100.0);
+
+            String[] columns = {"y", "x"};
+            java.util.List<double[]> list = new java.util.ArrayList<double[]>();
+            for (int i = 0; i < rows; i++)
+                list.add(new double[]{0, x[i]});
+            Aggregate sequential = aggregator.aggregate(columns, list.iterator());
+            Aggregate parallel = aggregator.aggregate(columns, list.parallelStream());
+            for (Aggregate other : new Aggregate[]{sequential, parallel}) {
+                assertEquals(aggregate.getCount(), other.getCount());
+                assertEquals(aggregate.getSum(), other.getSum(), 0);
+                assertEquals(aggregate.getVariance(), other.getVariance(), 1e-9);
+                assertEquals(aggregate.getMax(), other.getMax(), 0);
+                assertTrue(java.util.Arrays.equals(aggregate.getHistogram(), other.getHistogram()));
+            }
+
+            Aggregate empty = new Aggregator(primogenitor).aggregate(columns, new java.util.ArrayList<double[]>().iterator());
+            assertEquals(0, empty.getCount());
+            assertTrue(Double.isNaN(empty.getMean()));
+            try {
+                aggregate.merge(empty);
+                fail("the histograms are different");
+            } catch (IllegalArgumentException e) {
+            }
+            try {
+                aggregator.aggregate(new String[]{"a"}, list.iterator());
+                fail("x has no value");
+            } catch (UnexpectedVariableException e) {
+            }
+        } catch (UnexpectedCharacterException | UnexpectedTokenException | UnevenParenthesesException | UnexpectedVariableException | UnexpectedEOLException e) {
+            fail("the aggregation raises an exception");
+        }
+    }
+
+    @Test
+    public void testResultCache() {
+        System.out.println("testResultCache");
+        try {
+            RuntimeFormula primogenitor = new RuntimeFormula(), uncached = new RuntimeFormula();
+            primogenitor.setFormula("sum(i,300,x*i^2)/y", new String[]{"x", "y", "i"});
+            uncached.setFormula("sum(i,300,x*i^2)/y", new String[]{"x", "y", "i"});
+            primogenitor.setCacheCapacity(64);
+            assertNull(primogenitor.getResultCache());
+            java.util.Random random = new java.util.Random(3);
+            for (int n = 0; n < 2000; n++) {
+                // 20 configurations repeated, and -0 and 0 told apart
+                double x = random.nextInt(10), y = random.nextBoolean() ? 0.0 : -0.0;
+                if (random.nextInt(10) > 0)
+                    y = 1 + random.nextInt(2);
+                primogenitor.putVar("x", x);
+                primogenitor.putVar("y", y);
+                uncached.putVar("x", x);
+                uncached.putVar("y", y);
+                assertEquals(uncached.calcValue(), primogenitor.calcValue(), 0);
+            }
+            ResultCache cache = primogenitor.getResultCache();
+            System.out.println(cache);
+            assertEquals(2000, cache.getHits() + cache.getMisses());
+            assertEquals(cache.size(), cache.getMisses());
+            assertEquals(0, cache.getEvictions());
+            if (cache.getHitRate() < 0.9)
+                fail("hit rate of " + cache.getHitRate());
+            assertFalse(primogenitor.getAllVars().containsKey("i"));
+
+            // The cache is bounded, and started again for another mode
+            primogenitor.setCatchesArithmeticExceptions(false);
+            primogenitor.setCacheCapacity(8);
+            for (int n = 0; n < 100; n++) {
+                primogenitor.putVar("x", n);
+                primogenitor.calcValue();
+            }
+            cache = primogenitor.getResultCache();
+            assertEquals(8, cache.getCapacity());
+            assertEquals(100, cache.getMisses());
+            assertEquals(8, cache.size());
+            assertEquals(92, cache.getEvictions());
+
+            // Random values are never cached
+            primogenitor.setFormula("x+r", new String[]{"x"});
+            primogenitor.putVar("x", 1);
+            if (primogenitor.calcValue() == primogenitor.calcValue())
+                fail("the random value was cached");
+            assertNull(primogenitor.getResultCache());
+            FunctionRegistry functions = new FunctionRegistry();
+            functions.register("noise", x -> x + Math.random(), false);
+            primogenitor.setFunctionRegistry(functions);
+            primogenitor.setFormula("noise(x)", new String[]{"x"});
+            if (primogenitor.calcValue() == primogenitor.calcValue())
+                fail("the impure function was cached");
+
+            // Bound formulas read their key from the slots
+            primogenitor.setFormula("x*y", new String[]{"x", "y"});
+            primogenitor.putVar("y", 3);
+            BoundFormula bound = primogenitor.bind("x");
+            for (int n = 0; n < 10; n++)
+                assertEquals(3 * (n % 2), bound.calcValue(n % 2), 0);
+        } catch (UnexpectedCharacterException | UnexpectedTokenException | UnevenParenthesesException | UnexpectedVariableException | UnexpectedEOLException e) {
+            fail("the cache raises an exception");
+        }
+    }
+
+    @Test
+    public void testSeries() {
+        System.out.println("testSeries");
+        try {
+            RuntimeFormula lag = new RuntimeFormula(), mean = new RuntimeFormula(), max = new RuntimeFormula(), ema = new RuntimeFormula();
+            lag.setFormula("lag(x,3)", new String[]{"x"});
+            mean.setFormula("rollmean(2*x,5)", new String[]{"x"});
+            max.setFormula("rollmax(x,4)", new String[]{"x"});
+            ema.setFormula("ema(x,0.25)+1", new String[]{"x"});
+            // Once compiled on the background thread, the formula steps the same series as its tree
+            max.setCompilationThreshold(10);
+            ema.setCacheCapacity(16);
+            assertEquals("rollmax(x,4)", max.formulaToString(true));
+            java.util.Random random = new java.util.Random(5);
+            double[] x = new double[1000];
+            double average = 0;
+            double[][] saved = null;
+            for (int row = 0; row < x.length; row++) {
+                x[row] = row % 97 == 50 ? Double.NaN : random.nextGaussian();
+                for (RuntimeFormula formula : new RuntimeFormula[]{lag, mean, max, ema})
+                    formula.putVar("x", x[row]);
+                if (row == 500)
+                    saved = max.saveSeries();
+                assertEquals(row < 3 ? Double.NaN : x[row - 3], lag.calcValue(), 0);
+                double sum = 0, highest = Double.NEGATIVE_INFINITY;
+                for (int i = Math.max(0, row - 4); i <= row; i++)
+                    sum += 2 * x[i];
+                for (int i = Math.max(0, row - 3); i <= row; i++)
+                    highest = Math.max(highest, x[i]);
+                assertEquals(sum / Math.min(row + 1, 5), mean.calcValue(), 1e-12);
+                assertEquals(highest, max.calcValue(), 0);
+                average = row == 0 ? x[row] : average + 0.25 * (x[row] - average);
+                if (row < 50)
+                    assertEquals(average + 1, ema.calcValue(), 1e-12);
+            }
+
+            // The saved state gives the same values again
+            max.restoreSeries(saved);
+            for (int row = 500; row < 600; row++) {
+                double highest = Double.NEGATIVE_INFINITY;
+                for (int i = Math.max(0, row - 3); i <= row; i++)
+                    highest = Math.max(highest, x[i]);
+                max.putVar("x", x[row]);
+                assertEquals(highest, max.calcValue(), 0);
+            }
+            lag.resetSeries();
+            assertTrue(Double.isNaN(lag.calcValue()));
+            assertEquals(0, lag.copy().saveSeries()[0][0], 0);
+            assertNull(ema.getResultCache());
+
+            for (String formula : new String[]{"rollmean(x,y)", "lag(x,0)", "ema(x,2)", "rollmax(x,2.5)"}) {
+                try {
+                    max.setFormula(formula, new String[]{"x", "y"});
+                    fail(formula + " is not valid");
+                } catch (UnexpectedTokenException e) {
+                }
+            }
+            try {
+                max.setFormula("lag(x)", new String[]{"x"});
+                fail("lag has two arguments");
+            } catch (UnexpectedTokenException e) {
+            }
+            // checkFormula refuses the same formulas as setFormula
+            for (String formula : new String[]{"lag(x,y)", "rollmean(x,y+1)", "lag(x,0)", "ema(x,2)", "rollmax(x,2.5)", "lag(x,-1)"}) {
+                try {
+                    max.checkFormula(formula, new String[]{"x", "y"});
+                    fail(formula + " is not valid");
+                } catch (UnexpectedTokenException e) {
+                }
+            }
+            max.checkFormula("lag(sin(x),2)*rollmax((x+1),3)", new String[]{"x"});
+
+            // The state of a series can't be shared
+            max.setFormula("rollmean(x,3)", new String[]{"x"});
+            try {
+                max.compile();
+                fail("a series is compiled to a shared formula");
+            } catch (UnexpectedTokenException e) {
+            }
+            try {
+                new FormulaStore().acquire("rollmean(x,3)", new String[]{"x"});
+                fail("a series is shared");
+            } catch (UnexpectedTokenException e) {
+            }
+
+            // A formula too deep for the tree is compiled with its series
+            StringBuilder deep = new StringBuilder("lag(x,1)");
+            for (int i = 0; i < 2000; i++)
+                deep.append("+x");
+            lag.setFormula(deep.toString(), new String[]{"x"});
+            for (int row = 0; row < 10; row++) {
+                lag.putVar("x", row);
+                assertEquals(row == 0 ? Double.NaN : row - 1 + 2000.0 * row, lag.calcValue(), 0);
+            }
+
+            // Each function steps the series of its operand once per row, in the tree and compiled
+            for (String function : new String[]{"sqrt", "log", "ln", "sin", "cos", "tan", "sinh", "cosh", "tanh", "asin", "acos", "atan", "abs", "ceil", "floor", "-", "!"}) {
+                RuntimeFormula series = new RuntimeFormula(), reference = new RuntimeFormula();
+                series.setFormula(function + "(lag(x,1))", new String[]{"x"});
+                series.setCompilationThreshold(10);
+                reference.setFormula(function + "(x)", new String[]{"x"});
+                for (int row = 0; row < 300; row++) {
+                    series.putVar("x", 0.1 * (row % 9 + 1));
+                    reference.putVar("x", row == 0 ? Double.NaN : 0.1 * ((row - 1) % 9 + 1));
+                    assertEquals(function + " on row " + row, reference.calcValue(), series.calcValue(), 0);
+                }
+            }
+            // A series divided by 0 steps too
+            for (String formula : new String[]{"lag(x,1)/(x>0.15)", "lag(x,1)%(x>0.15)"}) {
+                RuntimeFormula series = new RuntimeFormula();
+                series.setFormula(formula, new String[]{"x"});
+                series.setCompilationThreshold(10);
+                for (int row = 0; row < 300; row++) {
+                    series.putVar("x", row % 2 == 0 ? 0.1 : 0.2);
+                    // On the even rows the divisor is 0, on the odd ones lag(x,1) is 0.1
+                    assertEquals(formula + " on row " + row, row % 2 == 0 ? 0 : 0.1, series.calcValue(), 1e-12);
+                }
+            }
+        } catch (UnexpectedCharacterException | UnexpectedTokenException | UnevenParenthesesException | UnexpectedVariableException | UnexpectedEOLException e) {
+            fail("the series raise an exception");
+        }
+    }
+
+    @Test
+    public void testFormulaGraph() {
+        System.out.println("testFormulaGraph");
+        try {
+            FormulaGraph graph = new FormulaGraph();
+            graph.setInput("price", 10);
+            graph.setInput("rate", 0.2);
+            graph.setInput("qty", 3);
+            graph.define("net", "price*qty");
+            graph.define("tax", "net*rate");
+            graph.define("total", "net+tax");
+            graph.define("sign", "(price>0)+qty*0");
+            graph.define("flag", "sign*100");
+            assertEquals(5, graph.recalculate());
+            assertEquals(36, graph.getValue("total"), 1e-12);
+            assertEquals(0, graph.recalculate());
+
+            // Only the formulas reading rate are computed again
+            graph.setInput("rate", 0.5);
+            assertEquals(2, graph.recalculate());
+            assertEquals(45, graph.getValue("total"), 1e-12);
+            // The value of sign doesn't change, so flag isn't computed again
+            graph.setInput("qty", 4);
+            assertEquals(4, graph.recalculate());
+            assertEquals(60, graph.getValue("total"), 1e-12);
+            assertEquals(new java.util.TreeSet<String>(java.util.Arrays.asList("net", "tax", "total", "sign", "flag")), graph.getDependents("qty"));
+
+            // A new definition computes its readers again
+            graph.define("net", "price*qty-1");
+            assertEquals(3, graph.recalculate());
+            assertEquals(58.5, graph.getValue("total"), 1e-12);
+            for (String[] cycle : new String[][]{{"net", "total*2"}, {"tax", "tax+1"}}) {
+                try {
+                    graph.define(cycle[0], cycle[1]);
+                    fail(cycle[1] + " makes a cycle");
+                } catch (IllegalArgumentException e) {
+                    if (e instanceof UnexpectedVariableException)
+                        fail(e.toString());
+                    System.out.println(e.getMessage());
+                }
+            }
+            assertEquals(58.5, graph.getValue("total"), 1e-12);
+            try {
+                graph.define("loss", "price*unknown");
+                fail("unknown is not defined");
+            } catch (UnexpectedVariableException e) {
+            }
+            try {
+                graph.remove("net");
+                fail("tax reads net");
+            } catch (IllegalArgumentException e) {
+            }
+
+            // A wide and deep graph, computed in parallel layers
+            FormulaGraph wide = new FormulaGraph();
+            wide.setInput("a", 1);
+            for (int i = 0; i < 800; i++)
+                wide.define("n" + i, i < 100 ? "a+" + i : "n" + (i - 100) + "*2+n" + (i % 100));
+            assertEquals(800, wide.recalculate());
+            assertEquals(8, wide.getDepth());
+            double[] expected = new double[800];
+            for (int i = 0; i < 800; i++)
+                expected[i] = i < 100 ? 1 + i : expected[i - 100] * 2 + expected[i % 100];
+            for (int i = 0; i < 800; i += 37)
+                assertEquals(expected[i], wide.getValue("n" + i), 0);
+            wide.define("n5", "a+5.5");
+            assertEquals(8, wide.recalculate());
+        } catch (UnexpectedCharacterException | UnexpectedTokenException | UnevenParenthesesException | UnexpectedVariableException | UnexpectedEOLException e) {
+            fail("the graph raises an exception");
+        }
+    }
+
+    @Test
+    public void testFormulaServer() throws Exception {
+        System.out.println("testFormulaServer");
+        try (FormulaServer server = new FormulaServer(0)) {
+            server.start();
+            java.util.concurrent.ExecutorService clients = java.util.concurrent.Executors.newFixedThreadPool(8);
+            java.util.List<java.util.concurrent.Future<String>> answers = new java.util.ArrayList<java.util.concurrent.Future<String>>();
+            for (int c = 0; c < 8; c++) {
+                final int client = c;
+                answers.add(clients.submit(() -> {
+                    try (java.net.Socket socket = new java.net.Socket(java.net.InetAddress.getLoopbackAddress(), server.getPort());
+                         java.io.BufferedReader in = new java.io.BufferedReader(new java.io.InputStreamReader(socket.getInputStream(), "UTF-8"));
+                         java.io.PrintWriter out = new java.io.PrintWriter(new java.io.OutputStreamWriter(socket.getOutputStream(), "UTF-8"))) {
+                        for (int request = 0; request < 20; request++) {
+                            // Larger than a chunk for the first request
+                            int rows = request == 0 ? 10000 : 50;
+                            StringBuilder text = new StringBuilder("EVAL " + rows + " y,x x*2+y^2\n");
+                            for (int row = 0; row < rows; row++)
+                                text.append(row).append(',').append(client).append('\n');
+                            out.print(text);
+                            out.flush();
+                            if (!in.readLine().equals("OK " + rows))
+                                return "no OK";
+                            for (int row = 0; row < rows; row++) {
+                                double value = Double.parseDouble(in.readLine());
+                                if (value != client * 2 + (double) row * row)
+                                    return "row " + row + " of client " + client + " gives " + value;
+                            }
+                            if (!in.readLine().equals("END"))
+                                return "no END";
+                        }
+                        out.print("PARSE x,y,z sqrt(x)+z\nEVAL 2 x,y x+w\n1,2\n3,4\nEVAL 2 x x+1\n1\n1,2\nEVAL 1 x lag(x,1)\n5\nQUIT\n");
+                        out.flush();
+                        return in.readLine() + "|" + in.readLine() + "|" + in.readLine() + "|" + in.readLine() + "|" + in.readLine() + "|" + in.readLine() + "|" + in.readLine().split(" ")[0] + "|" + in.readLine();
+                    }
+                }));
+            }
+            for (java.util.concurrent.Future<String> answer : answers)
+                assertEquals("OK x,z|ERROR UnexpectedVariableException Variable : w|OK 2|2.0|NaN|END|ERROR|null", answer.get());
+            clients.shutdown();
+            System.out.println(server);
+            assertEquals(8 * 24, server.getRequests());
+            assertEquals(8 * (10000 + 19 * 50 + 2), server.getRows());
+            if (server.getBatches() > server.getRows())
+                fail("more batches than rows");
+            assertEquals(0, server.getRejected());
+        }
+    }
+
+    @Test
+    public void testEvaluationBudget() {
+        System.out.println("testEvaluationBudget");
+        try {
+            RuntimeFormula formula = new RuntimeFormula();
+            try {
+                formula.estimateCost();
+                fail("a formula without tree has a cost");
+            } catch (IllegalStateException e) {
+            }
+            formula.setFormula("sum(i,1000,sin(x)*i)", new String[]{"x"});
+            formula.putVar("x", 0.5);
+            FormulaCost cost = formula.estimateCost();
+            System.out.println(cost);
+            assertEquals(6, cost.getNodes());
+            assertEquals(1, cost.getLoops());
+            assertEquals(1000, cost.getIterations(), 0);
+            assertEquals(2 + 1000 * (3 + FormulaCost.TRANSCENDENTAL + 1), cost.getOperations(), 0);
+            double expected = formula.calcValue();
+            formula.setEvaluationBudget((long) cost.getOperations(), Long.MAX_VALUE);
+            assertEquals(expected, formula.calcValue(), 0);
+            formula.setEvaluationBudget((long) cost.getOperations() - 1, Long.MAX_VALUE);
+            try {
+                formula.calcValue();
+                fail("the estimate exceeds the budget");
+            } catch (BudgetExceededException e) {
+            }
+
+            formula.setFormula("sum(i,10,sum(j,5,j))", new String[]{"x"});
+            cost = formula.estimateCost();
+            assertEquals(2 + 10 * (1 + 2 + 5 * 2), cost.getOperations(), 0);
+            assertEquals(10 * (1 + 5), cost.getIterations(), 0);
+
+            formula.setFormula("sum(i,x,i)", new String[]{"x"});
+            assertFalse(formula.estimateCost().isBounded());
+            formula.setEvaluationBudget(1000, Long.MAX_VALUE);
+            formula.putVar("x", 100);
+            assertEquals(5050, formula.calcValue(), 0);
+            formula.putVar("x", 1000);
+            try {
+                formula.calcValue();
+                fail("the loop exceeds the budget");
+            } catch (BudgetExceededException e) {
+            }
+            assertFalse(formula.getAllVars().containsKey("i"));
+            formula.putVar("x", 10);
+            assertEquals(55, formula.calcValue(), 0);
+            assertEquals(1000, formula.copy().getMaxOperations());
+
+            formula.setFormula("sum(i,x,sum(j,x,i*j))", new String[]{"x"});
+            formula.putVar("x", 100000);
+            formula.setEvaluationBudget(Long.MAX_VALUE, 50000000L);
+            long start = System.nanoTime();
+            try {
+                formula.calcValue();
+                fail("the loop exceeds the deadline");
+            } catch (BudgetExceededException e) {
+            }
+            if (System.nanoTime() - start > 5000000000L)
+                fail("the deadline is not checked");
+            assertFalse(formula.getAllVars().containsKey("i"));
+            assertFalse(formula.getAllVars().containsKey("j"));
+            formula.setEvaluationBudget(Long.MAX_VALUE, Long.MAX_VALUE);
+            formula.putVar("x", 10);
+            assertEquals(55 * 55, formula.calcValue(), 0);
+
+            // A formula too deep for the tree spends its budget in its CompactFormula
+            StringBuilder deep = new StringBuilder("sum(i,x,i)");
+            for (int i = 0; i < 1500; i++)
+                deep.append("+y");
+            formula.setFormula(deep.toString(), new String[]{"x", "y"});
+            formula.putVar("y", 1);
+            formula.putVar("x", 100);
+            formula.setEvaluationBudget(10000, Long.MAX_VALUE);
+            assertEquals(5050 + 1500, formula.calcValue(), 0);
+            formula.putVar("x", 5000);
+            try {
+                formula.calcValue();
+                fail("the deep loop exceeds the budget");
+            } catch (BudgetExceededException e) {
+            }
+            formula.putVar("x", 3e9);
+            formula.setEvaluationBudget(Long.MAX_VALUE, 50000000L);
+            start = System.nanoTime();
+            try {
+                formula.calcValue();
+                fail("the deep loop exceeds the deadline");
+            } catch (BudgetExceededException e) {
+            }
+            if (System.nanoTime() - start > 5000000000L)
+                fail("the deadline of the deep loop is not checked");
+        } catch (UnexpectedCharacterException | UnexpectedTokenException | UnevenParenthesesException | UnexpectedVariableException | UnexpectedEOLException e) {
+            fail("the budget raises an exception");
+        }
+    }
+
+    @Test
+    public void testFormulaHandle() throws Exception {
+        System.out.println("testFormulaHandle");
+        try {
+            final FormulaHandle handle = new FormulaHandle("x*1", new String[]{"x"});
+            assertEquals(1, handle.current().getNumber());
+            final java.util.Map<String, Double> values = new java.util.HashMap<String, Double>();
+            values.put("x", 3.0);
+            assertEquals(3, handle.calcValue(values), 0);
+
+            // Version n computes x*n, so that a value tells the Version which computed it
+            final java.util.concurrent.atomic.AtomicBoolean stop = new java.util.concurrent.atomic.AtomicBoolean();
+            java.util.concurrent.ExecutorService readers = java.util.concurrent.Executors.newFixedThreadPool(4);
+            java.util.List<java.util.concurrent.Future<String>> results = new java.util.ArrayList<java.util.concurrent.Future<String>>();
+            for (int r = 0; r < 4; r++)
+                results.add(readers.submit(() -> {
+                    long last = 0, reads = 0;
+                    while (!stop.get() || reads == 0) {
+                        FormulaHandle.Version version = handle.current();
+                        double value = version.calcValue(values);
+                        if (value != 3.0 * version.getNumber())
+                            return "version " + version.getNumber() + " gives " + value;
+                        if (version.getNumber() < last)
+                            return "version " + version.getNumber() + " after " + last;
+                        last = version.getNumber();
+                        reads++;
+                    }
+                    return "";
+                }));
+            for (int n = 2; n <= 200; n++) {
+                assertEquals(n, handle.update("x*" + n, new String[]{"x"}).getNumber());
+                try {
+                    handle.update("x*(" + n, new String[]{"x"});
+                    fail("an invalid formula is published");
+                } catch (UnevenParenthesesException e) {
+                }
+                Thread.yield();
+            }
+            stop.set(true);
+            for (java.util.concurrent.Future<String> result : results)
+                assertEquals("", result.get());
+            readers.shutdown();
+
+            assertEquals(200, handle.current().getNumber());
+            assertEquals(8, handle.getHistory().size());
+            assertEquals(199, handle.rollback().getNumber());
+            assertEquals(3 * 199, handle.calcValue(values), 0);
+            assertNull(handle.update(200, "x+1", new String[]{"x"}));
+            FormulaHandle.Version version = handle.update(199, "x+1", new String[]{"x"});
+            assertEquals(201, version.getNumber());
+            assertEquals(4, handle.calcValue(values), 0);
+            assertEquals(199, handle.getHistory().get(0).getNumber());
+            handle.setHistorySize(0);
+            try {
+                handle.rollback();
+                fail("a rollback without history");
+            } catch (IllegalStateException e) {
+            }
+            values.clear();
+            try {
+                handle.calcValue(values);
+                fail("a variable without value");
+            } catch (UnexpectedVariableException e) {
+            }
+        } catch (UnexpectedCharacterException | UnexpectedTokenException | UnevenParenthesesException | UnexpectedEOLException e) {
+            fail("the handle raises an exception");
+        }
+    }
+
 }
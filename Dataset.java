@@ -0,0 +1,154 @@
+package darformula;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ *
+ * A table of rows stored by column: each named column is an array of
+ * doubles, the value of a variable for each row. The arrays are not copied,
+ * so changing them changes the Dataset.
+ *
+ */
+
+public class Dataset
+{
+	private final String[] names;
+	private final double[][] columns;
+	private final int size;
+
+	/**
+	 * @param columns the values of each column, all of the same length
+	 */
+
+	public Dataset(String[] names, double[][] columns)
+	{
+		if(names.length!=columns.length)
+			throw new IllegalArgumentException(names.length+" names for "+columns.length+" columns");
+		this.size=columns.length==0?0:columns[0].length;
+		for(int i=0;i<names.length;i++)
+		{
+			if(columns[i].length!=size)
+				throw new IllegalArgumentException("Column "+names[i]+" has "+columns[i].length+" rows instead of "+size);
+			for(int j=0;j<i;j++)
+				if(names[j].equals(names[i]))
+					throw new IllegalArgumentException("Column named twice : "+names[i]);
+		}
+		this.names=names.clone();
+		this.columns=columns.clone();
+	}
+
+	/**
+	 * @return the number of rows
+	 */
+
+	public int size()
+	{
+		return size;
+	}
+
+	public String[] getNames()
+	{
+		return names.clone();
+	}
+
+	/**
+	 * @return the index of the column named name, or -1
+	 */
+
+	public int indexOf(String name)
+	{
+		for(int i=0;i<names.length;i++)
+			if(names[i].equals(name))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * @return the values of the column named name, or null if there is none
+	 */
+
+	public double[] column(String name)
+	{
+		int index=indexOf(name);
+		return index<0?null:columns[index];
+	}
+
+	/**
+	 * @return a Dataset with a copy of the rows at these indices, in the same
+	 * order
+	 */
+
+	public Dataset select(int[] rows)
+	{
+		double[][] selected=new double[columns.length][rows.length];
+		for(int c=0;c<columns.length;c++)
+			for(int i=0;i<rows.length;i++)
+				selected[c][i]=columns[c][rows[i]];
+		return new Dataset(names, selected);
+	}
+
+	/**
+	 * @param values the values of the variables which are not columns
+	 * @throws UnexpectedVariableException if a variable of formula is
+	 * neither a column nor in values
+	 */
+
+	Input bind(CompactFormula formula, Map<String, Double> values) throws UnexpectedVariableException
+	{
+		return new Input(formula, this, values);
+	}
+
+	/**
+	 *
+	 * A compiled formula with the source of each of its variables: a column of
+	 * the Dataset, or its value in the formula
+	 */
+
+	static class Input
+	{
+		final CompactFormula formula;
+		// The column of each variable, or null if it is constant
+		final double[][] columns;
+		final double[] constants;
+
+		Input(CompactFormula formula, Dataset dataset, Map<String, Double> values) throws UnexpectedVariableException
+		{
+			this.formula=formula;
+			String[] variables=formula.getVariables();
+			columns=new double[variables.length][];
+			constants=new double[variables.length];
+			for(int i=0;i<variables.length;i++)
+			{
+				columns[i]=dataset.column(variables[i]);
+				if(columns[i]==null)
+				{
+					Double value=values.get(variables[i]);
+					if(value==null)
+						throw new UnexpectedVariableException("Variable : "+variables[i]);
+					constants[i]=value;
+				}
+			}
+		}
+
+		double[] newFrame()
+		{
+			double[] frame=formula.newFrame();
+			System.arraycopy(constants, 0, frame, 0, constants.length);
+			return frame;
+		}
+
+		double calcValue(double[] frame, int row)
+		{
+			for(int i=0;i<columns.length;i++)
+				if(columns[i]!=null)
+					frame[i]=columns[i][row];
+			return formula.calcValue(frame);
+		}
+	}
+
+	public String toString()
+	{
+		return size+" rows of "+Arrays.toString(names);
+	}
+}
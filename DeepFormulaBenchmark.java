@@ -0,0 +1,64 @@
+package darformula;
+
+/**
+ *
+ * Measures the parsing and the evaluation of machine-generated formulas that
+ * are too deep to be handled by recursion: a left-deep chain of operands
+ * x+1-x+2-..., and the same chain nested in parentheses x+(1-(x+(2-...))).
+ *
+ * Usage: DeepFormulaBenchmark [operands] [evaluations]
+ *
+ */
+
+public class DeepFormulaBenchmark
+{
+	static public void main(String[] args) throws Exception
+	{
+		int operands=args.length>0?Integer.parseInt(args[0]):100000;
+		int evaluations=args.length>1?Integer.parseInt(args[1]):100;
+
+		StringBuilder chain=new StringBuilder("x");
+		StringBuilder nested=new StringBuilder("x");
+		for(int i=1;i<operands;i++)
+		{
+			String operand=i%2==0?"x":Integer.toString(i%10);
+			chain.append(i%2==0?'-':'+').append(operand);
+			nested.append(i%2==0?'-':'+').append('(').append(operand);
+		}
+		for(int i=1;i<operands;i++)
+			nested.append(')');
+
+		run("left-deep chain", chain.toString(), evaluations);
+		run("nested parentheses", nested.toString(), evaluations);
+	}
+
+	static private void run(String name, String formula, int evaluations) throws Exception
+	{
+		// The best of several rounds, the first ones warming up the JIT
+		long parsing=Long.MAX_VALUE, compiling=Long.MAX_VALUE, evaluation=Long.MAX_VALUE;
+		double value=0;
+		for(int round=0;round<5;round++)
+		{
+			RuntimeFormula runtimeFormula=new RuntimeFormula();
+			runtimeFormula.putVar("x", 0.5);
+
+			long start=System.nanoTime();
+			runtimeFormula.setFormula(formula, new String[]{"x"});
+			long parsed=System.nanoTime();
+			value=runtimeFormula.calcValue();
+			long compiled=System.nanoTime();
+			for(int i=0;i<evaluations;i++)
+				value+=runtimeFormula.calcValue()*0;
+			long evaluated=System.nanoTime();
+
+			parsing=Math.min(parsing, parsed-start);
+			compiling=Math.min(compiling, compiled-parsed);
+			evaluation=Math.min(evaluation, (evaluated-compiled)/Math.max(1, evaluations));
+		}
+
+		System.out.println(name+" of "+formula.length()+" characters, value "+value);
+		System.out.println("  parsing: "+parsing/1000000+" ms");
+		System.out.println("  first evaluation, compiling: "+compiling/1000000+" ms");
+		System.out.println("  evaluation: "+evaluation/1000+" us");
+	}
+}
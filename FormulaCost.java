@@ -0,0 +1,85 @@
+package darformula;
+
+/**
+ *
+ * The estimated cost of evaluating a formula once, counted in operations: 1
+ * for an arithmetic operation or a comparison, TRANSCENDENTAL for a call to
+ * Math.pow, Math.sin and the like or to a Java function, and each loop of sum
+ * and mult counts its operations once per iteration. The number of
+ * iterations is only known for the loops whose limit is constant; the cost
+ * of a formula with another loop is infinite.
+ *
+ */
+
+public class FormulaCost
+{
+	// Operations of a transcendental function or a Java function
+	static public final int TRANSCENDENTAL=20;
+
+	private final int nodes, loops;
+	private final double operations, iterations;
+	// The operations outside the loops, spent once by each evaluation
+	final double outside;
+
+	FormulaCost(int nodes, int loops, double operations, double iterations, double outside)
+	{
+		this.nodes=nodes;
+		this.loops=loops;
+		this.operations=operations;
+		this.iterations=iterations;
+		this.outside=outside;
+	}
+
+	/**
+	 * @return the number of elements of the tree
+	 */
+
+	public int getNodes()
+	{
+		return nodes;
+	}
+
+	/**
+	 * @return the number of sum and mult in the tree
+	 */
+
+	public int getLoops()
+	{
+		return loops;
+	}
+
+	/**
+	 * @return the estimated number of operations, or infinity if a loop
+	 * limit isn't constant
+	 */
+
+	public double getOperations()
+	{
+		return operations;
+	}
+
+	/**
+	 * @return the number of iterations of all the loops, or infinity if a
+	 * loop limit isn't constant
+	 */
+
+	public double getIterations()
+	{
+		return iterations;
+	}
+
+	/**
+	 * @return false if the number of iterations of a loop can't be known
+	 * before the evaluation
+	 */
+
+	public boolean isBounded()
+	{
+		return operations!=Double.POSITIVE_INFINITY;
+	}
+
+	public String toString()
+	{
+		return nodes+" nodes, "+loops+" loops, "+(isBounded()?operations+" operations in "+iterations+" iterations":"unbounded");
+	}
+}
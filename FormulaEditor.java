@@ -0,0 +1,322 @@
+package darformula;
+
+import java.util.Arrays;
+import java.util.List;
+
+import darformula.RuntimeFormula.FormulaTokens;
+import darformula.RuntimeFormula.Token;
+
+/**
+ *
+ * FormulaEditor checks a formula while it is being edited: it keeps the
+ * tokens of the text with their position, and for each edit re-tokenizes
+ * only from the first token touched by the edit until the new tokens line up
+ * with the old ones again.
+ *
+ * When the formula was valid before the edit, only the innermost group
+ * "( ... )" or "f( ... )" around the changed tokens is checked again, and only
+ * the new tokens are checked against the expected variables. Otherwise, or if
+ * the changed tokens don't lie in such a group, the whole formula is checked.
+ * The exceptions are the ones RuntimeFormula.checkFormula would throw for the
+ * whole text.
+ *
+ */
+
+public class FormulaEditor
+{
+	private final FunctionRegistry functions;
+	private final String[] expectedVariables;
+	private String text;
+	// The tokens of text and their span [starts[i], ends[i]), or null if text can't be tokenized
+	private FormulaTokens tokens;
+	private int[] starts, ends;
+	private IllegalArgumentException error;
+
+	public FormulaEditor(String[] expectedVariables)
+	{
+		this(FunctionRegistry.getDefault(), expectedVariables);
+	}
+
+	public FormulaEditor(FunctionRegistry functions, String[] expectedVariables)
+	{
+		this.functions=functions;
+		this.expectedVariables=expectedVariables;
+		this.text="";
+		this.starts=new int[0];
+		this.ends=new int[0];
+		this.error=new UnexpectedEOLException("Formula is empty");
+	}
+
+	public String getText()
+	{
+		return text;
+	}
+
+	/**
+	 * @return true if the text is a valid formula
+	 */
+
+	public boolean isValid()
+	{
+		return error==null;
+	}
+
+	/**
+	 * @return the exception thrown by the last check, or null if the text is
+	 * a valid formula
+	 */
+
+	public IllegalArgumentException getError()
+	{
+		return error;
+	}
+
+	/**
+	 * Replaces the whole text and checks it
+	 *
+	 * @throws the exceptions of RuntimeFormula.checkFormula
+	 */
+
+	public void setText(String text) throws UnexpectedCharacterException, UnexpectedTokenException, UnevenParenthesesException, UnexpectedVariableException, UnexpectedEOLException
+	{
+		this.text=text;
+		tokens=null;
+		try
+		{
+			if(text.length()==0)
+				throw new UnexpectedEOLException("Formula is empty");
+			FormulaTokens scanned=new FormulaTokens();
+			scanned.functions=functions;
+			int[][] spans=scan(0, scanned, null, 0, Integer.MAX_VALUE, 0, 0);
+			tokens=scanned;
+			starts=spans[0];
+			ends=spans[1];
+			checkAll();
+			error=null;
+		} catch(UnexpectedCharacterException | UnexpectedTokenException | UnevenParenthesesException | UnexpectedVariableException | UnexpectedEOLException e)
+		{
+			error=e;
+			throw e;
+		}
+	}
+
+	/**
+	 * Replaces removedLength characters of the text at offset with inserted,
+	 * and checks the new text. The text is changed even if it is not valid.
+	 *
+	 * @throws IndexOutOfBoundsException if the removed characters are not in
+	 * the text
+	 * @throws the exceptions of RuntimeFormula.checkFormula
+	 */
+
+	public void edit(int offset, int removedLength, String inserted) throws UnexpectedCharacterException, UnexpectedTokenException, UnevenParenthesesException, UnexpectedVariableException, UnexpectedEOLException
+	{
+		if(offset<0 || removedLength<0 || offset+removedLength>text.length())
+			throw new IndexOutOfBoundsException("Edit of "+removedLength+" characters at "+offset+" in a text of "+text.length()+" characters");
+		String edited=text.substring(0, offset)+inserted+text.substring(offset+removedLength);
+		if(tokens==null || edited.length()==0)
+		{
+			setText(edited);
+			return;
+		}
+		text=edited;
+		// Left null if the new text can't be tokenized
+		FormulaTokens old=tokens;
+		tokens=null;
+		int count=old.size();
+		int delta=inserted.length()-removedLength;
+		try
+		{
+			// The first token ending after offset, or at offset if it is a
+			// number, a name or a "!" which the inserted text may extend
+			int first=0;
+			while(first<count && (ends[first]<offset || (ends[first]==offset && old.get(first).level!=0 && old.get(first).level!=6)))
+				first++;
+			// A name before the edit is a variable or a call depending on
+			// the '(' which may follow it
+			if(first>0 && first<=count && (old.get(first-1).level==0 || old.get(first-1).level==6) && text.substring(ends[first-1], offset).isBlank())
+				first--;
+			int from=first<count && starts[first]<offset?starts[first]:offset;
+			FormulaTokens scanned=new FormulaTokens();
+			int[][] spans=scan(from, scanned, old, first, offset+inserted.length(), offset+removedLength, delta);
+			int kept=spans[2][0];
+			tokens=splice(old, first, kept, scanned, spans, delta);
+			if(error!=null)
+				checkAll();
+			else
+			{
+				checkChanged(old, first, kept, first+scanned.size());
+				scanned.checkVariables(expectedVariables);
+			}
+			error=null;
+		} catch(UnexpectedCharacterException | UnexpectedTokenException | UnevenParenthesesException | UnexpectedVariableException | UnexpectedEOLException e)
+		{
+			error=e;
+			throw e;
+		}
+	}
+
+	/**
+	 * Tokenizes text from index from, and stops at the first token starting
+	 * after limit at the position of an old token from kept and removedEnd
+	 * on, moved by delta
+	 *
+	 * @return the starts and the ends of the scanned tokens, and the index of
+	 * the first old token which is kept, or the number of old tokens
+	 */
+
+	private int[][] scan(int from, List<Token> scanned, FormulaTokens old, int kept, int limit, int removedEnd, int delta) throws UnexpectedCharacterException
+	{
+		int[] newStarts=new int[8], newEnds=new int[8];
+		int count=old==null?0:old.size();
+		for(int i=from;i<text.length();)
+		{
+			if(i>=limit)
+			{
+				while(kept<count && (starts[kept]<removedEnd || starts[kept]+delta<i))
+					kept++;
+				if(kept<count && starts[kept]+delta==i)
+					return new int[][]{Arrays.copyOf(newStarts, scanned.size()), Arrays.copyOf(newEnds, scanned.size()), {kept}};
+			}
+			int size=scanned.size();
+			int next=FormulaTokens.scan(text, i, functions, scanned);
+			if(scanned.size()>size)
+			{
+				if(size==newStarts.length)
+				{
+					newStarts=Arrays.copyOf(newStarts, 2*size);
+					newEnds=Arrays.copyOf(newEnds, 2*size);
+				}
+				newStarts[size]=i;
+				newEnds[size]=next;
+			}
+			i=next;
+		}
+		return new int[][]{Arrays.copyOf(newStarts, scanned.size()), Arrays.copyOf(newEnds, scanned.size()), {count}};
+	}
+
+	/**
+	 * @return the old tokens before first, the scanned ones, then the old
+	 * tokens from kept on, whose spans are moved by delta
+	 */
+
+	private FormulaTokens splice(FormulaTokens old, int first, int kept, FormulaTokens scanned, int[][] spans, int delta)
+	{
+		int count=old.size(), length=first+scanned.size()+count-kept;
+		FormulaTokens spliced=new FormulaTokens();
+		spliced.functions=functions;
+		spliced.ensureCapacity(length);
+		spliced.addAll(old.subList(0, first));
+		spliced.addAll(scanned);
+		spliced.addAll(old.subList(kept, count));
+		int[] newStarts=Arrays.copyOf(starts, length), newEnds=Arrays.copyOf(ends, length);
+		System.arraycopy(spans[0], 0, newStarts, first, scanned.size());
+		System.arraycopy(spans[1], 0, newEnds, first, scanned.size());
+		for(int i=kept, j=first+scanned.size();i<count;i++, j++)
+		{
+			newStarts[j]=starts[i]+delta;
+			newEnds[j]=ends[i]+delta;
+		}
+		starts=newStarts;
+		ends=newEnds;
+		return spliced;
+	}
+
+	private void checkAll() throws UnexpectedTokenException, UnevenParenthesesException, UnexpectedVariableException, UnexpectedEOLException
+	{
+		for(Token token:tokens)
+			reset(token);
+		tokens.checkFormula().checkVariables(expectedVariables);
+	}
+
+	/**
+	 * Checks the innermost group around the tokens from first to end
+	 * (excluded), which replaced the old tokens from first to kept, or the
+	 * whole formula if there is none
+	 */
+
+	private void checkChanged(FormulaTokens old, int first, int kept, int end) throws UnexpectedTokenException, UnevenParenthesesException, UnexpectedVariableException, UnexpectedEOLException
+	{
+		int open=first-1, close=end;
+		for(int depth=0;open>=0;open--)
+		{
+			String element=tokens.get(open).element;
+			if(element.equals(")"))
+				depth++;
+			else if(element.equals("(") && depth--==0)
+				break;
+		}
+		for(int depth=0;close<tokens.size();close++)
+		{
+			String element=tokens.get(close).element;
+			if(element.equals("("))
+				depth++;
+			else if(element.equals(")") && depth--==0)
+				break;
+		}
+		// The group must have had the same parentheses before the edit
+		if(open<0 || close==tokens.size() || !balanced(tokens, open+1, close) || !balanced(old, open+1, close-end+kept))
+		{
+			checkAll();
+			return;
+		}
+		FormulaTokens group=new FormulaTokens();
+		group.functions=functions;
+		if(open>0 && tokens.get(open-1).level==6)
+			group.add(tokens.get(open-1));
+		for(int i=open;i<=close;i++)
+		{
+			Token token=tokens.get(i);
+			reset(token);
+			group.add(token);
+		}
+		group.checkFormula();
+	}
+
+	/**
+	 * @return true if each parenthesis between the tokens from first to end
+	 * (excluded) is closed in between
+	 */
+
+	static private boolean balanced(List<Token> tokens, int first, int end)
+	{
+		int depth=0;
+		for(int i=first;i<end && depth>=0;i++)
+		{
+			String element=tokens.get(i).element;
+			if(element.equals("("))
+				depth++;
+			else if(element.equals(")"))
+				depth--;
+		}
+		return depth==0;
+	}
+
+	/**
+	 * Turns back a unary minus, marked by a previous check, into the token
+	 * read by Tokenize
+	 */
+
+	static private void reset(Token token)
+	{
+		if(token.element.equals("--"))
+		{
+			token.element="-";
+			token.level=2;
+		}
+	}
+
+	/**
+	 * @return the tokens of the text with their span, one per line
+	 */
+
+	public String toString()
+	{
+		if(tokens==null)
+			return text;
+		StringBuilder builder=new StringBuilder();
+		for(int i=0;i<tokens.size();i++)
+			builder.append(tokens.get(i).element).append(" [").append(starts[i]).append(',').append(ends[i]).append(")\n");
+		return builder.toString();
+	}
+}
@@ -0,0 +1,683 @@
+package darformula;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ *
+ * FormulaFuzzer generates random formulas over the whole grammar checked by
+ * FormulaTokens.checkFormula, evaluates each of them through every engine
+ * of the library on random values of x, y and z, and compares the results
+ * with those of the tree, the reference. A mismatch is reported with the
+ * smallest formula found by replacing subtrees of the generated one which
+ * still gives the same mismatch.
+ *
+ * The time spent by each engine evaluating the formulas, without preparing
+ * them, gives its throughput. main runs the fuzzer on several threads as a
+ * load generator.
+ *
+ */
+
+public class FormulaFuzzer
+{
+	static private final String[] VARIABLES={"x", "y", "z"};
+	// The variables of sum and mult, by level of nesting
+	static private final String[] INDEXES={"i", "j"};
+	static private final String[] EXPECTED={"x", "y", "z", "i", "j"};
+	static private final String[] NUMBERS={"0", "1", "2", "3", "0.5", "10", "pi", "e"};
+	static private final String[] OPERATORS={"+", "-", "*", "/", "%", "^", "=", "!=", ">", "<"};
+	static private final String[] FUNCTIONS={"sqrt", "log", "ln", "sin", "cos", "tan", "sinh", "cosh", "tanh", "asin", "acos", "atan", "abs", "ceil", "floor", "!"};
+	// Relative difference below which two values are equal
+	static private final double TOLERANCE=1e-9;
+	// Relative change of the values checking that a formula is well conditioned
+	static private final double PERTURBATION=1e-12;
+
+	/**
+	 *
+	 * An evaluation strategy, which prepares a formula in the mode of the
+	 * reference, with z constant. The engines which aren't exact may round
+	 * differently from the tree; their mismatches are only reported where the
+	 * tree is well conditioned, i.e. gives the same value when the variables
+	 * change by PERTURBATION.
+	 */
+
+	static public enum Engine
+	{
+		TREE(true)
+		{
+			ToDoubleFunction<double[]> prepare(RuntimeFormula reference, double z)
+			{
+				return values -> evaluate(reference, values);
+			}
+		},
+		COMPILED(true)
+		{
+			ToDoubleFunction<double[]> prepare(RuntimeFormula reference, double z)
+			{
+				return frame(reference.compile());
+			}
+		},
+		BOUND(true)
+		{
+			ToDoubleFunction<double[]> prepare(RuntimeFormula reference, double z)
+			{
+				BoundFormula bound=reference.bind(VARIABLES);
+				return values -> bound.calcValue(values);
+			}
+		},
+		CANONICAL(true)
+		{
+			ToDoubleFunction<double[]> prepare(RuntimeFormula reference, double z)
+			{
+				RuntimeFormula canonical=reference.canonical();
+				return values -> evaluate(canonical, values);
+			}
+		},
+		HORNER(false)
+		{
+			ToDoubleFunction<double[]> prepare(RuntimeFormula reference, double z)
+			{
+				RuntimeFormula horner=reference.horner();
+				return values -> evaluate(horner, values);
+			}
+		},
+		HORNER_COMPILED(false)
+		{
+			ToDoubleFunction<double[]> prepare(RuntimeFormula reference, double z)
+			{
+				return frame(reference.horner().compile());
+			}
+		},
+		SPECIALIZED(false)
+		{
+			ToDoubleFunction<double[]> prepare(RuntimeFormula reference, double z)
+			{
+				RuntimeFormula specialized=reference.specialize(Collections.singletonMap("z", z));
+				return values -> evaluate(specialized, values);
+			}
+		};
+
+		private final boolean exact;
+
+		private Engine(boolean exact)
+		{
+			this.exact=exact;
+		}
+
+		/**
+		 * @return true if the engine does the same operations as the tree
+		 */
+
+		public boolean isExact()
+		{
+			return exact;
+		}
+
+		abstract ToDoubleFunction<double[]> prepare(RuntimeFormula reference, double z);
+
+		static private double evaluate(RuntimeFormula formula, double[] values)
+		{
+			for(int i=0;i<VARIABLES.length;i++)
+				formula.putVar(VARIABLES[i], values[i]);
+			return formula.calcValue();
+		}
+
+		/**
+		 * @return a function copying the values to the slots of the variables
+		 * of formula
+		 */
+
+		static private ToDoubleFunction<double[]> frame(CompactFormula formula)
+		{
+			final double[] frame=formula.newFrame();
+			final int[] slots=new int[VARIABLES.length];
+			for(int i=0;i<VARIABLES.length;i++)
+				slots[i]=formula.indexOf(VARIABLES[i]);
+			for(String variable:formula.getVariables())
+				if(!Arrays.asList(VARIABLES).contains(variable))
+					return values -> {
+						throw new UnexpectedVariableException("Variable : "+variable);
+					};
+			return values -> {
+				for(int i=0;i<slots.length;i++)
+					if(slots[i]>=0)
+						frame[slots[i]]=values[i];
+				return formula.calcValue(frame);
+			};
+		}
+	}
+
+	/**
+	 *
+	 * A formula for which an engine doesn't give the value of the tree
+	 */
+
+	static public class Mismatch
+	{
+		private final Engine engine;
+		private final boolean catchesArithmeticExceptions;
+		private final String formula, minimized;
+		private final double[] values;
+		private final String expected, actual;
+
+		private Mismatch(Engine engine, boolean catchesArithmeticExceptions, String formula, String minimized, double[] values, String expected, String actual)
+		{
+			this.engine=engine;
+			this.catchesArithmeticExceptions=catchesArithmeticExceptions;
+			this.formula=formula;
+			this.minimized=minimized;
+			this.values=values;
+			this.expected=expected;
+			this.actual=actual;
+		}
+
+		public Engine getEngine()
+		{
+			return engine;
+		}
+
+		public String getFormula()
+		{
+			return formula;
+		}
+
+		/**
+		 * @return the smallest formula found giving the same mismatch
+		 */
+
+		public String getMinimized()
+		{
+			return minimized;
+		}
+
+		public String toString()
+		{
+			return engine+" gives "+actual+" instead of "+expected+" for "+minimized+" with (x, y, z)="+Arrays.toString(values)
+					+(catchesArithmeticExceptions?"":" without catching arithmetic exceptions")+", found in "+formula;
+		}
+	}
+
+	/**
+	 *
+	 * The mismatches found and the evaluations of each engine
+	 */
+
+	static public class Report
+	{
+		// Mismatches kept by a report
+		static public final int MAX_MISMATCHES=100;
+
+		private final List<Mismatch> mismatches=new ArrayList<Mismatch>();
+		private final long[] evaluations=new long[Engine.values().length], nanos=new long[Engine.values().length];
+		private long formulas;
+
+		public List<Mismatch> getMismatches()
+		{
+			return Collections.unmodifiableList(mismatches);
+		}
+
+		public long getFormulas()
+		{
+			return formulas;
+		}
+
+		/**
+		 * @return the evaluations per second of each engine
+		 */
+
+		public Map<Engine, Double> getThroughput()
+		{
+			Map<Engine, Double> throughput=new LinkedHashMap<Engine, Double>();
+			for(Engine engine:Engine.values())
+				throughput.put(engine, nanos[engine.ordinal()]==0?0:evaluations[engine.ordinal()]*1e9/nanos[engine.ordinal()]);
+			return throughput;
+		}
+
+		/**
+		 * Adds the mismatches and the evaluations of other to this report
+		 */
+
+		public synchronized void merge(Report other)
+		{
+			for(Mismatch mismatch:other.mismatches)
+				if(mismatches.size()<MAX_MISMATCHES)
+					mismatches.add(mismatch);
+			for(int i=0;i<evaluations.length;i++)
+			{
+				evaluations[i]+=other.evaluations[i];
+				nanos[i]+=other.nanos[i];
+			}
+			formulas+=other.formulas;
+		}
+
+		public String toString()
+		{
+			StringBuilder out=new StringBuilder();
+			out.append(formulas).append(" formulas, ").append(mismatches.size()).append(" mismatches\n");
+			for(Map.Entry<Engine, Double> throughput:getThroughput().entrySet())
+				out.append(String.format("%-16s %,14.0f evaluations/s%n", throughput.getKey(), throughput.getValue()));
+			for(Mismatch mismatch:mismatches)
+				out.append(mismatch).append('\n');
+			return out.toString();
+		}
+	}
+
+	/**
+	 *
+	 * A node of a generated formula. The operands of a chain of binary
+	 * operators which are chains themselves are written between parentheses.
+	 */
+
+	static private class Node
+	{
+		// A number, a variable or the name of a function; null for a chain
+		final String name;
+		final Node[] operands;
+		// The operators between the operands of a chain
+		final String[] operators;
+
+		Node(String name, Node[] operands, String[] operators)
+		{
+			this.name=name;
+			this.operands=operands;
+			this.operators=operators;
+		}
+
+		boolean isChain()
+		{
+			return operators!=null;
+		}
+
+		int size()
+		{
+			int size=1;
+			for(Node operand:operands)
+				size+=operand.size();
+			return size;
+		}
+
+		/**
+		 * @return a copy of this node where the nodes target is replaced by
+		 * replacement
+		 */
+
+		Node replace(Node target, Node replacement)
+		{
+			if(this==target)
+				return replacement;
+			Node[] replaced=operands.clone();
+			boolean changed=false;
+			for(int i=0;i<replaced.length;i++)
+			{
+				replaced[i]=operands[i].replace(target, replacement);
+				changed|=replaced[i]!=operands[i];
+			}
+			return changed?new Node(name, replaced, operators):this;
+		}
+
+		void appendTo(StringBuilder out)
+		{
+			if(isChain())
+			{
+				for(int i=0;i<operands.length;i++)
+				{
+					if(i>0)
+						out.append(operators[i-1]);
+					operands[i].appendOperand(out);
+				}
+			}
+			else if(name.equals("-"))
+			{
+				out.append('-');
+				operands[0].appendOperand(out);
+			}
+			else if(operands.length==0)
+				out.append(name);
+			else
+			{
+				out.append(name).append('(');
+				for(int i=0;i<operands.length;i++)
+				{
+					if(i>0)
+						out.append(',');
+					operands[i].appendTo(out);
+				}
+				out.append(')');
+			}
+		}
+
+		private void appendOperand(StringBuilder out)
+		{
+			if(isChain())
+				out.append('(');
+			appendTo(out);
+			if(isChain())
+				out.append(')');
+		}
+
+		public String toString()
+		{
+			StringBuilder out=new StringBuilder();
+			appendTo(out);
+			return out.toString();
+		}
+	}
+
+	static private final Node[] LEAVES={new Node("1", new Node[0], null), new Node("x", new Node[0], null)};
+
+	private final Random random;
+	private final RuntimeFormula parser;
+
+	public FormulaFuzzer(long seed)
+	{
+		random=new Random(seed);
+		parser=new RuntimeFormula();
+		parser.setCompilationThreshold(Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param depth the maximal nesting of the operations
+	 * @return a random valid formula of x, y and z
+	 */
+
+	public String generate(int depth)
+	{
+		return generate(depth, 0).toString();
+	}
+
+	private Node generate(int depth, int indexes)
+	{
+		int choice=depth==0?random.nextInt(2):random.nextInt(10);
+		if(choice==0)
+			return leaf(NUMBERS[random.nextInt(NUMBERS.length)]);
+		if(choice==1)
+		{
+			int variable=random.nextInt(VARIABLES.length+indexes);
+			return leaf(variable<VARIABLES.length?VARIABLES[variable]:INDEXES[variable-VARIABLES.length]);
+		}
+		if(choice<=5)
+		{
+			int length=2+random.nextInt(3);
+			Node[] operands=new Node[length];
+			String[] operators=new String[length-1];
+			for(int i=0;i<length;i++)
+				operands[i]=generate(depth-1, indexes);
+			for(int i=0;i<length-1;i++)
+				operators[i]=OPERATORS[random.nextInt(OPERATORS.length)];
+			return new Node(null, operands, operators);
+		}
+		if(choice==6)
+			return new Node("-", new Node[]{generate(depth-1, indexes)}, null);
+		if(choice==7 && indexes<INDEXES.length)
+		{
+			// Small limits, so that the sums stay quick
+			Node limit=random.nextBoolean()?leaf(NUMBERS[random.nextInt(4)]):leaf("x");
+			return new Node(random.nextBoolean()?"sum":"mult", new Node[]{leaf(INDEXES[indexes]), limit, generate(depth-1, indexes+1)}, null);
+		}
+		String function=FUNCTIONS[random.nextInt(FUNCTIONS.length)];
+		// The factorial loops up to its operand, which is kept small
+		return new Node(function, new Node[]{function.equals("!")?generate(0, indexes):generate(depth-1, indexes)}, null);
+	}
+
+	static private Node leaf(String name)
+	{
+		return new Node(name, new Node[0], null);
+	}
+
+	/**
+	 * Evaluates formulas random formulas, each with inputs values of x and y
+	 *
+	 * @param engines the engines compared to the tree
+	 */
+
+	public Report run(int formulas, int inputs, Engine... engines)
+	{
+		Report report=new Report();
+		for(int f=0;f<formulas;f++)
+		{
+			Node formula=generate(1+random.nextInt(5), 0);
+			boolean catches=random.nextInt(4)!=0;
+			double z=value();
+			double[][] values=new double[inputs][];
+			for(int i=0;i<inputs;i++)
+				values[i]=new double[]{value(), value(), z};
+			report.formulas++;
+			String[] expected=evaluate(Engine.TREE, formula.toString(), catches, values, report);
+			if(expected==null)
+				continue;
+			for(Engine engine:engines)
+			{
+				if(engine==Engine.TREE)
+					continue;
+				String[] actual=evaluate(engine, formula.toString(), catches, values, report);
+				for(int i=0;i<inputs && report.mismatches.size()<Report.MAX_MISMATCHES;i++)
+				{
+					final double[] input=values[i];
+					final String[] found=agree(expected[i], actual[i])?null:mismatch(engine, formula.toString(), catches, input);
+					if(found==null)
+						continue;
+					// The smaller formulas must fail the same way
+					Node minimized=minimize(formula, node -> {
+						String[] outcomes=mismatch(engine, node.toString(), catches, input);
+						return outcomes!=null && isNumber(outcomes[0])==isNumber(found[0]) && isNumber(outcomes[1])==isNumber(found[1]);
+					});
+					String[] outcomes=mismatch(engine, minimized.toString(), catches, input);
+					report.mismatches.add(new Mismatch(engine, catches, formula.toString(), minimized.toString(), input, outcomes[0], outcomes[1]));
+					break;
+				}
+			}
+		}
+		return report;
+	}
+
+	/**
+	 * @return a value of a variable, most often a multiple of 0.5 between -3
+	 * and 3
+	 */
+
+	private double value()
+	{
+		switch(random.nextInt(8))
+		{
+		case 0:return random.nextGaussian()*10;
+		case 1:return random.nextDouble();
+		default:return (random.nextInt(13)-6)/2.0;
+		}
+	}
+
+	/**
+	 * @return the outcomes of the tree and of engine for formula and input if
+	 * they don't agree, and the tree is well conditioned when the engine is
+	 * not exact, or null
+	 */
+
+	private String[] mismatch(Engine engine, String formula, boolean catches, double[] input)
+	{
+		String[] expected=evaluate(Engine.TREE, formula, catches, new double[][]{input}, null);
+		String[] actual=evaluate(engine, formula, catches, new double[][]{input}, null);
+		if(expected==null || agree(expected[0], actual[0]))
+			return null;
+		if(!engine.exact)
+		{
+			double[][] perturbed=new double[2][input.length];
+			for(int i=0;i<input.length;i++)
+			{
+				double change=PERTURBATION*Math.max(1, Math.abs(input[i]));
+				perturbed[0][i]=input[i]+change;
+				perturbed[1][i]=input[i]-change;
+			}
+			String[] neighbours=evaluate(Engine.TREE, formula, catches, perturbed, null);
+			if(!agree(expected[0], neighbours[0]) || !agree(expected[0], neighbours[1]))
+				return null;
+		}
+		return new String[]{expected[0], actual[0]};
+	}
+
+	/**
+	 * @param report the report counting the evaluations, or null
+	 * @return the value of the formula for each of the values, or the name of
+	 * the exception thrown, or null if the formula is not valid
+	 */
+
+	private String[] evaluate(Engine engine, String formula, boolean catches, double[][] values, Report report)
+	{
+		try
+		{
+			parser.setCatchesArithmeticExceptions(catches);
+			parser.setFormula(formula, EXPECTED);
+		} catch(IllegalArgumentException e)
+		{
+			return null;
+		}
+		String[] outcomes=new String[values.length];
+		ToDoubleFunction<double[]> evaluator;
+		try
+		{
+			evaluator=engine.prepare(parser, values.length==0?0:values[0][2]);
+		} catch(RuntimeException e)
+		{
+			Arrays.fill(outcomes, e.getClass().getSimpleName());
+			return outcomes;
+		}
+		double[] results=new double[values.length];
+		String[] failures=new String[values.length];
+		long start=System.nanoTime();
+		for(int i=0;i<values.length;i++)
+		{
+			try
+			{
+				results[i]=evaluator.applyAsDouble(values[i]);
+			} catch(RuntimeException | StackOverflowError e)
+			{
+				failures[i]=e.getClass().getSimpleName();
+			}
+		}
+		if(report!=null)
+		{
+			report.evaluations[engine.ordinal()]+=values.length;
+			report.nanos[engine.ordinal()]+=System.nanoTime()-start;
+		}
+		for(int i=0;i<values.length;i++)
+			outcomes[i]=failures[i]!=null?failures[i]:Double.toString(results[i]);
+		return outcomes;
+	}
+
+	static private boolean isNumber(String outcome)
+	{
+		return outcome.isEmpty() || !Character.isLetter(outcome.charAt(0)) || outcome.equals("NaN") || outcome.equals("Infinity");
+	}
+
+	/**
+	 * @return true if both outcomes are the same exception, or values equal
+	 * within TOLERANCE
+	 */
+
+	static private boolean agree(String expected, String actual)
+	{
+		if(expected.equals(actual))
+			return true;
+		double a, b;
+		try
+		{
+			a=Double.parseDouble(expected);
+			b=Double.parseDouble(actual);
+		} catch(NumberFormatException e)
+		{
+			return false;
+		}
+		return a==b || Math.abs(a-b)<=TOLERANCE*Math.max(1, Math.max(Math.abs(a), Math.abs(b)));
+	}
+
+	/**
+	 * @return the smallest formula found by replacing a node of formula by
+	 * one of its operands or a leaf, for which mismatch stays true
+	 */
+
+	static private Node minimize(Node formula, Predicate<Node> mismatch)
+	{
+		boolean reduced=true;
+		while(reduced)
+		{
+			reduced=false;
+			List<Node> nodes=new ArrayList<Node>();
+			collect(formula, nodes);
+			search: for(Node node:nodes)
+			{
+				List<Node> candidates=new ArrayList<Node>(Arrays.asList(node.operands));
+				candidates.addAll(Arrays.asList(LEAVES));
+				if(node.isChain())
+					for(int i=0;i<node.operands.length;i++)
+					{
+						// The chain without operand i
+						List<Node> operands=new ArrayList<Node>(Arrays.asList(node.operands));
+						List<String> operators=new ArrayList<String>(Arrays.asList(node.operators));
+						operands.remove(i);
+						operators.remove(Math.max(0, i-1));
+						if(operands.size()>1)
+							candidates.add(new Node(null, operands.toArray(new Node[operands.size()]), operators.toArray(new String[operators.size()])));
+					}
+				for(Node candidate:candidates)
+				{
+					if(candidate.size()>=node.size())
+						continue;
+					Node replaced=formula.replace(node, candidate);
+					if(mismatch.test(replaced))
+					{
+						formula=replaced;
+						reduced=true;
+						break search;
+					}
+				}
+			}
+		}
+		return formula;
+	}
+
+	static private void collect(Node node, List<Node> nodes)
+	{
+		nodes.add(node);
+		for(Node operand:node.operands)
+			collect(operand, nodes);
+	}
+
+	/**
+	 * Runs the fuzzer on several threads, and prints the report
+	 *
+	 * @param args the number of threads, the duration in seconds and the
+	 * seed, by default the number of processors, 10 and the current time
+	 */
+
+	static public void main(String[] args) throws Exception
+	{
+		int threads=args.length>0?Integer.parseInt(args[0]):Runtime.getRuntime().availableProcessors();
+		long seconds=args.length>1?Long.parseLong(args[1]):10;
+		long seed=args.length>2?Long.parseLong(args[2]):System.currentTimeMillis();
+		final long end=System.nanoTime()+seconds*1000000000L;
+		final Report report=new Report();
+		ExecutorService executor=Executors.newFixedThreadPool(threads);
+		List<Future<?>> tasks=new ArrayList<Future<?>>();
+		for(int t=0;t<threads;t++)
+		{
+			final FormulaFuzzer fuzzer=new FormulaFuzzer(seed+t);
+			tasks.add(executor.submit(() -> {
+				while(System.nanoTime()<end)
+					report.merge(fuzzer.run(50, 100, Engine.values()));
+			}));
+		}
+		for(Future<?> task:tasks)
+			task.get();
+		executor.shutdown();
+		System.out.println("Seed "+seed+", "+threads+" threads, "+seconds+" s");
+		System.out.print(report);
+	}
+}
@@ -0,0 +1,408 @@
+package darformula;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *
+ * FormulaGraph computes named formulas which read the values of each other,
+ * like the cells of a spreadsheet. A formula can read the inputs given to
+ * setInput and the formulas defined before it; a definition which would make
+ * a formula read its own value, directly or not, is refused.
+ *
+ * The formulas are computed by layers, each layer reading only the layers
+ * before it, and the formulas of a layer are split between the threads of a
+ * ForkJoinPool. Only the formulas reading a changed input or definition are
+ * computed again, and those reading a formula whose value didn't change are
+ * not.
+ *
+ * A FormulaGraph is not thread safe.
+ *
+ */
+
+public class FormulaGraph
+{
+	// Number of formulas of a layer under which a task is not split anymore
+	static private final int THRESHOLD=16;
+
+	private final FunctionRegistry functions;
+	private final Map<String, Double> inputs;
+	private final Map<String, Node> nodes;
+	// The formulas reading each input and formula
+	private final Map<String, List<Node>> readers;
+	// The formulas by layer, null when the definitions changed
+	private Node[][] layers;
+	private int dirty;
+	private ForkJoinPool pool;
+
+	/**
+	 *
+	 * A formula of the graph, with its own RuntimeFormula
+	 */
+
+	private class Node
+	{
+		final String name;
+		final RuntimeFormula formula;
+		// The inputs and formulas read by the formula
+		final String[] references;
+		double value=Double.NaN;
+		boolean dirty, computed, changed;
+
+		Node(String name, RuntimeFormula formula, String[] references)
+		{
+			this.name=name;
+			this.formula=formula;
+			this.references=references;
+		}
+
+		void compute() throws UnexpectedVariableException
+		{
+			for(String reference:references)
+			{
+				Node node=nodes.get(reference);
+				formula.putVar(reference, node==null?inputs.get(reference):node.value);
+			}
+			double old=value;
+			value=formula.calcValue();
+			changed=!computed || Double.doubleToRawLongBits(old)!=Double.doubleToRawLongBits(value);
+			computed=true;
+		}
+	}
+
+	public FormulaGraph()
+	{
+		this(FunctionRegistry.getDefault());
+	}
+
+	/**
+	 * @param functions the functions that the formulas can call
+	 */
+
+	public FormulaGraph(FunctionRegistry functions)
+	{
+		this.functions=functions;
+		inputs=new HashMap<String, Double>();
+		nodes=new HashMap<String, Node>();
+		readers=new HashMap<String, List<Node>>();
+		pool=ForkJoinPool.commonPool();
+	}
+
+	public void setPool(ForkJoinPool pool)
+	{
+		this.pool=pool;
+	}
+
+	/**
+	 * Sets an input, which the formulas can read
+	 *
+	 * @throws IllegalArgumentException if name is a formula
+	 */
+
+	public void setInput(String name, double value)
+	{
+		if(nodes.containsKey(name))
+			throw new IllegalArgumentException(name+" is a formula");
+		Double old=inputs.put(name, value);
+		if(old==null || Double.doubleToRawLongBits(old)!=Double.doubleToRawLongBits(value))
+			markReaders(name);
+	}
+
+	/**
+	 * Defines the formula name, or replaces its definition
+	 *
+	 * @param formula a formula reading inputs and formulas already defined
+	 * @throws IllegalArgumentException if name is an input, or if the formula
+	 * would read its own value
+	 */
+
+	public void define(String name, String formula) throws UnexpectedCharacterException, UnexpectedTokenException, UnevenParenthesesException, UnexpectedVariableException, UnexpectedEOLException
+	{
+		if(inputs.containsKey(name))
+			throw new IllegalArgumentException(name+" is an input");
+		Set<String> known=new HashSet<String>(inputs.keySet());
+		known.addAll(nodes.keySet());
+		known.add(name);
+		RuntimeFormula parsed=new RuntimeFormula();
+		parsed.setFunctionRegistry(functions);
+		parsed.setFormula(formula, known.toArray(new String[known.size()]));
+		Set<String> references=parsed.variables();
+		for(String reference:references)
+			if(!known.contains(reference))
+				throw new UnexpectedVariableException("Variable : "+reference);
+		List<String> cycle=path(references, name);
+		if(cycle!=null)
+			throw new IllegalArgumentException("Circular reference : "+name+" -> "+String.join(" -> ", cycle));
+
+		Node node=new Node(name, parsed, references.toArray(new String[references.size()]));
+		Node old=nodes.put(name, node);
+		if(old!=null)
+		{
+			for(String reference:old.references)
+				readers.get(reference).remove(old);
+			if(old.dirty)
+				dirty--;
+		}
+		for(String reference:node.references)
+			readers.computeIfAbsent(reference, r -> new ArrayList<Node>()).add(node);
+		layers=null;
+		mark(node);
+	}
+
+	/**
+	 * @return the shortest chain of references from one of the names to
+	 * target, ending with target, or null if there is none
+	 */
+
+	private List<String> path(Set<String> names, String target)
+	{
+		Map<String, String> previous=new HashMap<String, String>();
+		ArrayDeque<String> queue=new ArrayDeque<String>();
+		for(String name:names)
+		{
+			previous.put(name, null);
+			queue.add(name);
+		}
+		while(!queue.isEmpty())
+		{
+			String name=queue.poll();
+			if(name.equals(target))
+			{
+				ArrayList<String> path=new ArrayList<String>();
+				for(String step=name;step!=null;step=previous.get(step))
+					path.add(0, step);
+				return path;
+			}
+			Node node=nodes.get(name);
+			if(node==null)
+				continue;
+			for(String reference:node.references)
+				if(!previous.containsKey(reference))
+				{
+					previous.put(reference, name);
+					queue.add(reference);
+				}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the formula name
+	 *
+	 * @throws IllegalArgumentException if another formula reads it
+	 */
+
+	public void remove(String name)
+	{
+		Node node=nodes.get(name);
+		if(node==null)
+			return;
+		List<Node> reading=readers.get(name);
+		if(reading!=null && !reading.isEmpty())
+			throw new IllegalArgumentException(name+" is read by "+reading.get(0).name);
+		nodes.remove(name);
+		for(String reference:node.references)
+			readers.get(reference).remove(node);
+		if(node.dirty)
+			dirty--;
+		layers=null;
+	}
+
+	private void mark(Node node)
+	{
+		if(!node.dirty)
+		{
+			node.dirty=true;
+			dirty++;
+		}
+	}
+
+	private void markReaders(String name)
+	{
+		List<Node> reading=readers.get(name);
+		if(reading!=null)
+			for(Node node:reading)
+				mark(node);
+	}
+
+	/**
+	 * Sorts the formulas in layers: a formula reading no other formula is in
+	 * the first layer, and another one in the layer after the last layer of
+	 * the formulas it reads
+	 */
+
+	private Node[][] layers()
+	{
+		Map<Node, Integer> layer=new HashMap<Node, Integer>();
+		Map<Node, Integer> remaining=new HashMap<Node, Integer>();
+		ArrayDeque<Node> ready=new ArrayDeque<Node>();
+		for(Node node:nodes.values())
+		{
+			int count=0;
+			for(String reference:node.references)
+				if(nodes.containsKey(reference))
+					count++;
+			remaining.put(node, count);
+			if(count==0)
+			{
+				layer.put(node, 0);
+				ready.add(node);
+			}
+		}
+		int depth=0;
+		while(!ready.isEmpty())
+		{
+			Node node=ready.poll();
+			int next=layer.get(node)+1;
+			depth=Math.max(depth, next);
+			List<Node> reading=readers.get(node.name);
+			if(reading==null)
+				continue;
+			for(Node reader:reading)
+			{
+				layer.merge(reader, next, Math::max);
+				if(remaining.merge(reader, -1, Integer::sum)==0)
+					ready.add(reader);
+			}
+		}
+		List<List<Node>> lists=new ArrayList<List<Node>>();
+		for(int i=0;i<depth;i++)
+			lists.add(new ArrayList<Node>());
+		for(Map.Entry<Node, Integer> entry:layer.entrySet())
+			lists.get(entry.getValue()).add(entry.getKey());
+		Node[][] layers=new Node[depth][];
+		for(int i=0;i<depth;i++)
+			layers[i]=lists.get(i).toArray(new Node[0]);
+		return layers;
+	}
+
+	/**
+	 * Computes the formulas which read a changed input or formula
+	 *
+	 * @return the number of formulas computed
+	 */
+
+	public int recalculate() throws UnexpectedVariableException
+	{
+		if(dirty==0)
+			return 0;
+		if(layers==null)
+			layers=layers();
+		int computed=0;
+		ArrayList<Node> batch=new ArrayList<Node>();
+		for(Node[] layer:layers)
+		{
+			batch.clear();
+			for(Node node:layer)
+				if(node.dirty)
+					batch.add(node);
+			if(batch.isEmpty())
+				continue;
+			Node[] nodes=batch.toArray(new Node[batch.size()]);
+			if(nodes.length<=THRESHOLD)
+				for(Node node:nodes)
+					node.compute();
+			else
+				pool.invoke(new Task(nodes, 0, nodes.length));
+			for(Node node:nodes)
+			{
+				node.dirty=false;
+				dirty--;
+				if(node.changed)
+					markReaders(node.name);
+			}
+			computed+=nodes.length;
+		}
+		return computed;
+	}
+
+	/**
+	 * @return the value of an input, or of a formula after the changes since
+	 * the last recalculation
+	 * @throws UnexpectedVariableException if name is neither an input nor a
+	 * formula
+	 */
+
+	public double getValue(String name) throws UnexpectedVariableException
+	{
+		Double input=inputs.get(name);
+		if(input!=null)
+			return input;
+		Node node=nodes.get(name);
+		if(node==null)
+			throw new UnexpectedVariableException("Variable : "+name);
+		recalculate();
+		return node.value;
+	}
+
+	/**
+	 * @return the formulas whose value depends on name, directly or not
+	 */
+
+	public Set<String> getDependents(String name)
+	{
+		Set<String> dependents=new HashSet<String>();
+		ArrayDeque<String> queue=new ArrayDeque<String>();
+		queue.add(name);
+		while(!queue.isEmpty())
+		{
+			List<Node> reading=readers.get(queue.poll());
+			if(reading!=null)
+				for(Node node:reading)
+					if(dependents.add(node.name))
+						queue.add(node.name);
+		}
+		return dependents;
+	}
+
+	/**
+	 * @return the number of layers, the longest chain of formulas reading
+	 * each other
+	 */
+
+	public int getDepth()
+	{
+		if(layers==null)
+			layers=layers();
+		return layers.length;
+	}
+
+	private class Task extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Node[] nodes;
+		private final int start, end;
+
+		Task(Node[] nodes, int start, int end)
+		{
+			this.nodes=nodes;
+			this.start=start;
+			this.end=end;
+		}
+
+		protected void compute()
+		{
+			if(end-start>THRESHOLD)
+			{
+				int middle=(start+end)>>>1;
+				invokeAll(new Task(nodes, start, middle), new Task(nodes, middle, end));
+				return;
+			}
+			for(int i=start;i<end;i++)
+				nodes[i].compute();
+		}
+	}
+
+	public String toString()
+	{
+		return nodes.size()+" formulas of "+inputs.size()+" inputs in "+getDepth()+" layers";
+	}
+}
@@ -0,0 +1,250 @@
+package darformula;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * FormulaHandle holds a formula which can be replaced while other threads
+ * evaluate it. A new formula is parsed and compiled apart, and published as
+ * a new Version by one volatile write: an evaluation which read the previous
+ * Version ends with it, and the next evaluations read the new one. A formula
+ * which can't be parsed leaves the current Version as it is.
+ *
+ * Reading the current Version is a volatile read, without lock; the updates
+ * and rollbacks are synchronized between themselves. The Versions replaced
+ * are kept, up to getHistorySize(), so that they can be published again by
+ * rollback().
+ *
+ */
+
+public class FormulaHandle
+{
+	static private final int DEFAULT_HISTORY_SIZE=8;
+
+	// Parses the updates; guarded by this
+	private final RuntimeFormula parser;
+	private volatile Version current;
+	// The Versions replaced by current, the last one first; guarded by this
+	private final ArrayDeque<Version> history;
+	private int historySize;
+	// Number of the last Version created; guarded by this
+	private long versions;
+
+	/**
+	 *
+	 * A formula of the handle, compiled, with its number. A Version is
+	 * immutable and can be evaluated by any number of threads, each with its
+	 * own frame.
+	 */
+
+	static public final class Version
+	{
+		private final long number;
+		private final String formula;
+		private final CompactFormula compiled;
+		private final FormulaCost cost;
+
+		private Version(long number, String formula, CompactFormula compiled, FormulaCost cost)
+		{
+			this.number=number;
+			this.formula=formula;
+			this.compiled=compiled;
+			this.cost=cost;
+		}
+
+		/**
+		 * @return the number of the Version, starting at 1 and increasing
+		 * with each update
+		 */
+
+		public long getNumber()
+		{
+			return number;
+		}
+
+		/**
+		 * @return the formula as given to the update
+		 */
+
+		public String getFormula()
+		{
+			return formula;
+		}
+
+		public CompactFormula getCompactFormula()
+		{
+			return compiled;
+		}
+
+		public FormulaCost getCost()
+		{
+			return cost;
+		}
+
+		/**
+		 * @return the value of the formula for the values of its variables
+		 * @throws UnexpectedVariableException if a variable of the formula
+		 * has no value
+		 */
+
+		public double calcValue(Map<String, Double> values) throws UnexpectedVariableException
+		{
+			String[] variables=compiled.getVariables();
+			double[] frame=compiled.newFrame();
+			for(int i=0;i<variables.length;i++)
+			{
+				Double value=values.get(variables[i]);
+				if(value==null)
+					throw new UnexpectedVariableException("Variable : "+variables[i]);
+				frame[i]=value;
+			}
+			return compiled.calcValue(frame);
+		}
+
+		public String toString()
+		{
+			return "Version "+number+" : "+formula;
+		}
+	}
+
+	/**
+	 * @throws the exceptions of RuntimeFormula.setFormula
+	 */
+
+	public FormulaHandle(String formula, String[] expectedVariables) throws UnexpectedCharacterException, UnexpectedTokenException, UnevenParenthesesException, UnexpectedVariableException, UnexpectedEOLException
+	{
+		this(FunctionRegistry.getDefault(), true, formula, expectedVariables);
+	}
+
+	/**
+	 * @param functions the functions the formulas can call
+	 * @param catchesArithmeticExceptions the mode of every Version
+	 * @throws the exceptions of RuntimeFormula.setFormula
+	 */
+
+	public FormulaHandle(FunctionRegistry functions, boolean catchesArithmeticExceptions, String formula, String[] expectedVariables) throws UnexpectedCharacterException, UnexpectedTokenException, UnevenParenthesesException, UnexpectedVariableException, UnexpectedEOLException
+	{
+		parser=new RuntimeFormula();
+		parser.setFunctionRegistry(functions);
+		parser.setCatchesArithmeticExceptions(catchesArithmeticExceptions);
+		history=new ArrayDeque<Version>();
+		historySize=DEFAULT_HISTORY_SIZE;
+		current=build(formula, expectedVariables);
+	}
+
+	private Version build(String formula, String[] expectedVariables) throws UnexpectedCharacterException, UnexpectedTokenException, UnevenParenthesesException, UnexpectedVariableException, UnexpectedEOLException
+	{
+		parser.setFormula(formula, expectedVariables);
+		CompactFormula compiled=parser.compile();
+		return new Version(++versions, formula, compiled, parser.estimateCost());
+	}
+
+	/**
+	 * @return the published Version; evaluating it rather than the handle
+	 * keeps the same Version for several evaluations
+	 */
+
+	public Version current()
+	{
+		return current;
+	}
+
+	/**
+	 * Evaluates the published Version
+	 *
+	 * @see Version#calcValue(Map)
+	 */
+
+	public double calcValue(Map<String, Double> values) throws UnexpectedVariableException
+	{
+		return current.calcValue(values);
+	}
+
+	/**
+	 * Parses and compiles formula, then publishes it in place of the current
+	 * Version, which goes to the history
+	 *
+	 * @return the new Version
+	 * @throws the exceptions of RuntimeFormula.setFormula, and
+	 * UnexpectedTokenException if the formula keeps a series, which can't be
+	 * compiled; the current Version is unchanged then
+	 */
+
+	public synchronized Version update(String formula, String[] expectedVariables) throws UnexpectedCharacterException, UnexpectedTokenException, UnevenParenthesesException, UnexpectedVariableException, UnexpectedEOLException
+	{
+		Version version=build(formula, expectedVariables);
+		history.addFirst(current);
+		while(history.size()>historySize)
+			history.removeLast();
+		current=version;
+		return version;
+	}
+
+	/**
+	 * Like update, unless the current Version isn't expected anymore
+	 *
+	 * @param expected the number of the Version being replaced
+	 * @return the new Version, or null if the current Version has another
+	 * number, in which case the formula isn't parsed
+	 */
+
+	public synchronized Version update(long expected, String formula, String[] expectedVariables) throws UnexpectedCharacterException, UnexpectedTokenException, UnevenParenthesesException, UnexpectedVariableException, UnexpectedEOLException
+	{
+		if(current.number!=expected)
+			return null;
+		return update(formula, expectedVariables);
+	}
+
+	/**
+	 * Publishes again the Version replaced by the current one, which is
+	 * dropped
+	 *
+	 * @return the Version published
+	 * @throws IllegalStateException if the history is empty
+	 */
+
+	public synchronized Version rollback()
+	{
+		Version previous=history.pollFirst();
+		if(previous==null)
+			throw new IllegalStateException("No previous version");
+		current=previous;
+		return previous;
+	}
+
+	/**
+	 * @return the Versions which rollback() can publish again, the last one
+	 * first
+	 */
+
+	public synchronized List<Version> getHistory()
+	{
+		return new ArrayList<Version>(history);
+	}
+
+	/**
+	 * @param size the number of replaced Versions kept, 0 to keep none
+	 */
+
+	public synchronized void setHistorySize(int size)
+	{
+		if(size<0)
+			throw new IllegalArgumentException("The history size can't be negative");
+		historySize=size;
+		while(history.size()>historySize)
+			history.removeLast();
+	}
+
+	public synchronized int getHistorySize()
+	{
+		return historySize;
+	}
+
+	public String toString()
+	{
+		return current.toString();
+	}
+}
@@ -0,0 +1,80 @@
+package darformula;
+
+/**
+ *
+ * A FormulaListener is told about the parsing and the evaluation of every
+ * RuntimeFormula, once it is installed with RuntimeFormula.setListener(). It
+ * is called by the threads doing the work, so it must be thread-safe and
+ * quick; FormulaMetrics is an implementation which aggregates the events.
+ *
+ * Every method does nothing by default. When the listener is NONE, formulas
+ * don't measure their latency at all.
+ *
+ */
+
+public interface FormulaListener
+{
+	static public final FormulaListener NONE=new FormulaListener()
+	{
+		public String toString()
+		{
+			return "No listener";
+		}
+	};
+
+	/**
+	 * Called by setFormula when formula is valid
+	 *
+	 * @param nanos the time spent parsing formula
+	 */
+
+	default void formulaParsed(String formula, long nanos)
+	{
+	}
+
+	/**
+	 * Called by setFormula when formula is not valid, with the exception it
+	 * throws
+	 */
+
+	default void parseFailed(String formula, IllegalArgumentException exception)
+	{
+	}
+
+	/**
+	 * Called by RuntimeFormula.calcValue()
+	 *
+	 * @param formula the formula given to setFormula, or the formula written
+	 * by formulaToString() if it was built another way
+	 * @param nanos the time spent evaluating formula
+	 */
+
+	default void formulaEvaluated(String formula, long nanos)
+	{
+	}
+
+	/**
+	 * Called when RuntimeFormula.calcValue() throws exception
+	 */
+
+	default void evaluationFailed(String formula, RuntimeException exception)
+	{
+	}
+
+	/**
+	 * Called each time an operation returns 0 instead of failing, because the
+	 * formula catches arithmetic exceptions
+	 */
+
+	default void arithmeticExceptionCaught()
+	{
+	}
+
+	/**
+	 * Called by setCatchesArithmeticExceptions
+	 */
+
+	default void modeChanged(boolean catchesArithmeticExceptions)
+	{
+	}
+}
@@ -0,0 +1,184 @@
+package darformula;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * FormulaMetrics counts the events of a FormulaListener with LongAdders, and
+ * keeps the latency histograms of parsing and evaluation, overall and for
+ * each of the first maxFormulas formulas evaluated. It can be installed
+ * with RuntimeFormula.setListener(), or extended to forward the events to
+ * another monitoring system.
+ *
+ */
+
+public class FormulaMetrics implements FormulaListener
+{
+	static public final int DEFAULT_MAX_FORMULAS=256;
+
+	private final int maxFormulas;
+	private final long created;
+	private final LongAdder parses, evaluations, caughtExceptions;
+	private final LatencyHistogram parseLatency, evaluationLatency;
+	private final Map<String, LatencyHistogram> formulaLatency;
+	private final Map<String, LongAdder> failures;
+
+	public FormulaMetrics()
+	{
+		this(DEFAULT_MAX_FORMULAS);
+	}
+
+	/**
+	 * @param maxFormulas the number of formulas with their own evaluation
+	 * histogram; the evaluations of other formulas are only counted overall
+	 */
+
+	public FormulaMetrics(int maxFormulas)
+	{
+		this.maxFormulas=maxFormulas;
+		created=System.nanoTime();
+		parses=new LongAdder();
+		evaluations=new LongAdder();
+		caughtExceptions=new LongAdder();
+		parseLatency=new LatencyHistogram();
+		evaluationLatency=new LatencyHistogram();
+		formulaLatency=new ConcurrentHashMap<String, LatencyHistogram>();
+		failures=new ConcurrentHashMap<String, LongAdder>();
+	}
+
+	public void formulaParsed(String formula, long nanos)
+	{
+		parses.increment();
+		parseLatency.record(nanos);
+	}
+
+	public void parseFailed(String formula, IllegalArgumentException exception)
+	{
+		parses.increment();
+		fail(exception);
+	}
+
+	public void formulaEvaluated(String formula, long nanos)
+	{
+		evaluations.increment();
+		evaluationLatency.record(nanos);
+		LatencyHistogram histogram=formulaLatency.get(formula);
+		if(histogram==null && formulaLatency.size()<maxFormulas)
+			histogram=formulaLatency.computeIfAbsent(formula, f -> new LatencyHistogram());
+		if(histogram!=null)
+			histogram.record(nanos);
+	}
+
+	public void evaluationFailed(String formula, RuntimeException exception)
+	{
+		evaluations.increment();
+		fail(exception);
+	}
+
+	public void arithmeticExceptionCaught()
+	{
+		caughtExceptions.increment();
+	}
+
+	private void fail(RuntimeException exception)
+	{
+		failures.computeIfAbsent(exception.getClass().getSimpleName(), name -> new LongAdder()).increment();
+	}
+
+	/**
+	 * @return the number of calls to setFormula, valid or not
+	 */
+
+	public long getParses()
+	{
+		return parses.sum();
+	}
+
+	/**
+	 * @return the number of calls to setFormula per second since the
+	 * metrics were created
+	 */
+
+	public double getParseRate()
+	{
+		return parses.sum()*1e9/Math.max(1, System.nanoTime()-created);
+	}
+
+	/**
+	 * @return the number of calls to RuntimeFormula.calcValue(), which threw
+	 * an exception or not
+	 */
+
+	public long getEvaluations()
+	{
+		return evaluations.sum();
+	}
+
+	/**
+	 * @return the number of operations which returned 0 instead of failing
+	 */
+
+	public long getCaughtExceptions()
+	{
+		return caughtExceptions.sum();
+	}
+
+	/**
+	 * @return the latency of the valid formulas given to setFormula
+	 */
+
+	public LatencyHistogram getParseLatency()
+	{
+		return parseLatency;
+	}
+
+	/**
+	 * @return the latency of the evaluations which didn't fail
+	 */
+
+	public LatencyHistogram getEvaluationLatency()
+	{
+		return evaluationLatency;
+	}
+
+	/**
+	 * @return the evaluation latency of formula, or null if formula wasn't
+	 * evaluated or has no histogram of its own
+	 */
+
+	public LatencyHistogram getEvaluationLatency(String formula)
+	{
+		return formulaLatency.get(formula);
+	}
+
+	/**
+	 * @return the formulas with their own evaluation histogram
+	 */
+
+	public Map<String, LatencyHistogram> getFormulaLatencies()
+	{
+		return Collections.unmodifiableMap(formulaLatency);
+	}
+
+	/**
+	 * @return the number of failed parses and evaluations by simple name of
+	 * the exception thrown
+	 */
+
+	public Map<String, Long> getFailures()
+	{
+		Map<String, Long> counts=new TreeMap<String, Long>();
+		for(Map.Entry<String, LongAdder> failure:failures.entrySet())
+			counts.put(failure.getKey(), failure.getValue().sum());
+		return counts;
+	}
+
+	public String toString()
+	{
+		return "Parses : "+getParses()+" ("+parseLatency+")\nEvaluations : "+getEvaluations()+" ("+evaluationLatency+")\nCaught exceptions : "+getCaughtExceptions()+"\nFailures : "+getFailures();
+	}
+}
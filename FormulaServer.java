@@ -0,0 +1,467 @@
+package darformula;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * FormulaServer parses and evaluates formulas for other processes, over a
+ * text protocol on TCP. Each request is a line, answered by a line starting
+ * with OK or ERROR:
+ *
+ * PARSE variables formula
+ * 		OK followed by the variables used by the formula
+ * EVAL rows variables formula, followed by rows lines of values
+ * 		OK rows, followed by a line with the value of each row and END
+ * QUIT
+ *
+ * The variables are separated by commas, or "-" if there is none, and so are
+ * the values of a row, in the same order; a row which isn't made of a number
+ * for each variable, or whose evaluation throws an exception, gives NaN. An error is "ERROR" followed by the simple
+ * name of the exception and its message.
+ *
+ * The formulas are parsed once, and kept by the last cacheSize formulas used.
+ * The rows of concurrent requests for the same formula are queued together
+ * and evaluated by whichever of their threads comes first, so that the
+ * CompactFormula and its frame stay in its cache. A request waits up to a
+ * second when the queue of its formula is full; its remaining rows are then
+ * answered by NaN, with "ERROR Busy" instead of END. The rows of large
+ * requests are read, evaluated and written by chunks, so that the results
+ * start coming before all the rows are sent.
+ *
+ */
+
+public class FormulaServer implements Closeable
+{
+	static public final int DEFAULT_CACHE_SIZE=1024, DEFAULT_QUEUE_SIZE=64;
+	// Number of rows read and evaluated together
+	static private final int CHUNK=4096;
+	static private final long QUEUE_TIMEOUT_MILLIS=1000;
+
+	private final ServerSocket socket;
+	private final ExecutorService connections;
+	private final FormulaStore store;
+	private final Map<String, Entry> formulas;
+	private final int queueSize;
+	private final LongAdder requests, rows, batches, rejected;
+
+	/**
+	 *
+	 * A parsed formula, with the position in the rows of each of its
+	 * variables and the queue of the chunks to evaluate
+	 */
+
+	static private class Entry
+	{
+		final FormulaStore.SharedFormula shared;
+		final CompactFormula formula;
+		final int[] positions;
+		final int width;
+		final double[] frame;
+		final ArrayBlockingQueue<Chunk> queue;
+		// True while a thread evaluates the queue
+		final AtomicBoolean draining;
+
+		Entry(FormulaStore.SharedFormula shared, String[] variables, int queueSize) throws UnexpectedVariableException
+		{
+			this.shared=shared;
+			formula=shared.getFormula();
+			String[] used=formula.getVariables();
+			positions=new int[used.length];
+			for(int i=0;i<used.length;i++)
+			{
+				positions[i]=-1;
+				for(int j=0;j<variables.length && positions[i]<0;j++)
+					if(variables[j].equals(used[i]))
+						positions[i]=j;
+				if(positions[i]<0)
+					throw new UnexpectedVariableException("Variable : "+used[i]);
+			}
+			width=variables.length;
+			frame=formula.newFrame();
+			queue=new ArrayBlockingQueue<Chunk>(queueSize);
+			draining=new AtomicBoolean();
+		}
+	}
+
+	/**
+	 *
+	 * Rows of a request, of width values each, and their results
+	 */
+
+	static private class Chunk
+	{
+		final double[] values;
+		final double[] results;
+		final int count;
+		final CountDownLatch done=new CountDownLatch(1);
+
+		Chunk(double[] values, int count)
+		{
+			this.values=values;
+			this.count=count;
+			results=new double[count];
+		}
+	}
+
+	/**
+	 * A server on a port of the loopback interface
+	 *
+	 * @param port the port, or 0 for any free port
+	 */
+
+	public FormulaServer(int port) throws IOException
+	{
+		this(new ServerSocket(port, 128, InetAddress.getLoopbackAddress()), new FormulaStore(), DEFAULT_CACHE_SIZE, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * @param socket the socket accepting the clients; it is closed by close()
+	 * @param store parses the formulas, in its mode and with its functions
+	 * @param cacheSize the number of formulas kept parsed
+	 * @param queueSize the number of chunks waiting for a formula before the
+	 * requests are refused
+	 */
+
+	public FormulaServer(ServerSocket socket, FormulaStore store, final int cacheSize, int queueSize)
+	{
+		if(cacheSize<1 || queueSize<1)
+			throw new IllegalArgumentException("The cache and the queues need room for one element");
+		this.socket=socket;
+		this.store=store;
+		this.queueSize=queueSize;
+		formulas=new LinkedHashMap<String, Entry>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+			{
+				if(size()<=cacheSize)
+					return false;
+				// The requests still holding the entry keep its CompactFormula
+				FormulaServer.this.store.release(eldest.getValue().shared);
+				return true;
+			}
+		};
+		ExecutorService executor=AsyncEvaluator.virtualThreadExecutor();
+		connections=executor!=null?executor:Executors.newCachedThreadPool(task -> {
+			Thread thread=new Thread(task, "FormulaServer connection");
+			thread.setDaemon(true);
+			return thread;
+		});
+		requests=new LongAdder();
+		rows=new LongAdder();
+		batches=new LongAdder();
+		rejected=new LongAdder();
+	}
+
+	/**
+	 * Accepts the clients on a new thread, until close() is called
+	 */
+
+	public void start()
+	{
+		Thread acceptor=new Thread(() -> {
+			while(!socket.isClosed())
+			{
+				try
+				{
+					Socket client=socket.accept();
+					connections.execute(() -> serve(client));
+				} catch(IOException e)
+				{
+					// Closed
+				}
+			}
+		}, "FormulaServer acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort()
+	{
+		return socket.getLocalPort();
+	}
+
+	private void serve(Socket client)
+	{
+		try(client;
+			BufferedReader in=new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+			Writer out=new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8)))
+		{
+			client.setTcpNoDelay(true);
+			String line;
+			while((line=in.readLine())!=null && !line.equals("QUIT"))
+			{
+				requests.increment();
+				handle(line, in, out);
+				out.flush();
+			}
+		} catch(IOException e)
+		{
+			// The client left, and so did its request
+		}
+	}
+
+	private void handle(String line, BufferedReader in, Writer out) throws IOException
+	{
+		String[] words=line.split(" ", 4);
+		int count=0;
+		try
+		{
+			if(words[0].equals("PARSE") && words.length>=3)
+			{
+				String formula=line.substring(words[0].length()+words[1].length()+2);
+				out.write("OK "+String.join(",", entry(formula, variables(words[1])).formula.getVariables())+"\n");
+				return;
+			}
+			if(!words[0].equals("EVAL") || words.length<4)
+				throw new IllegalArgumentException("Unknown request : "+line);
+			count=Integer.parseInt(words[1]);
+			if(count<0)
+				throw new IllegalArgumentException("Negative number of rows : "+count);
+			Entry entry=entry(words[3], variables(words[2]));
+			out.write("OK "+count+"\n");
+			evaluate(entry, count, in, out);
+		} catch(RuntimeException e)
+		{
+			// The rows of the request are skipped
+			for(int i=0;i<count && in.readLine()!=null;i++)
+			{
+			}
+			out.write("ERROR "+e.getClass().getSimpleName()+" "+e.getMessage()+"\n");
+		} catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	static private String[] variables(String list)
+	{
+		return list.equals("-")?new String[0]:list.split(",");
+	}
+
+	private Entry entry(String formula, String[] variables) throws UnexpectedCharacterException, UnexpectedTokenException, UnevenParenthesesException, UnexpectedVariableException, UnexpectedEOLException
+	{
+		String key=String.join(",", variables)+" "+formula;
+		synchronized(formulas)
+		{
+			Entry entry=formulas.get(key);
+			if(entry!=null)
+				return entry;
+		}
+		FormulaStore.SharedFormula shared=store.acquire(formula, variables);
+		Entry created;
+		try
+		{
+			created=new Entry(shared, variables, queueSize);
+		} catch(UnexpectedVariableException e)
+		{
+			store.release(shared);
+			throw e;
+		}
+		synchronized(formulas)
+		{
+			Entry entry=formulas.putIfAbsent(key, created);
+			if(entry==null)
+				return created;
+		}
+		// Another thread parsed it meanwhile
+		store.release(shared);
+		return entry(formula, variables);
+	}
+
+	private void evaluate(Entry entry, int count, BufferedReader in, Writer out) throws IOException, InterruptedException
+	{
+		StringBuilder results=new StringBuilder();
+		for(int start=0;start<count;start+=CHUNK)
+		{
+			int size=Math.min(CHUNK, count-start);
+			double[] values=new double[size*entry.width];
+			for(int row=0;row<size;row++)
+			{
+				String line=in.readLine();
+				if(line==null)
+					throw new IOException("End of stream before the last row");
+				read(line, values, row*entry.width, entry.width);
+			}
+			Chunk chunk=new Chunk(values, size);
+			if(!entry.queue.offer(chunk, QUEUE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+			{
+				// The results of the request are all NaN from there
+				rejected.increment();
+				for(int row=start+size;row<count && in.readLine()!=null;row++)
+				{
+				}
+				for(int i=start;i<count;i++)
+					out.write("NaN\n");
+				out.write("ERROR Busy\n");
+				return;
+			}
+			await(entry, chunk);
+			results.setLength(0);
+			for(int i=0;i<size;i++)
+				results.append(chunk.results[i]).append('\n');
+			out.write(results.toString());
+			out.flush();
+			rows.add(size);
+		}
+		out.write("END\n");
+	}
+
+	/**
+	 * Reads the values of a row, or NaN if they aren't width numbers
+	 */
+
+	static private void read(String line, double[] values, int offset, int width)
+	{
+		String[] numbers=line.isEmpty()?new String[0]:line.split(",");
+		try
+		{
+			if(numbers.length==width)
+			{
+				for(int i=0;i<width;i++)
+					values[offset+i]=Double.parseDouble(numbers[i]);
+				return;
+			}
+		} catch(NumberFormatException e)
+		{
+			// NaN below
+		}
+		for(int i=0;i<width;i++)
+			values[offset+i]=Double.NaN;
+	}
+
+	/**
+	 * Waits for chunk to be evaluated, evaluating the queue of entry if no
+	 * other thread does
+	 */
+
+	private void await(Entry entry, Chunk chunk) throws InterruptedException
+	{
+		// The thread which stops draining looks at the queue again, so a 
+		// chunk queued meanwhile is never left without a thread to evaluate it
+		while(!entry.queue.isEmpty() && entry.draining.compareAndSet(false, true))
+		{
+			try
+			{
+				Chunk next;
+				while((next=entry.queue.poll())!=null)
+					calculate(entry, next);
+				batches.increment();
+			} finally
+			{
+				entry.draining.set(false);
+			}
+		}
+		chunk.done.await();
+	}
+
+	static private void calculate(Entry entry, Chunk chunk)
+	{
+		double[] frame=entry.frame;
+		int[] positions=entry.positions;
+		for(int row=0, offset=0;row<chunk.count;row++, offset+=entry.width)
+		{
+			for(int i=0;i<positions.length;i++)
+				frame[i]=chunk.values[offset+positions[i]];
+			try
+			{
+				chunk.results[row]=entry.formula.calcValue(frame);
+			} catch(RuntimeException e)
+			{
+				// Thrown by a Java function of the registry
+				chunk.results[row]=Double.NaN;
+			}
+		}
+		chunk.done.countDown();
+	}
+
+	/**
+	 * @return the number of requests received
+	 */
+
+	public long getRequests()
+	{
+		return requests.sum();
+	}
+
+	/**
+	 * @return the number of rows evaluated
+	 */
+
+	public long getRows()
+	{
+		return rows.sum();
+	}
+
+	/**
+	 * @return the number of times a thread evaluated the queue of a formula,
+	 * each time for one or more requests
+	 */
+
+	public long getBatches()
+	{
+		return batches.sum();
+	}
+
+	/**
+	 * @return the number of requests refused because the queue of their
+	 * formula was full
+	 */
+
+	public long getRejected()
+	{
+		return rejected.sum();
+	}
+
+	/**
+	 * Stops accepting clients; the connections end with their current
+	 * request
+	 */
+
+	public void close() throws IOException
+	{
+		socket.close();
+		connections.shutdown();
+	}
+
+	public String toString()
+	{
+		return "FormulaServer on port "+getPort()+", "+getRequests()+" requests, "+getRows()+" rows in "+getBatches()+" batches, "+getRejected()+" rejected";
+	}
+
+	/**
+	 * Runs a server on the loopback interface until the process is stopped
+	 *
+	 * @param args the port, 7070 by default
+	 */
+
+	static public void main(String[] args) throws IOException, InterruptedException
+	{
+		FormulaServer server=new FormulaServer(args.length>0?Integer.parseInt(args[0]):7070);
+		server.start();
+		System.out.println("Listening on port "+server.getPort());
+		// The threads of the server are daemons
+		Thread.currentThread().join();
+	}
+}
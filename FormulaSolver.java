@@ -0,0 +1,435 @@
+package darformula;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *
+ * FormulaSolver finds where a formula of one free variable reaches a target
+ * value, or where it is minimal. The formula is bound once (see BoundFormula),
+ * so that each iteration only stores the free variable in a slot instead of
+ * going through the Map of the RuntimeFormula.
+ *
+ * Parameters are other variables whose values change between problems; the
+ * remaining variables keep the value they had when the solver was created.
+ *
+ * A FormulaSolver is not thread-safe, but the batch methods solve their
+ * problems in parallel, each thread using its own copy of the formula.
+ *
+ */
+
+public class FormulaSolver
+{
+	static private final double EPSILON=Math.ulp(1.0);
+	static private final double SQRT_EPSILON=Math.sqrt(EPSILON);
+	// Smallest problem count of a batch task worth splitting
+	static private final int THRESHOLD=16;
+
+	private final RuntimeFormula source;
+	private final String variable;
+	private final String[] parameters;
+	private final BoundFormula function;
+	private BoundFormula derivative;
+
+	private double tolerance;
+	private int maxIterations;
+	private ForkJoinPool pool;
+
+	/**
+	 * @param formula the formula to solve
+	 * @param variable the free variable
+	 * @param parameters variables whose values are given by setParameters or
+	 * by the batch methods
+	 */
+
+	public FormulaSolver(RuntimeFormula formula, String variable, String... parameters)
+	{
+		this.source=formula.copy();
+		this.variable=variable;
+		this.parameters=parameters.clone();
+		this.function=source.bind(slotVariables());
+		this.tolerance=1e-10;
+		this.maxIterations=100;
+		this.pool=ForkJoinPool.commonPool();
+	}
+
+	private FormulaSolver(FormulaSolver solver)
+	{
+		this.source=solver.source;
+		this.variable=solver.variable;
+		this.parameters=solver.parameters;
+		this.function=solver.function.copy();
+		this.derivative=solver.derivative==null?null:solver.derivative.copy();
+		this.tolerance=solver.tolerance;
+		this.maxIterations=solver.maxIterations;
+		this.pool=solver.pool;
+	}
+
+	private String[] slotVariables()
+	{
+		String[] slots=new String[parameters.length+1];
+		slots[0]=variable;
+		System.arraycopy(parameters, 0, slots, 1, parameters.length);
+		return slots;
+	}
+
+	/**
+	 * @param tolerance the absolute precision wanted on the free variable
+	 */
+
+	public void setTolerance(double tolerance)
+	{
+		if(!(tolerance>0))
+			throw new IllegalArgumentException("The tolerance must be positive");
+		this.tolerance=tolerance;
+	}
+
+	public void setMaxIterations(int maxIterations)
+	{
+		this.maxIterations=maxIterations;
+	}
+
+	public void setPool(ForkJoinPool pool)
+	{
+		this.pool=pool;
+	}
+
+	/**
+	 * @param values the values of the parameters, in the order given at
+	 * construction
+	 */
+
+	public void setParameters(double... values)
+	{
+		if(values.length!=parameters.length)
+			throw new IllegalArgumentException("Expected "+parameters.length+" parameters, got "+values.length);
+		System.arraycopy(values, 0, function.slots(), 1, values.length);
+		if(derivative!=null)
+			System.arraycopy(values, 0, derivative.slots(), 1, values.length);
+	}
+
+	/**
+	 * @return the value of the formula for x
+	 */
+
+	public double valueAt(double x) throws UnexpectedVariableException
+	{
+		function.slots()[0]=x;
+		return function.calcValue();
+	}
+
+	private double derivativeAt(double x) throws UnexpectedVariableException
+	{
+		if(derivative==null)
+		{
+			derivative=source.derivative(variable).bind(slotVariables());
+			System.arraycopy(function.slots(), 1, derivative.slots(), 1, parameters.length);
+		}
+		derivative.slots()[0]=x;
+		return derivative.calcValue();
+	}
+
+	/**
+	 *
+	 * Brent's method: finds x in [lower, upper] where the formula is equal to
+	 * target, combining bisection, secant and inverse quadratic interpolation.
+	 *
+	 * @throws IllegalArgumentException if the formula minus target has the
+	 * same sign at both ends of the interval
+	 * @throws ArithmeticException if there is no convergence after the
+	 * maximum number of iterations
+	 */
+
+	public double findRoot(double target, double lower, double upper) throws UnexpectedVariableException
+	{
+		double a=lower, b=upper, c, d, e;
+		double fa=valueAt(a)-target, fb=valueAt(b)-target, fc;
+		if(fa==0)
+			return a;
+		if(fb==0)
+			return b;
+		if(fa>0 == fb>0 || Double.isNaN(fa) || Double.isNaN(fb))
+			throw new IllegalArgumentException("The interval ["+lower+", "+upper+"] does not bracket a root");
+		c=a;
+		fc=fa;
+		d=e=b-a;
+		for(int iteration=0;iteration<maxIterations;iteration++)
+		{
+			if(fb>0 == fc>0)
+			{
+				c=a;
+				fc=fa;
+				d=e=b-a;
+			}
+			if(Math.abs(fc)<Math.abs(fb))
+			{
+				a=b;b=c;c=a;
+				fa=fb;fb=fc;fc=fa;
+			}
+			double tol=2*EPSILON*Math.abs(b)+0.5*tolerance;
+			double middle=0.5*(c-b);
+			if(Math.abs(middle)<=tol || fb==0)
+				return b;
+			if(Math.abs(e)>=tol && Math.abs(fa)>Math.abs(fb))
+			{
+				double p, q, r, s=fb/fa;
+				if(a==c)
+				{
+					// Secant
+					p=2*middle*s;
+					q=1-s;
+				}
+				else
+				{
+					// Inverse quadratic interpolation
+					q=fa/fc;
+					r=fb/fc;
+					p=s*(2*middle*q*(q-r)-(b-a)*(r-1));
+					q=(q-1)*(r-1)*(s-1);
+				}
+				if(p>0)
+					q=-q;
+				p=Math.abs(p);
+				if(2*p<Math.min(3*middle*q-Math.abs(tol*q), Math.abs(e*q)))
+				{
+					e=d;
+					d=p/q;
+				}
+				else
+				{
+					d=middle;
+					e=d;
+				}
+			}
+			else
+			{
+				d=middle;
+				e=d;
+			}
+			a=b;
+			fa=fb;
+			b+=Math.abs(d)>tol?d:Math.copySign(tol, middle);
+			fb=valueAt(b)-target;
+		}
+		throw new ArithmeticException("No root found after "+maxIterations+" iterations");
+	}
+
+	/**
+	 *
+	 * Newton's method, using the symbolic derivative of the formula, which is
+	 * built at the first call.
+	 *
+	 * @throws ArithmeticException if the derivative is 0 or not a number, or if
+	 * there is no convergence after the maximum number of iterations
+	 * @throws UnsupportedOperationException if the formula calls a Java
+	 * function of the free variable
+	 */
+
+	public double newton(double target, double start) throws UnexpectedVariableException
+	{
+		double x=start;
+		for(int iteration=0;iteration<maxIterations;iteration++)
+		{
+			double fx=valueAt(x)-target;
+			if(fx==0)
+				return x;
+			double slope=derivativeAt(x);
+			if(slope==0 || Double.isNaN(slope) || Double.isNaN(fx))
+				throw new ArithmeticException("Newton's method stopped at "+x+" : derivative "+slope);
+			double step=fx/slope;
+			x-=step;
+			if(Math.abs(step)<=tolerance)
+				return x;
+		}
+		throw new ArithmeticException("No root found after "+maxIterations+" iterations");
+	}
+
+	/**
+	 *
+	 * Brent's minimization: finds a local minimum of the formula in
+	 * [lower, upper], combining golden section search and parabolic
+	 * interpolation.
+	 *
+	 * @return the value of the free variable at the minimum
+	 * @throws ArithmeticException if there is no convergence after the
+	 * maximum number of iterations
+	 */
+
+	public double minimize(double lower, double upper) throws UnexpectedVariableException
+	{
+		final double golden=0.5*(3-Math.sqrt(5));
+		double a=Math.min(lower, upper), b=Math.max(lower, upper);
+		double x, w, v, fx, fw, fv, d=0, e=0;
+		x=w=v=a+golden*(b-a);
+		fx=fw=fv=valueAt(x);
+		for(int iteration=0;iteration<maxIterations;iteration++)
+		{
+			double middle=0.5*(a+b);
+			double tol1=SQRT_EPSILON*Math.abs(x)+tolerance/3;
+			double tol2=2*tol1;
+			if(Math.abs(x-middle)<=tol2-0.5*(b-a))
+				return x;
+			boolean goldenSection=true;
+			if(Math.abs(e)>tol1)
+			{
+				// Parabola through x, w and v
+				double r=(x-w)*(fx-fv);
+				double q=(x-v)*(fx-fw);
+				double p=(x-v)*q-(x-w)*r;
+				q=2*(q-r);
+				if(q>0)
+					p=-p;
+				q=Math.abs(q);
+				double previous=e;
+				e=d;
+				if(Math.abs(p)<Math.abs(0.5*q*previous) && p>q*(a-x) && p<q*(b-x))
+				{
+					d=p/q;
+					double u=x+d;
+					if(u-a<tol2 || b-u<tol2)
+						d=Math.copySign(tol1, middle-x);
+					goldenSection=false;
+				}
+			}
+			if(goldenSection)
+			{
+				e=(x>=middle)?a-x:b-x;
+				d=golden*e;
+			}
+			double u=(Math.abs(d)>=tol1)?x+d:x+Math.copySign(tol1, d);
+			double fu=valueAt(u);
+			if(fu<=fx)
+			{
+				if(u>=x)
+					a=x;
+				else
+					b=x;
+				v=w;fv=fw;
+				w=x;fw=fx;
+				x=u;fx=fu;
+			}
+			else
+			{
+				if(u<x)
+					a=u;
+				else
+					b=u;
+				if(fu<=fw || w==x)
+				{
+					v=w;fv=fw;
+					w=u;fw=fu;
+				}
+				else if(fu<=fv || v==x || v==w)
+				{
+					v=u;fv=fu;
+				}
+			}
+		}
+		throw new ArithmeticException("No minimum found after "+maxIterations+" iterations");
+	}
+
+	/**
+	 *
+	 * Solves findRoot(targets[k], lower, upper) for every k in parallel, with
+	 * the parameters parameterValues[k].
+	 *
+	 * @param parameterValues the values of the parameters for each problem,
+	 * or null if there are no parameters
+	 * @return the roots, NaN for the problems without a root
+	 */
+
+	public double[] findRoots(final double[] targets, final double[][] parameterValues, final double lower, final double upper)
+	{
+		return solveAll(targets.length, parameterValues, new Problem(){
+			public double solve(FormulaSolver solver, int k)
+			{
+				return solver.findRoot(targets[k], lower, upper);
+			}
+		});
+	}
+
+	/**
+	 *
+	 * Solves minimize(lower, upper) in parallel for each set of parameters.
+	 *
+	 * @return the minima, NaN for the problems without convergence
+	 */
+
+	public double[] minimizeAll(final double[][] parameterValues, final double lower, final double upper)
+	{
+		return solveAll(parameterValues.length, parameterValues, new Problem(){
+			public double solve(FormulaSolver solver, int k)
+			{
+				return solver.minimize(lower, upper);
+			}
+		});
+	}
+
+	private interface Problem
+	{
+		double solve(FormulaSolver solver, int k);
+	}
+
+	private double[] solveAll(int count, double[][] parameterValues, Problem problem)
+	{
+		if(parameterValues!=null && parameterValues.length!=count)
+			throw new IllegalArgumentException("Expected "+count+" sets of parameters, got "+parameterValues.length);
+		final double[] results=new double[count];
+		final ThreadLocal<FormulaSolver> solvers=new ThreadLocal<FormulaSolver>(){
+			protected FormulaSolver initialValue()
+			{
+				return new FormulaSolver(FormulaSolver.this);
+			}
+		};
+		pool.invoke(new Batch(0, count, parameterValues, problem, results, solvers));
+		return results;
+	}
+
+	private static class Batch extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int start, end;
+		private final double[][] parameterValues;
+		private final Problem problem;
+		private final double[] results;
+		private final ThreadLocal<FormulaSolver> solvers;
+
+		Batch(int start, int end, double[][] parameterValues, Problem problem, double[] results, ThreadLocal<FormulaSolver> solvers)
+		{
+			this.start=start;
+			this.end=end;
+			this.parameterValues=parameterValues;
+			this.problem=problem;
+			this.results=results;
+			this.solvers=solvers;
+		}
+
+		protected void compute()
+		{
+			if(end-start>THRESHOLD)
+			{
+				int middle=(start+end)>>>1;
+				invokeAll(new Batch(start, middle, parameterValues, problem, results, solvers), new Batch(middle, end, parameterValues, problem, results, solvers));
+				return;
+			}
+			FormulaSolver solver=solvers.get();
+			for(int k=start;k<end;k++)
+			{
+				if(parameterValues!=null)
+					solver.setParameters(parameterValues[k]);
+				try
+				{
+					results[k]=problem.solve(solver, k);
+				} catch(ArithmeticException e)
+				{
+					results[k]=Double.NaN;
+				} catch(IllegalArgumentException e)
+				{
+					// Includes UnexpectedVariableException
+					results[k]=Double.NaN;
+				}
+			}
+		}
+	}
+}
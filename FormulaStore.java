@@ -0,0 +1,172 @@
+package darformula;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ * FormulaStore keeps one CompactFormula for each distinct formula: formulas
+ * are deduplicated by the String of their canonical tree (see
+ * RuntimeFormula.canonical()), so that "x+1", "1 + x" and "(x)+1" share the
+ * same instance. CompactFormulas are immutable, so the shared instance can be
+ * evaluated by every holder at the same time, each with its own frame.
+ *
+ * Each acquire must be matched by a release; a formula leaves the store when
+ * it is not referenced anymore.
+ *
+ */
+
+public class FormulaStore
+{
+	private final Map<String, SharedFormula> formulas;
+	private final RuntimeFormula parser;
+	private long hits, misses;
+
+	/**
+	 *
+	 * A formula of the store, with the number of holders
+	 */
+
+	static public class SharedFormula
+	{
+		private final String canonicalForm;
+		private final CompactFormula formula;
+		private int references;
+
+		private SharedFormula(String canonicalForm, CompactFormula formula)
+		{
+			this.canonicalForm=canonicalForm;
+			this.formula=formula;
+		}
+
+		public CompactFormula getFormula()
+		{
+			return formula;
+		}
+
+		public String getCanonicalForm()
+		{
+			return canonicalForm;
+		}
+
+		public String toString()
+		{
+			return canonicalForm;
+		}
+	}
+
+	public FormulaStore()
+	{
+		this(FunctionRegistry.getDefault(), true);
+	}
+
+	/**
+	 * @param functions the functions the formulas can call
+	 * @param catchesArithmeticExceptions the mode of every formula of the store
+	 */
+
+	public FormulaStore(FunctionRegistry functions, boolean catchesArithmeticExceptions)
+	{
+		formulas=new HashMap<String, SharedFormula>();
+		parser=new RuntimeFormula();
+		parser.setFunctionRegistry(functions);
+		parser.setCatchesArithmeticExceptions(catchesArithmeticExceptions);
+	}
+
+	/**
+	 * @return the shared formula equivalent to formula, which is added to the
+	 * store if needed
+	 * @throws the exceptions of RuntimeFormula.setFormula
+	 */
+
+	public SharedFormula acquire(String formula, String[] expectedVariables) throws UnexpectedCharacterException, UnexpectedTokenException, UnevenParenthesesException, UnexpectedVariableException, UnexpectedEOLException
+	{
+		RuntimeFormula canonical;
+		synchronized(parser)
+		{
+			parser.setFormula(formula, expectedVariables);
+			canonical=parser.canonical();
+		}
+		String key=canonical.formulaToString();
+		synchronized(this)
+		{
+			SharedFormula shared=formulas.get(key);
+			if(shared!=null)
+			{
+				hits++;
+				shared.references++;
+				return shared;
+			}
+		}
+		// Compiled outside the lock; another thread may add the same formula meanwhile
+		SharedFormula created=new SharedFormula(key, canonical.compile());
+		synchronized(this)
+		{
+			SharedFormula shared=formulas.get(key);
+			if(shared==null)
+			{
+				misses++;
+				shared=created;
+				formulas.put(key, shared);
+			}
+			else
+				hits++;
+			shared.references++;
+			return shared;
+		}
+	}
+
+	/**
+	 * Gives back a formula returned by acquire, which leaves the store if no
+	 * one else holds it
+	 *
+	 * @throws IllegalStateException if the formula was released more times
+	 * than it was acquired
+	 */
+
+	public synchronized void release(SharedFormula formula)
+	{
+		if(formula.references<=0 || formulas.get(formula.canonicalForm)!=formula)
+			throw new IllegalStateException("Formula released too many times : "+formula);
+		if(--formula.references==0)
+			formulas.remove(formula.canonicalForm);
+	}
+
+	/**
+	 * @return the number of holders of formula
+	 */
+
+	public synchronized int references(SharedFormula formula)
+	{
+		return formulas.get(formula.canonicalForm)==formula?formula.references:0;
+	}
+
+	/**
+	 * @return the number of distinct formulas in the store
+	 */
+
+	public synchronized int size()
+	{
+		return formulas.size();
+	}
+
+	/**
+	 * @return the number of calls to acquire which found their formula in the
+	 * store
+	 */
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	public synchronized String toString()
+	{
+		return formulas.size()+" formulas, "+hits+" hits, "+misses+" misses";
+	}
+}
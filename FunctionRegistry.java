@@ -0,0 +1,336 @@
+package darformula;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ *
+ * FunctionRegistry maps function names to their implementation. The built-in
+ * functions (sqrt, log, sin, sum, ...) are always known; other functions can
+ * be registered either as formula text with parameters, which is inlined into
+ * the tree of the calling formula when it is built, or as Java operators.
+ *
+ * Every lookup is a hash lookup on the lower-case name, so that Tokenize does
+ * not have to compare each identifier with every function name.
+ *
+ */
+
+public class FunctionRegistry
+{
+	// Built-in unary functions and the operator Character used by UnaryElement
+	static private final Map<String, Character> UNARY_OPERATORS=new HashMap<String, Character>();
+	// Built-in ternary functions and the operator Character used by TernaryElement
+	static private final Map<String, Character> TERNARY_OPERATORS=new HashMap<String, Character>();
+	// Built-in functions of a series and the operator Character used by SeriesElement
+	static private final Map<String, Character> SERIES_OPERATORS=new HashMap<String, Character>();
+
+	static
+	{
+		UNARY_OPERATORS.put("sqrt", 'x');
+		UNARY_OPERATORS.put("log", 'l');
+		UNARY_OPERATORS.put("ln", 'e');
+		UNARY_OPERATORS.put("sin", 's');
+		UNARY_OPERATORS.put("cos", 'c');
+		UNARY_OPERATORS.put("tan", 't');
+		UNARY_OPERATORS.put("sinh", 'h');
+		UNARY_OPERATORS.put("cosh", 'o');
+		UNARY_OPERATORS.put("tanh", 'n');
+		UNARY_OPERATORS.put("asin", 'a');
+		UNARY_OPERATORS.put("acos", 'q');
+		UNARY_OPERATORS.put("atan", 'u');
+		UNARY_OPERATORS.put("abs", 'i');
+		UNARY_OPERATORS.put("ceil", 'k');
+		UNARY_OPERATORS.put("floor", 'f');
+		UNARY_OPERATORS.put("!", 'r');
+
+		TERNARY_OPERATORS.put("sum", 's');
+		TERNARY_OPERATORS.put("mult", 'm');
+
+		SERIES_OPERATORS.put("lag", 'l');
+		SERIES_OPERATORS.put("rollmean", 'a');
+		SERIES_OPERATORS.put("rollmax", 'x');
+		SERIES_OPERATORS.put("ema", 'e');
+	}
+
+	static private final FunctionRegistry DEFAULT=new FunctionRegistry();
+
+	private final Map<String, Function> functions;
+
+	/**
+	 *
+	 * A function registered by the user. Exactly one of body, unary and binary
+	 * is set.
+	 */
+
+	static public class Function
+	{
+		private final String name;
+		private final int arity;
+		private final boolean pure;
+
+		final String[] parameters;
+		final RuntimeFormula.FormulaTokens body; 	// in RPN
+		final DoubleUnaryOperator unary;
+		final DoubleBinaryOperator binary;
+
+		private Function(String name, String[] parameters, RuntimeFormula.FormulaTokens body, DoubleUnaryOperator unary, DoubleBinaryOperator binary, boolean pure)
+		{
+			this.name=name;
+			this.parameters=parameters;
+			this.body=body;
+			this.unary=unary;
+			this.binary=binary;
+			this.pure=pure;
+			if(body!=null)
+				arity=parameters.length;
+			else if(unary!=null)
+				arity=1;
+			else
+				arity=2;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public int getArity()
+		{
+			return arity;
+		}
+
+		/**
+		 * @return true if the function always returns the same value for the
+		 * same arguments and has no side effects, so that calls with constant
+		 * arguments can be computed once when the tree is built. Functions
+		 * defined by formula text are inlined, so this only matters for Java
+		 * operators.
+		 */
+
+		public boolean isPure()
+		{
+			return pure;
+		}
+
+		public boolean isInlined()
+		{
+			return body!=null;
+		}
+
+		public String toString()
+		{
+			return name+"/"+arity;
+		}
+	}
+
+	public FunctionRegistry()
+	{
+		functions=new ConcurrentHashMap<String, Function>();
+	}
+
+	/**
+	 * @return the registry used by RuntimeFormula and FormulaTokens.Tokenize
+	 * when no other registry was given
+	 */
+
+	static public FunctionRegistry getDefault()
+	{
+		return DEFAULT;
+	}
+
+	/**
+	 * @return the Character used by UnaryElement for a built-in unary
+	 * function, or null if name is not one
+	 */
+
+	static public Character unaryOperator(String name)
+	{
+		return UNARY_OPERATORS.get(name);
+	}
+
+	/**
+	 * @return the Character used by TernaryElement for a built-in ternary
+	 * function, or null if name is not one
+	 */
+
+	static public Character ternaryOperator(String name)
+	{
+		return TERNARY_OPERATORS.get(name);
+	}
+
+	/**
+	 * @return the Character used by SeriesElement for a built-in function of
+	 * a series, or null if name is not one
+	 */
+
+	static public Character seriesOperator(String name)
+	{
+		return SERIES_OPERATORS.get(name);
+	}
+
+	/**
+	 * @return a function computing the next row of a series with step, for
+	 * the CompactFormula of its RuntimeFormula
+	 */
+
+	static Function series(String name, DoubleUnaryOperator step)
+	{
+		return new Function(name, null, null, step, null, false);
+	}
+
+	static public boolean isBuiltIn(String name)
+	{
+		return UNARY_OPERATORS.containsKey(name) || TERNARY_OPERATORS.containsKey(name) || SERIES_OPERATORS.containsKey(name);
+	}
+
+	/**
+	 * @param name the lower-case name of the function
+	 * @return true if name is a built-in or registered function
+	 */
+
+	public boolean isFunction(String name)
+	{
+		return isBuiltIn(name) || functions.containsKey(name);
+	}
+
+	/**
+	 * @return the registered function with that lower-case name, or null
+	 */
+
+	public Function get(String name)
+	{
+		return functions.get(name);
+	}
+
+	/**
+	 * @return the number of arguments expected by the function, or -1 if name
+	 * is not a function
+	 */
+
+	public int arity(String name)
+	{
+		if(UNARY_OPERATORS.containsKey(name))
+			return 1;
+		if(TERNARY_OPERATORS.containsKey(name))
+			return 3;
+		if(SERIES_OPERATORS.containsKey(name))
+			return 2;
+		Function function=functions.get(name);
+		return function==null?-1:function.getArity();
+	}
+
+	/**
+	 *
+	 * @param name the name of the function, made only of letters
+	 * @param parameters the names of the parameters, as used in body
+	 * @param body the formula computing the function
+	 *
+	 * Registers a function defined by a formula. Every call is replaced by the
+	 * body when the tree of the calling formula is built, with the arguments
+	 * in place of the parameters. The body can call functions registered
+	 * before it.
+	 *
+	 * The arguments are passed by name: each use of a parameter evaluates its
+	 * own copy of the argument. An argument reading 'r' or calling a Java
+	 * function which isn't pure is refused by setFormula if the body would
+	 * evaluate it more than once.
+	 *
+	 * A registered function is only called when its name is followed by '(';
+	 * elsewhere the name is still read as a variable.
+	 *
+	 * @throws IllegalArgumentException if the name is already used, or one of
+	 * the exceptions of RuntimeFormula.setFormula if the body is not valid
+	 */
+
+	public Function register(String name, String[] parameters, String body) throws UnexpectedCharacterException, UnexpectedTokenException, UnevenParenthesesException, UnexpectedVariableException, UnexpectedEOLException
+	{
+		String key=checkName(name);
+		if(parameters.length==0)
+			throw new IllegalArgumentException("Function "+name+" needs at least one parameter");
+		RuntimeFormula.FormulaTokens tokens=RuntimeFormula.FormulaTokens.Tokenize(body, this).checkFormula().checkVariables(parameters);
+		Iterator<RuntimeFormula.Token> iter=tokens.iterator();
+		while(iter.hasNext())
+		{
+			// The counting variable of sum and mult is not an expression, so it
+			// can't be replaced by an argument
+			RuntimeFormula.Token t=iter.next();
+			if(TERNARY_OPERATORS.containsKey(t.element))
+			{
+				iter.next();
+				String countingVar=iter.next().element;
+				for(String parameter:parameters)
+					if(parameter.equals(countingVar))
+						throw new UnexpectedVariableException("Parameter used as counting variable : "+countingVar);
+			}
+		}
+		return add(key, new Function(key, parameters.clone(), tokens.makePostFix(), null, null, true));
+	}
+
+	/**
+	 * Registers a function of one argument implemented in Java
+	 *
+	 * @param pure true if operator always returns the same value for the same
+	 * argument
+	 * @throws IllegalArgumentException if the name is already used
+	 */
+
+	public Function register(String name, DoubleUnaryOperator operator, boolean pure)
+	{
+		String key=checkName(name);
+		return add(key, new Function(key, null, null, operator, null, pure));
+	}
+
+	/**
+	 * Registers a function of two arguments implemented in Java
+	 *
+	 * @param pure true if operator always returns the same value for the same
+	 * arguments
+	 * @throws IllegalArgumentException if the name is already used
+	 */
+
+	public Function register(String name, DoubleBinaryOperator operator, boolean pure)
+	{
+		String key=checkName(name);
+		return add(key, new Function(key, null, null, null, operator, pure));
+	}
+
+	/**
+	 * Removes a function. Formulas already built keep using it.
+	 *
+	 * @return true if the function was registered
+	 */
+
+	public boolean unregister(String name)
+	{
+		return functions.remove(name.toLowerCase())!=null;
+	}
+
+	private Function add(String key, Function function)
+	{
+		if(functions.putIfAbsent(key, function)!=null)
+			throw new IllegalArgumentException("Function already registered : "+key);
+		return function;
+	}
+
+	private String checkName(String name)
+	{
+		if(name==null || name.isEmpty())
+			throw new IllegalArgumentException("Function name is empty");
+		for(int i=0;i<name.length();i++)
+			if(!Character.isAlphabetic(name.charAt(i)))
+				throw new IllegalArgumentException("Function names must only contain letters : "+name);
+		String key=name.toLowerCase();
+		if(isBuiltIn(key) || key.equals("e") || key.equals("pi") || key.equals("r"))
+			throw new IllegalArgumentException("Reserved name : "+name);
+		return key;
+	}
+
+	public String toString()
+	{
+		return functions.values().toString();
+	}
+}
@@ -0,0 +1,126 @@
+package darformula;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * A histogram of durations in nanoseconds, with fixed buckets: values below 8
+ * have a bucket each, and each power of two above is split in 8 buckets, so
+ * that a percentile is known within 12.5%. It needs no allocation to record
+ * a value, and can be updated by several threads at the same time.
+ *
+ */
+
+public class LatencyHistogram
+{
+	// Buckets per power of two, and its log
+	static private final int SUB_BUCKETS=8, SUB_BITS=3;
+
+	private final AtomicLongArray buckets;
+	private final LongAdder count, total;
+	private final LongAccumulator max;
+
+	public LatencyHistogram()
+	{
+		buckets=new AtomicLongArray(bucket(Long.MAX_VALUE)+1);
+		count=new LongAdder();
+		total=new LongAdder();
+		max=new LongAccumulator(Long::max, 0);
+	}
+
+	static private int bucket(long value)
+	{
+		if(value<SUB_BUCKETS)
+			return (int)value;
+		int magnitude=63-Long.numberOfLeadingZeros(value);
+		return (magnitude-SUB_BITS+1)*SUB_BUCKETS+(int)((value>>>(magnitude-SUB_BITS))&(SUB_BUCKETS-1));
+	}
+
+	/**
+	 * @return the largest value of bucket
+	 */
+
+	static private long highest(int bucket)
+	{
+		if(bucket<SUB_BUCKETS)
+			return bucket;
+		int shift=bucket/SUB_BUCKETS-1;
+		long lowest=(long)(SUB_BUCKETS+bucket%SUB_BUCKETS)<<shift;
+		return lowest+((1L<<shift)-1);
+	}
+
+	/**
+	 * @param nanos a duration; negative durations count as 0
+	 */
+
+	public void record(long nanos)
+	{
+		if(nanos<0)
+			nanos=0;
+		buckets.incrementAndGet(bucket(nanos));
+		count.increment();
+		total.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	public long getTotal()
+	{
+		return total.sum();
+	}
+
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	public double getMean()
+	{
+		long n=count.sum();
+		return n==0?0:(double)total.sum()/n;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return a value which at least percentile % of the recorded values
+	 * don't exceed, at most 12.5% above the exact percentile, or 0 if nothing
+	 * was recorded
+	 */
+
+	public long getPercentile(double percentile)
+	{
+		if(percentile<0 || percentile>100)
+			throw new IllegalArgumentException("The percentile must be between 0 and 100 : "+percentile);
+		long n=0;
+		for(int i=0;i<buckets.length();i++)
+			n+=buckets.get(i);
+		long rank=Math.max(1, (long)Math.ceil(percentile/100*n)), seen=0;
+		for(int i=0;i<buckets.length() && n>0;i++)
+		{
+			seen+=buckets.get(i);
+			if(seen>=rank)
+				return Math.min(highest(i), max.get());
+		}
+		return 0;
+	}
+
+	public void reset()
+	{
+		for(int i=0;i<buckets.length();i++)
+			buckets.set(i, 0);
+		count.reset();
+		total.reset();
+		max.reset();
+	}
+
+	public String toString()
+	{
+		return getCount()+" values, mean "+Math.round(getMean())+" ns, p50 "+getPercentile(50)+" ns, p99 "+getPercentile(99)+" ns, max "+getMax()+" ns";
+	}
+}
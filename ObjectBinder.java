@@ -0,0 +1,210 @@
+package darformula;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ *
+ * ObjectBinder evaluates a formula directly on Java objects: each variable is
+ * read from the object by a MethodHandle found once, when the binder is
+ * created, instead of being copied into the Map of a RuntimeFormula.
+ *
+ * The value of variable x is read from the first of these members of the
+ * class: a method x() (the accessor of a record component), a method getX(),
+ * or a field x. Its type must be a primitive number or a boxed one.
+ *
+ * An ObjectBinder is immutable; calcValue(object, frame) can be called by any
+ * number of threads, each with its own frame (see newFrame()).
+ *
+ */
+
+public class ObjectBinder<T>
+{
+	static private final MethodType ACCESSOR_TYPE=MethodType.methodType(double.class, Object.class);
+	static private final MethodHandle NUMBER_TO_DOUBLE;
+	static
+	{
+		try
+		{
+			NUMBER_TO_DOUBLE=MethodHandles.publicLookup().findVirtual(Number.class, "doubleValue", MethodType.methodType(double.class));
+		} catch(ReflectiveOperationException e)
+		{
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final Class<T> type;
+	private final CompactFormula formula;
+	private final MethodHandle[] accessors;
+	private final ThreadLocal<double[]> frames;
+
+	/**
+	 * @param expectedVariables the variables given to setFormula, which must
+	 * all be members of type
+	 * @throws UnexpectedVariableException if a variable of the formula or an
+	 * expected variable is not a member of type
+	 */
+
+	public ObjectBinder(RuntimeFormula formula, Class<T> type, String... expectedVariables) throws UnexpectedVariableException
+	{
+		this(formula, type, MethodHandles.publicLookup(), expectedVariables);
+	}
+
+	/**
+	 * @param lookup the lookup used to access the members of type, for
+	 * instance MethodHandles.lookup() to read the members of a class which
+	 * isn't public
+	 */
+
+	public ObjectBinder(RuntimeFormula formula, Class<T> type, MethodHandles.Lookup lookup, String... expectedVariables) throws UnexpectedVariableException
+	{
+		this.type=type;
+		this.formula=formula.compile();
+		String[] variables=this.formula.getVariables();
+		Set<String> members=new LinkedHashSet<String>();
+		for(String variable:expectedVariables)
+			members.add(variable);
+		for(String variable:variables)
+			members.add(variable);
+		accessors=new MethodHandle[variables.length];
+		for(String member:members)
+		{
+			MethodHandle accessor=accessor(type, lookup, member);
+			int slot=this.formula.indexOf(member);
+			if(slot>=0)
+				accessors[slot]=accessor;
+		}
+		final CompactFormula compact=this.formula;
+		frames=ThreadLocal.withInitial(() -> compact.newFrame());
+	}
+
+	/**
+	 * @return a MethodHandle of type (Object)double reading variable from an
+	 * instance of type
+	 */
+
+	static private MethodHandle accessor(Class<?> type, MethodHandles.Lookup lookup, String variable) throws UnexpectedVariableException
+	{
+		MethodHandle accessor=null;
+		try
+		{
+			Method method=getter(type, variable);
+			if(method==null && !variable.isEmpty())
+				method=getter(type, "get"+Character.toUpperCase(variable.charAt(0))+variable.substring(1));
+			if(method!=null)
+				accessor=lookup.unreflect(method);
+			else
+			{
+				Field field=type.getField(variable);
+				if(!Modifier.isStatic(field.getModifiers()))
+					accessor=lookup.unreflectGetter(field);
+			}
+		} catch(NoSuchFieldException e)
+		{
+			// Not a member
+		} catch(IllegalAccessException e)
+		{
+			throw new UnexpectedVariableException("Variable : "+variable+" can't be accessed in "+type.getName(), e);
+		}
+		if(accessor==null)
+			throw new UnexpectedVariableException("Variable : "+variable+" is not a member of "+type.getName());
+		Class<?> returned=accessor.type().returnType();
+		if(returned!=double.class && returned!=float.class && returned!=long.class && returned!=int.class && returned!=short.class && returned!=byte.class && returned!=char.class
+				&& !Number.class.isAssignableFrom(returned))
+			throw new IllegalArgumentException("Variable "+variable+" of "+type.getName()+" is not a number : "+returned.getName());
+		if(Number.class.isAssignableFrom(returned) && returned!=Double.class)
+			accessor=MethodHandles.filterReturnValue(accessor.asType(accessor.type().changeReturnType(Number.class)), NUMBER_TO_DOUBLE);
+		return accessor.asType(ACCESSOR_TYPE);
+	}
+
+	/**
+	 * @return the public instance method of type named name without
+	 * parameters, or null
+	 */
+
+	static private Method getter(Class<?> type, String name)
+	{
+		try
+		{
+			Method method=type.getMethod(name);
+			if(Modifier.isStatic(method.getModifiers()) || method.getReturnType()==void.class)
+				return null;
+			return method;
+		} catch(NoSuchMethodException e)
+		{
+			return null;
+		}
+	}
+
+	public Class<T> getType()
+	{
+		return type;
+	}
+
+	/**
+	 * @return the compiled formula evaluated by this binder
+	 */
+
+	public CompactFormula getFormula()
+	{
+		return formula;
+	}
+
+	public double[] newFrame()
+	{
+		return formula.newFrame();
+	}
+
+	/**
+	 * @param frame an array from newFrame(), used by only one thread at a time
+	 * @return the value of the formula with the variables read from object
+	 */
+
+	public double calcValue(T object, double[] frame)
+	{
+		try
+		{
+			for(int i=0;i<accessors.length;i++)
+				frame[i]=(double)accessors[i].invokeExact((Object)object);
+		} catch(RuntimeException | Error e)
+		{
+			throw e;
+		} catch(Throwable e)
+		{
+			throw new RuntimeException("Unexpected exception in the accessor of "+type.getName()+" : "+e, e);
+		}
+		return formula.calcValue(frame);
+	}
+
+	/**
+	 * @return the value of the formula with the variables read from object,
+	 * computed in a frame of the current thread
+	 */
+
+	public double calcValue(T object)
+	{
+		return calcValue(object, frames.get());
+	}
+
+	/**
+	 * Stores in results the value of the formula for each object
+	 */
+
+	public void calcValues(T[] objects, double[] results)
+	{
+		double[] frame=frames.get();
+		for(int i=0;i<objects.length;i++)
+			results[i]=calcValue(objects[i], frame);
+	}
+
+	public String toString()
+	{
+		return formula+" on "+type.getName();
+	}
+}
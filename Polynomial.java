@@ -0,0 +1,192 @@
+package darformula;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ *
+ * A polynomial of several variables with double coefficients, used to find
+ * the polynomial subtrees of a formula and write them in Horner form (see
+ * RuntimeFormula.horner()).
+ *
+ * The operations return null instead of a polynomial with more than
+ * MAX_TERMS terms or a degree above MAX_DEGREE. Terms whose coefficient is 0
+ * are left out.
+ *
+ */
+
+class Polynomial
+{
+	static final int MAX_DEGREE=16, MAX_TERMS=64;
+
+	// Coefficient of each monomial; a monomial maps its variables to their exponent
+	private final Map<Map<String, Integer>, Double> terms;
+
+	private Polynomial(Map<Map<String, Integer>, Double> terms)
+	{
+		this.terms=terms;
+	}
+
+	static Polynomial constant(double value)
+	{
+		Map<Map<String, Integer>, Double> terms=new LinkedHashMap<Map<String, Integer>, Double>();
+		if(value!=0)
+			terms.put(Collections.<String, Integer>emptyMap(), value);
+		return new Polynomial(terms);
+	}
+
+	static Polynomial variable(String variable)
+	{
+		Map<Map<String, Integer>, Double> terms=new LinkedHashMap<Map<String, Integer>, Double>();
+		terms.put(Collections.singletonMap(variable, 1), 1.0);
+		return new Polynomial(terms);
+	}
+
+	/**
+	 * @return this+sign*other
+	 */
+
+	Polynomial add(Polynomial other, double sign)
+	{
+		Map<Map<String, Integer>, Double> sum=new LinkedHashMap<Map<String, Integer>, Double>(terms);
+		for(Map.Entry<Map<String, Integer>, Double> term:other.terms.entrySet())
+			addTerm(sum, term.getKey(), sign*term.getValue());
+		return sum.size()>MAX_TERMS?null:new Polynomial(sum);
+	}
+
+	Polynomial multiply(Polynomial other)
+	{
+		Map<Map<String, Integer>, Double> product=new LinkedHashMap<Map<String, Integer>, Double>();
+		for(Map.Entry<Map<String, Integer>, Double> term1:terms.entrySet())
+			for(Map.Entry<Map<String, Integer>, Double> term2:other.terms.entrySet())
+			{
+				Map<String, Integer> monomial=new TreeMap<String, Integer>(term1.getKey());
+				int degree=0;
+				for(Map.Entry<String, Integer> factor:term2.getKey().entrySet())
+					monomial.merge(factor.getKey(), factor.getValue(), Integer::sum);
+				for(int exponent:monomial.values())
+					degree+=exponent;
+				if(degree>MAX_DEGREE)
+					return null;
+				addTerm(product, monomial, term1.getValue()*term2.getValue());
+				if(product.size()>MAX_TERMS)
+					return null;
+			}
+		return new Polynomial(product);
+	}
+
+	/**
+	 * @return this with each coefficient divided by divisor
+	 */
+
+	Polynomial divide(double divisor)
+	{
+		Map<Map<String, Integer>, Double> quotient=new LinkedHashMap<Map<String, Integer>, Double>();
+		for(Map.Entry<Map<String, Integer>, Double> term:terms.entrySet())
+			addTerm(quotient, term.getKey(), term.getValue()/divisor);
+		return new Polynomial(quotient);
+	}
+
+	Polynomial power(int exponent)
+	{
+		Polynomial power=constant(1);
+		for(int i=0;i<exponent && power!=null;i++)
+			power=power.multiply(this);
+		return power;
+	}
+
+	static private void addTerm(Map<Map<String, Integer>, Double> terms, Map<String, Integer> monomial, double coefficient)
+	{
+		Double previous=terms.get(monomial);
+		double sum=previous==null?coefficient:previous+coefficient;
+		if(sum==0)
+			terms.remove(monomial);
+		else
+			terms.put(monomial, sum);
+	}
+
+	boolean isConstant()
+	{
+		return terms.isEmpty() || (terms.size()==1 && terms.containsKey(Collections.<String, Integer>emptyMap()));
+	}
+
+	/**
+	 * @return true if the polynomial has one term at most
+	 */
+
+	boolean isMonomial()
+	{
+		return terms.size()<=1;
+	}
+
+	/**
+	 * @return the constant term
+	 */
+
+	double constantTerm()
+	{
+		Double constant=terms.get(Collections.<String, Integer>emptyMap());
+		return constant==null?0:constant;
+	}
+
+	/**
+	 * @return true if the polynomial is variable, with coefficient 1
+	 */
+
+	boolean isVariable(String variable)
+	{
+		return terms.size()==1 && Double.valueOf(1).equals(terms.get(Collections.singletonMap(variable, 1)));
+	}
+
+	int degree(String variable)
+	{
+		int degree=0;
+		for(Map<String, Integer> monomial:terms.keySet())
+			degree=Math.max(degree, monomial.getOrDefault(variable, 0));
+		return degree;
+	}
+
+	/**
+	 * @return the variable with the highest degree, the first one in case of
+	 * a tie, or null if the polynomial is constant
+	 */
+
+	String mainVariable()
+	{
+		String main=null;
+		int degree=0;
+		for(Map<String, Integer> monomial:terms.keySet())
+			for(Map.Entry<String, Integer> factor:monomial.entrySet())
+				if(factor.getValue()>degree || (factor.getValue()==degree && factor.getKey().compareTo(main)<0))
+				{
+					main=factor.getKey();
+					degree=factor.getValue();
+				}
+		return main;
+	}
+
+	/**
+	 * @return the polynomial multiplying variable^exponent, when this
+	 * polynomial is seen as a polynomial of variable
+	 */
+
+	Polynomial coefficient(String variable, int exponent)
+	{
+		Map<Map<String, Integer>, Double> coefficient=new LinkedHashMap<Map<String, Integer>, Double>();
+		for(Map.Entry<Map<String, Integer>, Double> term:terms.entrySet())
+			if(term.getKey().getOrDefault(variable, 0)==exponent)
+			{
+				Map<String, Integer> monomial=new TreeMap<String, Integer>(term.getKey());
+				monomial.remove(variable);
+				coefficient.put(monomial, term.getValue());
+			}
+		return new Polynomial(coefficient);
+	}
+
+	public String toString()
+	{
+		return terms.toString();
+	}
+}
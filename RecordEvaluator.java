@@ -0,0 +1,139 @@
+package darformula;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * RecordEvaluator evaluates a formula on binary records laid out as described
+ * by a RecordLayout: the variables are read from the ByteBuffer holding the
+ * records, with absolute gets, without decoding the records first. The
+ * fields are read in the byte order of the buffer, and the results are
+ * written in the byte order of the output buffer.
+ *
+ * A RecordEvaluator is immutable and never changes the position of the
+ * buffers, so it can be used by several threads at the same time, each with
+ * its own frame (see newFrame()).
+ *
+ */
+
+public class RecordEvaluator
+{
+	private final CompactFormula formula;
+	private final RecordLayout layout;
+	private final int recordBytes;
+	// Offset and type of the field of each variable, in the order of the slots
+	private final int[] offsets;
+	private final RecordLayout.Type[] types;
+	private final ThreadLocal<double[]> frames;
+
+	/**
+	 * @throws UnexpectedVariableException if a variable of the formula is not
+	 * in the layout
+	 */
+
+	public RecordEvaluator(RuntimeFormula formula, RecordLayout layout) throws UnexpectedVariableException
+	{
+		this.formula=formula.compile();
+		this.layout=layout;
+		recordBytes=layout.getRecordBytes();
+		String[] variables=this.formula.getVariables();
+		offsets=new int[variables.length];
+		types=new RecordLayout.Type[variables.length];
+		for(int i=0;i<variables.length;i++)
+		{
+			int field=layout.indexOf(variables[i]);
+			if(field<0)
+				throw new UnexpectedVariableException("Variable : "+variables[i]+" is not in the layout");
+			offsets[i]=layout.getOffset(field);
+			types[i]=layout.getType(field);
+		}
+		final CompactFormula compact=this.formula;
+		frames=ThreadLocal.withInitial(() -> compact.newFrame());
+	}
+
+	public RecordLayout getLayout()
+	{
+		return layout;
+	}
+
+	public CompactFormula getFormula()
+	{
+		return formula;
+	}
+
+	public double[] newFrame()
+	{
+		return formula.newFrame();
+	}
+
+	/**
+	 * @param record the index in records of the first byte of the record
+	 * @param frame an array from newFrame(), used by only one thread at a time
+	 * @return the value of the formula for the record
+	 */
+
+	public double calcValue(ByteBuffer records, int record, double[] frame)
+	{
+		for(int i=0;i<offsets.length;i++)
+		{
+			int index=record+offsets[i];
+			switch(types[i])
+			{
+			case DOUBLE:frame[i]=records.getDouble(index);break;
+			case FLOAT:frame[i]=records.getFloat(index);break;
+			case LONG:frame[i]=records.getLong(index);break;
+			case INT:frame[i]=records.getInt(index);break;
+			default:throw new RuntimeException("Unexpected field type. Please contact the developer(s). Bad type : "+types[i]);
+			}
+		}
+		return formula.calcValue(frame);
+	}
+
+	public double calcValue(ByteBuffer records, int record)
+	{
+		return calcValue(records, record, frames.get());
+	}
+
+	/**
+	 * Evaluates the formula on count consecutive records, the first one
+	 * starting at index first, and writes the results as consecutive doubles
+	 * in output, starting at index outputIndex
+	 */
+
+	public void calcValues(ByteBuffer records, int first, int count, ByteBuffer output, int outputIndex)
+	{
+		checkRange(records, first, count);
+		if(outputIndex<0 || output.limit()-outputIndex<(long)count*Double.BYTES)
+			throw new IndexOutOfBoundsException("Not enough room for "+count+" results");
+		double[] frame=frames.get();
+		for(int i=0;i<count;i++)
+			output.putDouble(outputIndex+i*Double.BYTES, calcValue(records, first+i*recordBytes, frame));
+	}
+
+	/**
+	 * Evaluates the formula on count consecutive records, the first one
+	 * starting at index first, and stores the results in results, starting at
+	 * offset
+	 */
+
+	public void calcValues(ByteBuffer records, int first, int count, double[] results, int offset)
+	{
+		checkRange(records, first, count);
+		if(offset<0 || results.length-offset<count)
+			throw new IndexOutOfBoundsException("Not enough room for "+count+" results");
+		double[] frame=frames.get();
+		for(int i=0;i<count;i++)
+			results[offset+i]=calcValue(records, first+i*recordBytes, frame);
+	}
+
+	private void checkRange(ByteBuffer records, int first, int count)
+	{
+		if(first<0 || count<0 || records.limit()-first<(long)count*recordBytes)
+			throw new IndexOutOfBoundsException("Not enough bytes for "+count+" records");
+	}
+
+	public String toString()
+	{
+		return formula+" on "+layout;
+	}
+}
@@ -0,0 +1,110 @@
+package darformula;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * RecordLayout describes fixed-size binary records: the offset and the type of
+ * the field holding each variable, and the number of bytes of a record. It is
+ * used by RecordEvaluator to read the variables of a formula straight from a
+ * ByteBuffer.
+ *
+ */
+
+public class RecordLayout
+{
+	private final int recordBytes;
+	private final List<String> variables;
+	private final List<Integer> offsets;
+	private final List<Type> types;
+
+	/**
+	 *
+	 * The types of the fields, with their size in bytes
+	 */
+
+	static public enum Type
+	{
+		DOUBLE(8), FLOAT(4), LONG(8), INT(4);
+
+		private final int bytes;
+
+		private Type(int bytes)
+		{
+			this.bytes=bytes;
+		}
+
+		public int getBytes()
+		{
+			return bytes;
+		}
+	}
+
+	/**
+	 * @param recordBytes the size of a record, which is also the distance
+	 * between two consecutive records
+	 */
+
+	public RecordLayout(int recordBytes)
+	{
+		if(recordBytes<1)
+			throw new IllegalArgumentException("The size of a record must be positive");
+		this.recordBytes=recordBytes;
+		variables=new ArrayList<String>();
+		offsets=new ArrayList<Integer>();
+		types=new ArrayList<Type>();
+	}
+
+	/**
+	 * Declares the field holding variable, at offset bytes from the start of
+	 * a record
+	 *
+	 * @return this layout
+	 */
+
+	public RecordLayout add(String variable, int offset, Type type)
+	{
+		if(offset<0 || offset+type.bytes>recordBytes)
+			throw new IllegalArgumentException("The field of "+variable+" is outside of the record : "+offset);
+		if(variables.contains(variable))
+			throw new IllegalArgumentException("Variable declared twice : "+variable);
+		variables.add(variable);
+		offsets.add(offset);
+		types.add(type);
+		return this;
+	}
+
+	public int getRecordBytes()
+	{
+		return recordBytes;
+	}
+
+	/**
+	 * @return the index of the field of variable, or -1 if the layout doesn't
+	 * have it
+	 */
+
+	public int indexOf(String variable)
+	{
+		return variables.indexOf(variable);
+	}
+
+	public int getOffset(int field)
+	{
+		return offsets.get(field);
+	}
+
+	public Type getType(int field)
+	{
+		return types.get(field);
+	}
+
+	public String toString()
+	{
+		StringBuilder layout=new StringBuilder().append(recordBytes).append(" bytes");
+		for(int i=0;i<variables.size();i++)
+			layout.append(", ").append(variables.get(i)).append('@').append(offsets.get(i)).append(':').append(types.get(i));
+		return layout.toString();
+	}
+}
@@ -0,0 +1,174 @@
+package darformula;
+
+import java.util.Arrays;
+
+/**
+ *
+ * The last results of a formula, by the exact values of its variables. The
+ * values are kept as the bits of the doubles in one array of longs, and the
+ * entries in sets of 4 chosen by the hash of the values: a new entry replaces
+ * the least recently used one of its set once the set is full, so the cache
+ * never grows past its capacity. Like RuntimeFormula, it is not thread safe.
+ *
+ */
+
+public class ResultCache
+{
+	// Entries per set
+	static private final int WAYS=4;
+
+	private final int arity, sets;
+	private final long[] keys;
+	private final double[] values;
+	// Time of the last use of each entry, 0 if it is empty
+	private final long[] used;
+	private long clock;
+	private long hits, misses, evictions;
+	private int size;
+
+	/**
+	 * @param capacity the number of entries, rounded up to a power of two
+	 * @param arity the number of values in a key
+	 */
+
+	ResultCache(int capacity, int arity)
+	{
+		if(capacity<=0)
+			throw new IllegalArgumentException("The capacity must be positive : "+capacity);
+		int sets=1;
+		while(sets*WAYS<capacity)
+			sets<<=1;
+		this.sets=sets;
+		this.arity=arity;
+		keys=new long[sets*WAYS*arity];
+		values=new double[sets*WAYS];
+		used=new long[sets*WAYS];
+	}
+
+	private int set(long[] key)
+	{
+		long hash=arity;
+		for(long value:key)
+			hash=(hash+(value^(value>>>32)))*0x9E3779B97F4A7C15L;
+		// The low bits of doubles are often 0, so the high bits are mixed in
+		hash^=hash>>>33;
+		hash*=0xFF51AFD7ED558CCDL;
+		hash^=hash>>>33;
+		return (int)hash&(sets-1);
+	}
+
+	private boolean matches(int entry, long[] key)
+	{
+		for(int i=0, j=entry*arity;i<arity;i++, j++)
+			if(keys[j]!=key[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * @param key the bits of the values of the variables
+	 * @return the entry of key, or -1 if it isn't cached
+	 */
+
+	int find(long[] key)
+	{
+		int first=set(key)*WAYS;
+		for(int entry=first;entry<first+WAYS;entry++)
+			if(used[entry]!=0 && matches(entry, key))
+			{
+				used[entry]=++clock;
+				hits++;
+				return entry;
+			}
+		misses++;
+		return -1;
+	}
+
+	double value(int entry)
+	{
+		return values[entry];
+	}
+
+	/**
+	 * Caches value for key, which must not be cached already
+	 */
+
+	void put(long[] key, double value)
+	{
+		int first=set(key)*WAYS, entry=first;
+		for(int i=first+1;i<first+WAYS && used[entry]!=0;i++)
+			if(used[i]<used[entry])
+				entry=i;
+		if(used[entry]==0)
+			size++;
+		else
+			evictions++;
+		System.arraycopy(key, 0, keys, entry*arity, arity);
+		values[entry]=value;
+		used[entry]=++clock;
+	}
+
+	/**
+	 * @return the maximal number of entries
+	 */
+
+	public int getCapacity()
+	{
+		return values.length;
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+
+	public int size()
+	{
+		return size;
+	}
+
+	public long getHits()
+	{
+		return hits;
+	}
+
+	public long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * @return the number of entries replaced by a newer one
+	 */
+
+	public long getEvictions()
+	{
+		return evictions;
+	}
+
+	/**
+	 * @return the proportion of evaluations answered by the cache, or 0 if
+	 * there was none
+	 */
+
+	public double getHitRate()
+	{
+		long lookups=hits+misses;
+		return lookups==0?0:(double)hits/lookups;
+	}
+
+	/**
+	 * Removes the entries and resets the statistics
+	 */
+
+	public void clear()
+	{
+		Arrays.fill(used, 0);
+		size=0;
+		hits=misses=evictions=0;
+	}
+
+	public String toString()
+	{
+		return size+"/"+getCapacity()+" entries, "+hits+" hits, "+misses+" misses, "+evictions+" evictions";
+	}
+}
@@ -0,0 +1,293 @@
+package darformula;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ *
+ * RowSelector selects the rows of a Dataset with a formula, compiled once:
+ * filter keeps the rows where it gives 1, top keeps the k rows where it
+ * gives the highest values. The variables of the formula are read from the
+ * columns of the same name; the other variables keep the value they have in
+ * the formula when the RowSelector is created.
+ *
+ * The rows are split between the threads of a ForkJoinPool, and evaluated
+ * in batches. A predicate which is a product, like (x>0)*(y<x^2), is
+ * evaluated one factor at a time: each factor only for the rows of the batch
+ * where the previous ones weren't 0 or NaN, so that the cheap and selective
+ * conditions are best written first.
+ *
+ */
+
+public class RowSelector
+{
+	// Number of rows under which a task is not split anymore
+	static private final int THRESHOLD=1<<14;
+	// Number of rows whose factors are evaluated together
+	static private final int BATCH=1024;
+
+	private final CompactFormula formula;
+	private final CompactFormula[] factors;
+	private final Map<String, Double> values;
+	private ForkJoinPool pool;
+
+	public RowSelector(RuntimeFormula formula)
+	{
+		this.formula=formula.compile();
+		this.factors=formula.compileFactors();
+		this.values=new HashMap<String, Double>(formula.getAllVars());
+		this.pool=ForkJoinPool.commonPool();
+	}
+
+	public void setPool(ForkJoinPool pool)
+	{
+		this.pool=pool;
+	}
+
+	/**
+	 * @return the indices of the rows where the formula gives 1, in
+	 * increasing order
+	 * @throws UnexpectedVariableException if a variable is neither a column
+	 * nor a variable of the formula
+	 */
+
+	public int[] filter(Dataset dataset) throws UnexpectedVariableException
+	{
+		Dataset.Input[] inputs=new Dataset.Input[factors.length];
+		for(int i=0;i<factors.length;i++)
+			inputs[i]=dataset.bind(factors[i], values);
+		return pool.invoke(new Filter(inputs, 0, dataset.size()));
+	}
+
+	/**
+	 * @return the indices of the k rows where the formula gives the highest
+	 * values, from the highest, or of every row if there are less. Rows with
+	 * the same value are taken in increasing order, and NaN values are left
+	 * out.
+	 * @throws UnexpectedVariableException if a variable is neither a column
+	 * nor a variable of the formula
+	 */
+
+	public int[] top(Dataset dataset, int k) throws UnexpectedVariableException
+	{
+		if(k<0)
+			throw new IllegalArgumentException("Negative number of rows : "+k);
+		if(k==0)
+			return new int[0];
+		return pool.invoke(new Top(dataset.bind(formula, values), k, 0, dataset.size())).rows();
+	}
+
+	static private class Filter extends RecursiveTask<int[]>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Dataset.Input[] factors;
+		private final int start, end;
+
+		Filter(Dataset.Input[] factors, int start, int end)
+		{
+			this.factors=factors;
+			this.start=start;
+			this.end=end;
+		}
+
+		protected int[] compute()
+		{
+			if(end-start>THRESHOLD)
+			{
+				int middle=(start+end)>>>1;
+				Filter second=new Filter(factors, middle, end);
+				second.fork();
+				int[] first=new Filter(factors, start, middle).compute();
+				int[] last=second.join();
+				int[] rows=Arrays.copyOf(first, first.length+last.length);
+				System.arraycopy(last, 0, rows, first.length, last.length);
+				return rows;
+			}
+
+			double[][] frames=new double[factors.length][];
+			for(int f=0;f<factors.length;f++)
+				frames[f]=factors[f].newFrame();
+			int[] kept=new int[end-start], alive=new int[BATCH];
+			double[] products=new double[BATCH];
+			int count=0;
+			for(int batch=start;batch<end;batch+=BATCH)
+			{
+				int live=Math.min(BATCH, end-batch);
+				for(int i=0;i<live;i++)
+				{
+					alive[i]=batch+i;
+					products[i]=1;
+				}
+				// The rows where a factor is 0 or the product NaN can't give 1
+				for(int f=0;f<factors.length && live>0;f++)
+				{
+					int next=0;
+					for(int i=0;i<live;i++)
+					{
+						double factor=factors[f].calcValue(frames[f], alive[i]);
+						double product=products[i]*factor;
+						if(factor==0 || Double.isNaN(product))
+							continue;
+						alive[next]=alive[i];
+						products[next++]=product;
+					}
+					live=next;
+				}
+				for(int i=0;i<live;i++)
+					if(products[i]==1)
+						kept[count++]=alive[i];
+			}
+			return Arrays.copyOf(kept, count);
+		}
+	}
+
+	static private class Top extends RecursiveTask<Heap>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Dataset.Input score;
+		private final int k, start, end;
+
+		Top(Dataset.Input score, int k, int start, int end)
+		{
+			this.score=score;
+			this.k=k;
+			this.start=start;
+			this.end=end;
+		}
+
+		protected Heap compute()
+		{
+			if(end-start>THRESHOLD)
+			{
+				int middle=(start+end)>>>1;
+				Top second=new Top(score, k, middle, end);
+				second.fork();
+				Heap first=new Top(score, k, start, middle).compute();
+				first.addAll(second.join());
+				return first;
+			}
+			Heap heap=new Heap(k);
+			double[] frame=score.newFrame();
+			for(int row=start;row<end;row++)
+			{
+				double value=score.calcValue(frame, row);
+				if(!Double.isNaN(value))
+					heap.offer(value, row);
+			}
+			return heap;
+		}
+	}
+
+	/**
+	 *
+	 * The k best rows offered, in a binary heap of primitives whose root is
+	 * the worst of them
+	 */
+
+	static private class Heap
+	{
+		private final double[] values;
+		private final int[] rows;
+		private int size;
+
+		Heap(int k)
+		{
+			values=new double[k];
+			rows=new int[k];
+		}
+
+		/**
+		 * @return true if row i is worse than row j: its value is lower, or
+		 * it comes after j with the same value
+		 */
+
+		private boolean worse(int i, int j)
+		{
+			return values[i]<values[j] || (values[i]==values[j] && rows[i]>rows[j]);
+		}
+
+		void offer(double value, int row)
+		{
+			if(size<values.length)
+			{
+				// Sift up from the new leaf
+				int i=size++;
+				values[i]=value;
+				rows[i]=row;
+				while(i>0 && worse(i, (i-1)/2))
+				{
+					swap(i, (i-1)/2);
+					i=(i-1)/2;
+				}
+				return;
+			}
+			if(value<values[0] || (value==values[0] && row>rows[0]))
+				return;
+			values[0]=value;
+			rows[0]=row;
+			siftDown();
+		}
+
+		private void siftDown()
+		{
+			int i=0;
+			while(true)
+			{
+				int child=2*i+1;
+				if(child>=size)
+					return;
+				if(child+1<size && worse(child+1, child))
+					child++;
+				if(!worse(child, i))
+					return;
+				swap(i, child);
+				i=child;
+			}
+		}
+
+		private void swap(int i, int j)
+		{
+			double value=values[i];
+			values[i]=values[j];
+			values[j]=value;
+			int row=rows[i];
+			rows[i]=rows[j];
+			rows[j]=row;
+		}
+
+		void addAll(Heap other)
+		{
+			for(int i=0;i<other.size;i++)
+				offer(other.values[i], other.rows[i]);
+		}
+
+		/**
+		 * Empties the heap
+		 *
+		 * @return the rows, from the best
+		 */
+
+		int[] rows()
+		{
+			int[] best=new int[size];
+			while(size>0)
+			{
+				best[--size]=rows[0];
+				values[0]=values[size];
+				rows[0]=rows[size];
+				siftDown();
+			}
+			return best;
+		}
+	}
+
+	public String toString()
+	{
+		return formula+" in "+factors.length+" factors";
+	}
+}
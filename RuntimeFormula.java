@@ -1,13 +1,22 @@
 package darformula;
 
 
+import java.io.IOException;
+import java.math.BigDecimal;
 import java.util.ArrayList;
 
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * 
@@ -24,11 +33,46 @@ public class RuntimeFormula
 	private Map<String, Double> variables;
 
 	private FormulaTree formula;
+	private FunctionRegistry functions;
 	private boolean catchesArithmeticExceptions; 	
 	// If catchesArithmeticExceptions is true, the cases where the operators would 
 	// throw an arithmetic exception will instead return 0, so that the end-
 	// users don't have to think about avoiding these cases. 
 	
+	// Depth of the deepest trees evaluated by recursion; deeper trees are 
+	// always evaluated through their CompactFormula
+	static public final int MAX_RECURSION_DEPTH=1000;
+	// Largest window of rollmean, rollmax and lag
+	static public final int MAX_WINDOW=1<<24;
+	// Number of evaluations of a formula by the tree before it is compiled
+	static public final long DEFAULT_COMPILATION_THRESHOLD=10000;
+	// Compiles the hot formulas, off the threads evaluating them
+	static private final Executor COMPILER=Executors.newSingleThreadExecutor(task -> {
+		Thread thread=new Thread(task, "RuntimeFormula compiler");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	// True for the formulas built by specialize(), which depend on the mode
+	private boolean modeFixed;
+	private long evaluations;
+	private long compilationThreshold;
+	private volatile CompiledTier compiled;
+	// Set by bind, so that the compiled formula reads the slots too
+	private String[] boundVariables;
+	private double[] boundSlots;
+	// Number of results cached by calcValue, 0 if they aren't
+	private int cacheCapacity;
+	private MemoTier memo;
+	// Bounds of an evaluation, Long.MAX_VALUE if there is none
+	private long maxOperations=Long.MAX_VALUE, maxNanos=Long.MAX_VALUE;
+	// Spent by the loops of the evaluation of the tree, null if it has none
+	private CompactFormula.Budget budget;
+	// True while fold evaluates an element, see FormulaElement.caught()
+	private boolean folding;
+	// Told about the parsing and the evaluation of every formula
+	static private volatile FormulaListener listener=FormulaListener.NONE;
+	
 	/*
 	 * BEGINNING OF CLASSES
 	 * PUBLIC FUNCTIONS START AFTER "RuntimeFormula()"
@@ -46,7 +90,184 @@ public class RuntimeFormula
 		public FormulaElement(){super();}
 		
 		abstract public double calcValue() throws UnexpectedVariableException;
-		abstract public String toString();
+		
+		/**
+		 * @param out where the subtree is written
+		 * @param minimal if false, every binary operation is surrounded by 
+		 * parentheses; if true, only the parentheses needed to parse the same
+		 * tree again are written
+		 */
+		void appendTo(Appendable out, boolean minimal) throws IOException
+		{
+			appendTree(this, out, minimal);
+		}
+		
+		/**
+		 * Writes the part of the element which comes before operand i, or 
+		 * after the last operand when i is operands().length; appendTree 
+		 * writes the operands between the parts
+		 */
+		abstract void appendPart(Appendable out, boolean minimal, int i) throws IOException;
+		
+		/**
+		 * @return the element written and made canonical in place of this one
+		 */
+		FormulaElement writtenForm()
+		{
+			return this;
+		}
+		
+		/**
+		 * @return the priority of the top operator of the subtree, as the 
+		 * level of its Token: 1 for comparisons up to 5 for the negative 
+		 * operator, 6 for functions and 7 for numbers and variables
+		 */
+		abstract int level();
+		
+		public String toString()
+		{
+			StringBuilder out=new StringBuilder();
+			try
+			{
+				appendTo(out, false);
+			} catch(IOException e)
+			{
+				// StringBuilder doesn't throw IOException
+			}
+			return out.toString();
+		}
+		
+		/**
+		 * @return the operands of the element, in the order of evaluation
+		 */
+		FormulaElement[] operands()
+		{
+			return NO_OPERANDS;
+		}
+		
+		/**
+		 * @param owner the RuntimeFormula whose variables the copy will use
+		 * @param substitutions elements replacing the variables with the same
+		 * name in the copy
+		 * @return a copy of the subtree belonging to owner
+		 */
+		FormulaElement copy(RuntimeFormula owner, Map<String, FormulaElement> substitutions)
+		{
+			return copyTree(this, owner, substitutions);
+		}
+		
+		/**
+		 * @return a copy of the element belonging to owner, with the given 
+		 * operands; used by copyTree for the elements with operands
+		 */
+		abstract FormulaElement withOperands(RuntimeFormula owner, FormulaElement[] operands);
+		
+		/**
+		 * @return the substitutions used to copy operand i of the element
+		 */
+		Map<String, FormulaElement> operandSubstitutions(int i, Map<String, FormulaElement> substitutions)
+		{
+			return substitutions;
+		}
+		
+		/**
+		 * @param owner the RuntimeFormula whose variables the result will use
+		 * @param variable the variable of derivation
+		 * @param derivatives the derivatives of the operands, built by 
+		 * derivativeTree; null for those which aren't needed
+		 * @return the derivative of the element with respect to variable
+		 * @throws UnsupportedOperationException if the element calls a Java 
+		 * function
+		 */
+		abstract FormulaElement derivative(RuntimeFormula owner, String variable, FormulaElement[] derivatives);
+		
+		/**
+		 * @return false if derivative doesn't use the derivative of operand i
+		 */
+		boolean needsDerivative(int i, String variable)
+		{
+			return true;
+		}
+		
+		/**
+		 * Adds the node of the element to builder, after the nodes of its 
+		 * operands (see compileTree)
+		 * 
+		 * @param operands the indices of the roots of the operands, followed by
+		 * the values stored by beginOperand
+		 * @return the index of the node
+		 */
+		abstract int compile(CompactFormula.Builder builder, int[] operands);
+		
+		/**
+		 * Called by compileTree before the nodes of operand i are added
+		 */
+		void beginOperand(CompactFormula.Builder builder, int i, int[] operands)
+		{
+		}
+		
+		/**
+		 * @param owner the RuntimeFormula whose variables the result will use
+		 * @param operands the canonical operands, built by canonicalTree
+		 * @param order the order of the operands of the commutative operators,
+		 * 0 for the operands which must be evaluated in their order
+		 * @return a copy of the element with these operands, where the named 
+		 * constants and the operations on constants are replaced by their 
+		 * value, and the operands of the commutative operators are sorted
+		 */
+		abstract FormulaElement canonical(RuntimeFormula owner, FormulaElement[] operands, Comparator<FormulaElement> order);
+		
+		/**
+		 * @param operands the polynomials of the operands, null for those 
+		 * which aren't polynomials
+		 * @return the polynomial computed by the element, or null if it 
+		 * isn't a polynomial of its operands
+		 */
+		Polynomial polynomial(Polynomial[] operands)
+		{
+			return null;
+		}
+		
+		/**
+		 * @return false if the element must not be replaced by its value when
+		 * its operands are constants
+		 */
+		boolean foldable()
+		{
+			return true;
+		}
+		
+		/**
+		 * @return the operations counted for the element by estimateCost, 
+		 * without those of its operands
+		 */
+		int weight()
+		{
+			return 1;
+		}
+		
+		/**
+		 * @return the element evaluated without the checks of 
+		 * catchesArithmeticExceptions which can't be needed if the mode is 
+		 * catches, or this one if it keeps them all; see specialize()
+		 */
+		FormulaElement unchecked(boolean catches)
+		{
+			return this;
+		}
+		
+		/**
+		 * Called by the elements returning 0 instead of failing
+		 * 
+		 * @return 0, or NaN while fold evaluates the element, so that the
+		 * element is kept and the listener is only told when it is evaluated
+		 */
+		double caught()
+		{
+			if(folding)
+				return Double.NaN;
+			return RuntimeFormula.caught();
+		}
 	}
 	
 	/**
@@ -109,7 +330,7 @@ public class RuntimeFormula
 				return Math.random();
 			if(variable.toLowerCase().equals("pi"))
 				return Math.PI;
-			if(variable.toLowerCase.equals("e"))
+			if(variable.toLowerCase().equals("e"))
 				{return Math.E;}
 			Double val=variables.get(variable);
 			if(val!=null)
@@ -117,13 +338,143 @@ public class RuntimeFormula
 			else throw new UnexpectedVariableException("Variable : "+variable.toString());
 		}
 		
-		public String toString()
+		void appendPart(Appendable out, boolean minimal, int i) throws IOException
+		{
+			if(!variable.isEmpty())
+				out.append(variable);
+			else if(!minimal)
+				out.append(Double.toString(value));
+			else
+			{
+				// The tokenizer doesn't read exponents
+				if(Double.doubleToRawLongBits(value)<0)
+					out.append('-');
+				out.append(new BigDecimal(Double.toString(Math.abs(value))).stripTrailingZeros().toPlainString());
+			}
+		}
+		
+		int level()
+		{
+			return (variable.isEmpty() && Double.doubleToRawLongBits(value)<0)?5:7;
+		}
+		
+		FormulaElement copy(RuntimeFormula owner, Map<String, FormulaElement> substitutions)
+		{
+			if(variable.isEmpty())
+				return owner.new SimpleElement(value);
+			FormulaElement substitute=substitutions.get(variable);
+			if(substitute!=null)
+				return substitute;
+			return owner.new SimpleElement(variable);
+		}
+		
+		FormulaElement derivative(RuntimeFormula owner, String variable, FormulaElement[] derivatives)
+		{
+			return owner.new SimpleElement(this.variable.equals(variable)?1:0);
+		}
+		
+		FormulaElement withOperands(RuntimeFormula owner, FormulaElement[] operands)
+		{
+			return copy(owner, NO_SUBSTITUTIONS);
+		}
+		
+		int compile(CompactFormula.Builder builder, int[] operands)
+		{
+			if(variable.isEmpty())
+				return builder.constant(value);
+			return builder.variable(variable);
+		}
+		
+		FormulaElement canonical(RuntimeFormula owner, FormulaElement[] operands, Comparator<FormulaElement> order)
+		{
+			if(variable.toLowerCase().equals("pi"))
+				return owner.new SimpleElement(Math.PI);
+			if(variable.toLowerCase().equals("e"))
+				return owner.new SimpleElement(Math.E);
+			return copy(owner, NO_SUBSTITUTIONS);
+		}
+		
+		Polynomial polynomial(Polynomial[] operands)
 		{
 			if(variable.isEmpty())
-				return ""+value;	
-			return variable;
+				return Polynomial.constant(value);
+			if(variable.equals("r"))
+				return null;
+			if(variable.toLowerCase().equals("pi"))
+				return Polynomial.constant(Math.PI);
+			if(variable.toLowerCase().equals("e"))
+				return Polynomial.constant(Math.E);
+			return Polynomial.variable(variable);
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * A FormulaElement reading the value of a variable from an array instead 
+	 * of the "variables" Map. Used by BoundFormula.
+	 */
+	public class SlotElement extends FormulaElement
+	{
+		private String variable;
+		private double[] slots;
+		private int index;
+		
+		public SlotElement(String variable, double[] slots, int index)
+		{
+			super();
+			this.variable=variable;
+			this.slots=slots;
+			this.index=index;
+		}
+		
+		public double calcValue()
+		{
+			return slots[index];
+		}
+		
+		void appendPart(Appendable out, boolean minimal, int i) throws IOException
+		{
+			out.append(variable);
+		}
+		
+		int level()
+		{
+			return 7;
+		}
+		
+		FormulaElement copy(RuntimeFormula owner, Map<String, FormulaElement> substitutions)
+		{
+			FormulaElement substitute=substitutions.get(variable);
+			if(substitute!=null)
+				return substitute;
+			return owner.new SlotElement(variable, slots, index);
+		}
+		
+		FormulaElement derivative(RuntimeFormula owner, String variable, FormulaElement[] derivatives)
+		{
+			return owner.new SimpleElement(this.variable.equals(variable)?1:0);
+		}
+		
+		FormulaElement withOperands(RuntimeFormula owner, FormulaElement[] operands)
+		{
+			return copy(owner, NO_SUBSTITUTIONS);
+		}
+		
+		int compile(CompactFormula.Builder builder, int[] operands)
+		{
+			return builder.variable(variable);
 		}
 		
+		FormulaElement canonical(RuntimeFormula owner, FormulaElement[] operands, Comparator<FormulaElement> order)
+		{
+			return copy(owner, NO_SUBSTITUTIONS);
+		}
+		
+		Polynomial polynomial(Polynomial[] operands)
+		{
+			return Polynomial.variable(variable);
+		}
 	}
 	
 	/**
@@ -155,27 +506,27 @@ public class RuntimeFormula
 		 */
 		public double calcValue() throws UnexpectedVariableException
 		{
-			Double cache;
+			double cache;
 			switch(operator)
 			{
 			case '-':return -operand.calcValue();
 			case 'x':
 				cache=operand.calcValue();
 				if(cache < 0 && catchesArithmeticExceptions)
-					return 0;
+					return caught();
 				return Math.sqrt(cache);
 			case 'l':
 				cache=operand.calcValue();
 				if(cache <= 0 && catchesArithmeticExceptions)
 				{
-					return 0;
+					return caught();
 				}
 				return Math.log10(cache);
 			case 'e':
 				cache=operand.calcValue();
 				if(cache <= 0 && catchesArithmeticExceptions)
 				{
-					return 0;
+					return caught();
 				}
 				return Math.log(cache);
 			case 's':return Math.sin(operand.calcValue());
@@ -183,7 +534,7 @@ public class RuntimeFormula
 			case 't':
 				cache=operand.calcValue();
 				if(Math.cos(cache)==0 && catchesArithmeticExceptions)
-					return 0;
+					return caught();
 				return Math.tan(cache);
 			case 'h':return Math.sinh(operand.calcValue());
 			case 'o':return Math.cosh(operand.calcValue());
@@ -191,13 +542,13 @@ public class RuntimeFormula
 			case 'a':
 				cache=operand.calcValue();
 				if((cache>1 || cache<-1) && catchesArithmeticExceptions)
-					return 0;
-				return Math.asin(operand.calcValue());
+					return caught();
+				return Math.asin(cache);
 			case 'q':
 				cache=operand.calcValue();
 				if((cache>1 || cache<-1) && catchesArithmeticExceptions)
-					return 0;
-				return Math.acos(operand.calcValue());
+					return caught();
+				return Math.acos(cache);
 			case 'u':return Math.atan(operand.calcValue());
 			case 'i':return Math.abs(operand.calcValue());
 			case 'k':return Math.ceil(operand.calcValue());
@@ -205,46 +556,153 @@ public class RuntimeFormula
 			case 'r':
 				cache=operand.calcValue();
 				if((cache>12 || cache<0) && catchesArithmeticExceptions)
-					return 0;
-				else
-				{
-					double result=1;
-					for(double cacheL=Math.floor(cache);cacheL>1;cacheL--)
-					{
-						result*=cacheL;
-					}
-					return result;
-				}
+					return caught();
+				return factorial(cache);
 			default: throw new RuntimeException("Unexpected Unary operator. Please contact the developer(s). Bad "+ formula.toString());
 			}
 			
 		}
 		
 		/**
-		 * @return a String that preserves the priority of the operand subtree
+		 * Writes a String that preserves the priority of the operand subtree
 		 */
-		public String toString()
+		void appendPart(Appendable out, boolean minimal, int i) throws IOException
+		{
+			// "--x" is not parsed as -(-x), so only the operands of a higher
+			// level are written without parentheses
+			boolean parenthesized=operator!='-' || !minimal || operand.level()<=5;
+			if(i>0)
+			{
+				if(parenthesized)
+					out.append(')');
+				return;
+			}
+			switch(operator)
+			{
+			case '-':out.append('-');break;
+			case 'x':out.append("sqrt");break;
+			case 'l':out.append("log");break;
+			case 'e':out.append("ln");break;
+			case 's':out.append("sin");break;
+			case 'c':out.append("cos");break;
+			case 't':out.append("tan");break;
+			case 'h':out.append("sinh");break;
+			case 'o':out.append("cosh");break;
+			case 'n':out.append("tanh");break;
+			case 'a':out.append("asin");break;
+			case 'q':out.append("acos");break;
+			case 'u':out.append("atan");break;
+			case 'i':out.append("abs");break;
+			case 'k':out.append("ceil");break;
+			case 'f':out.append("floor");break;
+			case 'r':out.append("!");break;
+			default:out.append(operator);
+			}
+			if(parenthesized)
+				out.append('(');
+		}
+		
+		int level()
+		{
+			return operator=='-'?5:6;
+		}
+		
+		int weight()
+		{
+			switch(operator)
+			{
+			case '-':case 'x':case 'i':case 'k':case 'f':return 1;
+			default:return FormulaCost.TRANSCENDENTAL;
+			}
+		}
+		
+		FormulaElement[] operands()
+		{
+			return new FormulaElement[]{operand};
+		}
+		
+		FormulaElement withOperands(RuntimeFormula owner, FormulaElement[] operands)
 		{
+			return owner.new UnaryElement(operator, operands[0]);
+		}
+		
+		FormulaElement derivative(RuntimeFormula owner, String variable, FormulaElement[] derivatives)
+		{
+			FormulaElement d=derivatives[0];
+			if(owner.isConstant(d, 0))
+				return d;
+			FormulaElement u=operand.copy(owner, NO_SUBSTITUTIONS);
 			switch(operator)
 			{
-			case '-':return "-"+"("+operand.toString()+")";
-			case 'x':return "sqrt"+"("+operand.toString()+")";
-			case 'l':return "log"+"("+operand.toString()+")";
-			case 'e':return "ln"+"("+operand.toString()+")";
-			case 's':return "sin"+"("+operand.toString()+")";
-			case 'c':return "cos"+"("+operand.toString()+")";
-			case 't':return "tan"+"("+operand.toString()+")";
-			case 'h':return "sinh"+"("+operand.toString()+")";
-			case 'o':return "cosh"+"("+operand.toString()+")";
-			case 'n':return "tanh"+"("+operand.toString()+")";
-			case 'a':return "asin"+"("+operand.toString()+")";
-			case 'q':return "acos"+"("+operand.toString()+")";
-			case 'u':return "atan"+"("+operand.toString()+")";
-			case 'i':return "abs"+"("+operand.toString()+")";
-			case 'k':return "ceil"+"("+operand.toString()+")";
-			case 'f': return "floor"+"("+operand.toString()+")";
-			case 'r': return "!"+"("+operand.toString()+")";
-			default: return operator + "("+ operand.toString()+")";
+			case '-':return owner.negative(d);
+			case 'x':return owner.quotient(d, owner.product(owner.new SimpleElement(2), owner.new UnaryElement('x', u)));
+			case 'l':return owner.quotient(d, owner.product(u, owner.new SimpleElement(Math.log(10))));
+			case 'e':return owner.quotient(d, u);
+			case 's':return owner.product(owner.new UnaryElement('c', u), d);
+			case 'c':return owner.negative(owner.product(owner.new UnaryElement('s', u), d));
+			case 't':return owner.quotient(d, owner.new BinaryElement('^', owner.new UnaryElement('c', u), owner.new SimpleElement(2)));
+			case 'h':return owner.product(owner.new UnaryElement('o', u), d);
+			case 'o':return owner.product(owner.new UnaryElement('h', u), d);
+			case 'n':return owner.quotient(d, owner.new BinaryElement('^', owner.new UnaryElement('o', u), owner.new SimpleElement(2)));
+			case 'a':return owner.quotient(d, owner.new UnaryElement('x', owner.difference(owner.new SimpleElement(1), owner.new BinaryElement('^', u, owner.new SimpleElement(2)))));
+			case 'q':return owner.negative(owner.quotient(d, owner.new UnaryElement('x', owner.difference(owner.new SimpleElement(1), owner.new BinaryElement('^', u, owner.new SimpleElement(2))))));
+			case 'u':return owner.quotient(d, owner.sum(owner.new SimpleElement(1), owner.new BinaryElement('^', u, owner.new SimpleElement(2))));
+			case 'i':return owner.product(owner.quotient(u, owner.new UnaryElement('i', operand.copy(owner, NO_SUBSTITUTIONS))), d);
+			// Step functions
+			case 'k':case 'f':case 'r':return owner.new SimpleElement(0);
+			default: throw new RuntimeException("Unexpected Unary operator. Please contact the developer(s). Bad "+ formula.toString());
+			}
+		}
+		
+		int compile(CompactFormula.Builder builder, int[] operands)
+		{
+			return builder.unary(operator, operands[0]);
+		}
+		
+		FormulaElement canonical(RuntimeFormula owner, FormulaElement[] operands, Comparator<FormulaElement> order)
+		{
+			return owner.fold(owner.new UnaryElement(operator, operands[0]), operands[0]);
+		}
+		
+		Polynomial polynomial(Polynomial[] operands)
+		{
+			if(operator!='-' || operands[0]==null)
+				return null;
+			return Polynomial.constant(0).add(operands[0], -1);
+		}
+		
+		FormulaElement unchecked(boolean catches)
+		{
+			if(catches || "xletaqr".indexOf(operator)<0)
+				return this;
+			return new UncheckedUnaryElement(operator, operand);
+		}
+	}
+	
+	/**
+	 * 
+	 * A UnaryElement which doesn't check catchesArithmeticExceptions, built by
+	 * specialize() for the formulas which don't catch the exceptions
+	 */
+	public class UncheckedUnaryElement extends UnaryElement
+	{
+		UncheckedUnaryElement(Character operator, FormulaElement operand)
+		{
+			super(operator, operand);
+		}
+		
+		public double calcValue() throws UnexpectedVariableException
+		{
+			switch(super.operator)
+			{
+			case 'x':return Math.sqrt(super.operand.calcValue());
+			case 'l':return Math.log10(super.operand.calcValue());
+			case 'e':return Math.log(super.operand.calcValue());
+			case 't':return Math.tan(super.operand.calcValue());
+			case 'a':return Math.asin(super.operand.calcValue());
+			case 'q':return Math.acos(super.operand.calcValue());
+			case 'r':return factorial(super.operand.calcValue());
+			default:return super.calcValue();
 			}
 		}
 	}
@@ -261,6 +719,9 @@ public class RuntimeFormula
 	{
 		private Character operator;
 		private FormulaElement operand1, operand2;
+		// For '^' with a constant exponent, how it is computed without Math.pow
+		private int power;
+		private double exponent;
 		
 		public BinaryElement(Character operator, FormulaElement operand1, FormulaElement operand2)
 		{
@@ -268,6 +729,11 @@ public class RuntimeFormula
 			this.operator=operator;
 			this.operand1=operand1;
 			this.operand2=operand2;
+			if(operator=='^')
+			{
+				exponent=constantValue(operand2, 4);
+				power=powerKind(exponent);
+			}
 		}
 		
 		
@@ -279,22 +745,28 @@ public class RuntimeFormula
 		 */
 		public double calcValue() throws UnexpectedVariableException
 		{
-			Double cache1, cache2;
+			double cache1, cache2;
 			switch(operator)
 			{
 			case '+':return operand1.calcValue()+operand2.calcValue();
 			case '-':return operand1.calcValue()-operand2.calcValue();
 			case '*':return operand1.calcValue()*operand2.calcValue();
-			case '/':if((cache1=operand2.calcValue())==0 && catchesArithmeticExceptions)
-					{return 0;}
-					return operand1.calcValue()/cache1;
-			case '%':if((cache1=operand2.calcValue())==0 && catchesArithmeticExceptions)
-					{return 0;}
-					return (operand1.calcValue()%cache1 + cache1)%cache1;
-			case '^':cache1=Math.pow(operand1.calcValue(), operand2.calcValue());
-					if(cache1.isNaN() && catchesArithmeticExceptions)
-					{return 0;}
-					return cache1;
+			// The dividend is evaluated even when it isn't used, so that its
+			// series step once per evaluation
+			case '/':cache1=operand2.calcValue();
+					cache2=operand1.calcValue();
+					if(cache1==0 && catchesArithmeticExceptions)
+					{return caught();}
+					return cache2/cache1;
+			case '%':cache1=operand2.calcValue();
+					cache2=operand1.calcValue();
+					if(cache1==0 && catchesArithmeticExceptions)
+					{return caught();}
+					return (cache2%cache1 + cache1)%cache1;
+			case '^':double result=power==POW?Math.pow(operand1.calcValue(), operand2.calcValue()):power(operand1.calcValue(), power, exponent);
+					if(Double.isNaN(result) && catchesArithmeticExceptions)
+					{return caught();}
+					return result;
 			// To avoid rounding errors due to saving as double, equality means "being close by 10^-5"
 			case '=':if(Math.abs(operand1.calcValue()-operand2.calcValue())<0.00001)return 1; else return 0;
 			case '!':if(Math.abs(operand1.calcValue()-operand2.calcValue())>0.00001)return 1; else return 0;
@@ -305,80 +777,1566 @@ public class RuntimeFormula
 			
 		}
 		
-		public String toString()
+		/**
+		 * With minimal parentheses, an operand is surrounded by parentheses 
+		 * when its operator has a lower priority, or the same priority on the 
+		 * right side, since operators of the same level are applied from left 
+		 * to right
+		 */
+		void appendPart(Appendable out, boolean minimal, int i) throws IOException
+		{
+			int level=level();
+			switch(i)
+			{
+			case 0:
+				if(!minimal)
+					out.append('(');
+				if(parenthesized(operand1, minimal, level))
+					out.append('(');
+				break;
+			case 1:
+				if(parenthesized(operand1, minimal, level))
+					out.append(')');
+				if(operator=='!')
+					out.append("!=");
+				else
+					out.append(operator);
+				if(parenthesized(operand2, minimal, level+1))
+					out.append('(');
+				break;
+			default:
+				if(parenthesized(operand2, minimal, level+1))
+					out.append(')');
+				if(!minimal)
+					out.append(')');
+			}
+		}
+		
+		int level()
 		{
 			switch(operator)
 			{
-			case '+':return "("+operand1.toString()+"+"+operand2.toString()+")";
-			case '-':return "("+operand1.toString()+"-"+operand2.toString()+")";
-			case '*':return "("+operand1.toString()+"*"+operand2.toString()+")";
-			case '/':return "("+operand1.toString()+"/"+operand2.toString()+")";
-			case '%':return "("+operand1.toString()+"%"+operand2.toString()+")";
-			case '^':return "("+operand1.toString()+"^"+operand2.toString()+")";
-			case '=':return "("+operand1.toString()+"="+operand2.toString()+")";
-			case '!':return "("+operand1.toString()+"!="+operand2.toString()+")";
-			case '>':return "("+operand1.toString()+">"+operand2.toString()+")";
-			case '<':return "("+operand1.toString()+"<"+operand2.toString()+")";
-			default: return "("+operand1.toString()+operator+operand2.toString()+")";
+			case '=':case '!':case '>':case '<':return 1;
+			case '+':case '-':return 2;
+			case '*':case '/':case '%':return 3;
+			default:return 4;
 			}
 		}
-	}
-
-	public class TernaryElement extends FormulaElement
-    {
-        private Character op;
-        private SimpleElement var;
-        private FormulaElement limit, operand;
-
-        TernaryElement(Character operator, SimpleElement countingVar, FormulaElement limit, FormulaElement operand)
-        {
-            op=operator;
-            var=countingVar;
-            this.limit=limit;
-            this.operand=operand;
-            if(var.equals(new SimpleElement("r")))
-                throw new UnexpectedVariableException("Incorrect variable assigned as the counting variable. Don't use 'r'");
-            else if(!var.isVariable)
-                throw new UnexpectedVariableException("Assigned number instead of variable");
-        }
-
-        public String toString()
-        {
-            switch(op)
-            {
-                case 's':return "sum("+var+","+limit.toString()+","+operand.toString()+")";
-                case 'm':return "mult("+var+","+limit.toString()+","+operand.toString()+")";
-                default:return op+"("+var+","+limit.toString()+","+operand.toString()+")";
-            }
-        }
-
-        public double calcValue()
-        {
-            double lim=limit.calcValue();
-
-            switch(op)
+		
+		int weight()
+		{
+			return operator=='^' && power==POW?FormulaCost.TRANSCENDENTAL:1;
+		}
+		
+		FormulaElement[] operands()
+		{
+			return new FormulaElement[]{operand1, operand2};
+		}
+		
+		FormulaElement withOperands(RuntimeFormula owner, FormulaElement[] operands)
+		{
+			return owner.new BinaryElement(operator, operands[0], operands[1]);
+		}
+		
+		FormulaElement derivative(RuntimeFormula owner, String variable, FormulaElement[] derivatives)
+		{
+			FormulaElement d1=derivatives[0], d2=derivatives[1];
+			switch(operator)
+			{
+			case '+':return owner.sum(d1, d2);
+			case '-':return owner.difference(d1, d2);
+			case '*':return owner.sum(owner.product(d1, operand2.copy(owner, NO_SUBSTITUTIONS)), owner.product(operand1.copy(owner, NO_SUBSTITUTIONS), d2));
+			case '/':
+				if(owner.isConstant(d2, 0))
+					return owner.quotient(d1, operand2.copy(owner, NO_SUBSTITUTIONS));
+				return owner.quotient(owner.difference(owner.product(d1, operand2.copy(owner, NO_SUBSTITUTIONS)), owner.product(operand1.copy(owner, NO_SUBSTITUTIONS), d2)), 
+						owner.new BinaryElement('^', operand2.copy(owner, NO_SUBSTITUTIONS), owner.new SimpleElement(2)));
+			case '%':
+				// u%v is u-v*floor(u/v)
+				return owner.difference(d1, owner.product(d2, owner.new UnaryElement('f', owner.new BinaryElement('/', operand1.copy(owner, NO_SUBSTITUTIONS), operand2.copy(owner, NO_SUBSTITUTIONS)))));
+			case '^':
+				if(owner.isConstant(d2, 0))
+				{
+					// Power rule: v*u^(v-1)*u'
+					if(owner.isConstant(d1, 0))
+						return d1;
+					return owner.product(owner.product(operand2.copy(owner, NO_SUBSTITUTIONS), owner.new BinaryElement('^', operand1.copy(owner, NO_SUBSTITUTIONS), owner.difference(operand2.copy(owner, NO_SUBSTITUTIONS), owner.new SimpleElement(1)))), d1);
+				}
+				// u^v*(v'*ln(u)+v*u'/u)
+				return owner.product(copy(owner, NO_SUBSTITUTIONS), owner.sum(owner.product(d2, owner.new UnaryElement('e', operand1.copy(owner, NO_SUBSTITUTIONS))), 
+						owner.quotient(owner.product(operand2.copy(owner, NO_SUBSTITUTIONS), d1), operand1.copy(owner, NO_SUBSTITUTIONS))));
+			// Comparisons are step functions
+			case '=':case '!':case '>':case '<':return owner.new SimpleElement(0);
+			default: throw new RuntimeException("Unexpected Binary operator. Please contact the developer(s). Bad "+ formula.toString());
+			}
+		}
+		
+		int compile(CompactFormula.Builder builder, int[] operands)
+		{
+			if(operator=='^' && power!=POW)
+				return builder.power(operands[0], power, exponent);
+			return builder.binary(operator, operands[0], operands[1]);
+		}
+		
+		FormulaElement canonical(RuntimeFormula owner, FormulaElement[] operands, Comparator<FormulaElement> order)
+		{
+			FormulaElement canonical1=operands[0], canonical2=operands[1];
+			if((operator=='+' || operator=='*' || operator=='=' || operator=='!') && order.compare(canonical1, canonical2)>0)
+			{
+				FormulaElement swap=canonical1;
+				canonical1=canonical2;
+				canonical2=swap;
+			}
+			return owner.fold(owner.new BinaryElement(operator, canonical1, canonical2), canonical1, canonical2);
+		}
+		
+		Polynomial polynomial(Polynomial[] operands)
+		{
+			Polynomial p1=operands[0], p2=operands[1];
+			if(p1==null || p2==null)
+				return null;
+			switch(operator)
+			{
+			case '+':return p1.add(p2, 1);
+			case '-':return p1.add(p2, -1);
+			case '*':
+				// A product of sums isn't expanded, its terms would cancel out
+				if(!p1.isMonomial() && !p2.isMonomial())
+					return Polynomial.variable(toString());
+				return p1.multiply(p2);
+			case '/':
+				if(!p2.isConstant() || p2.constantTerm()==0)
+					return null;
+				return p1.divide(p2.constantTerm());
+			case '^':
+				double exponent=p2.constantTerm();
+				if(!p2.isConstant() || exponent<0 || exponent>Polynomial.MAX_DEGREE || exponent!=Math.floor(exponent))
+					return null;
+				// Like (x-1)^10, a power of a sum is kept as a factor
+				if(exponent>1 && !p1.isMonomial())
+					return Polynomial.variable(toString());
+				return p1.power((int)exponent);
+			default:return null;
+			}
+		}
+		
+		FormulaElement unchecked(boolean catches)
+		{
+			if(operator!='/' && operator!='%' && operator!='^')
+				return this;
+			// A constant divisor is never 0 once the formula is folded
+			if(catches && (operator=='^' || !isConstant(operand2) || isConstant(operand2, 0)))
+				return this;
+			return new UncheckedBinaryElement(operator, operand1, operand2);
+		}
+	}
+	
+	/**
+	 * 
+	 * A BinaryElement which doesn't check catchesArithmeticExceptions, built
+	 * by specialize()
+	 */
+	public class UncheckedBinaryElement extends BinaryElement
+	{
+		UncheckedBinaryElement(Character operator, FormulaElement operand1, FormulaElement operand2)
+		{
+			super(operator, operand1, operand2);
+		}
+		
+		public double calcValue() throws UnexpectedVariableException
+		{
+			double cache1;
+			switch(super.operator)
+			{
+			case '/':cache1=super.operand2.calcValue();
+					return super.operand1.calcValue()/cache1;
+			case '%':cache1=super.operand2.calcValue();
+					return (super.operand1.calcValue()%cache1 + cache1)%cache1;
+			case '^':return super.power==POW?Math.pow(super.operand1.calcValue(), super.operand2.calcValue()):power(super.operand1.calcValue(), super.power, super.exponent);
+			default:return super.calcValue();
+			}
+		}
+	}
+
+	public class TernaryElement extends FormulaElement
+    {
+        private Character op;
+        private SimpleElement var;
+        private FormulaElement limit, operand;
+        // Operations spent by each iteration outside the nested loops, set by estimateCost
+        double iterationCost=1;
+
+        TernaryElement(Character operator, SimpleElement countingVar, FormulaElement limit, FormulaElement operand)
+        {
+            op=operator;
+            var=countingVar;
+            this.limit=limit;
+            this.operand=operand;
+            if(var.variable.equals("r"))
+                throw new UnexpectedVariableException("Incorrect variable assigned as the counting variable. Don't use 'r'");
+            else if(var.variable.isEmpty())
+                throw new UnexpectedVariableException("Assigned number instead of variable");
+        }
+
+        void appendPart(Appendable out, boolean minimal, int i) throws IOException
+        {
+            if(i>0)
             {
-                case 's':{
-                    double result=0;
-                    for (double i = 1; i <= lim; i++) {
-                        putVar(var.toString(), i);
-                        result+=operand.calcValue();
-                    }
-                    variables.remove(var.toString());
-                    return result;}
-                case 'm':{
-                    double result=1;
-                    for (double i = 1; i <= lim; i++) {
-                        putVar(var.toString(), i);
-                        result*=operand.calcValue();
-                    }
-                    variables.remove(var.toString());
-                    return result;}
+                out.append(i==1?',':')');
+                return;
+            }
+            switch(op)
+            {
+                case 's':out.append("sum(");break;
+                case 'm':out.append("mult(");break;
+                default:out.append(op).append('(');
+            }
+            out.append(var.variable).append(',');
+        }
+
+        int level()
+        {
+            return 6;
+        }
+
+        /**
+         * With an evaluation budget, each iteration spends its operations 
+         * before it starts; the counting variable is removed even when the 
+         * budget is exceeded
+         */
+        public double calcValue()
+        {
+            double lim=limit.calcValue();
+
+            try
+            {
+                switch(op)
+                {
+                    case 's':{
+                        double result=0;
+                        for (double i = 1; i <= lim; i++) {
+                            if(budget!=null)
+                                budget.spend(iterationCost);
+                            putVar(var.toString(), i);
+                            result+=operand.calcValue();
+                        }
+                        return result;}
+                    case 'm':{
+                        double result=1;
+                        for (double i = 1; i <= lim; i++) {
+                            if(budget!=null)
+                                budget.spend(iterationCost);
+                            putVar(var.toString(), i);
+                            result*=operand.calcValue();
+                        }
+                        return result;}
+                    default: throw new RuntimeException("Unexpected Ternary Operator. Please contact the developer. Bad "+formula.toString());
+                }
+            } finally
+            {
+                variables.remove(var.toString());
+            }
+        }
+
+        FormulaElement[] operands()
+        {
+            return new FormulaElement[]{limit, operand};
+        }
+
+        FormulaElement withOperands(RuntimeFormula owner, FormulaElement[] operands)
+        {
+            return owner.new TernaryElement(op, owner.new SimpleElement(var.variable), operands[0], operands[1]);
+        }
+
+        boolean foldable()
+        {
+            // Evaluating the loop would change the variables
+            return false;
+        }
+
+        Map<String, FormulaElement> operandSubstitutions(int i, Map<String, FormulaElement> substitutions)
+        {
+            // The counting variable hides any substitute with the same name inside the loop
+            if(i==0 || !substitutions.containsKey(var.variable))
+                return substitutions;
+            Map<String, FormulaElement> operandSubstitutions=new HashMap<String, FormulaElement>(substitutions);
+            operandSubstitutions.remove(var.variable);
+            return operandSubstitutions;
+        }
+
+        FormulaElement derivative(RuntimeFormula owner, String variable, FormulaElement[] derivatives)
+        {
+            // The limit only changes the result by steps
+            if(var.variable.equals(variable))
+                return owner.new SimpleElement(0);
+            FormulaElement d=derivatives[1];
+            switch(op)
+            {
+                case 's':
+                    if(owner.isConstant(d, 0))
+                        return d;
+                    return owner.new TernaryElement('s', owner.new SimpleElement(var.variable), limit.copy(owner, NO_SUBSTITUTIONS), d);
+                case 'm':
+                    // (prod f_i)' = prod f_i * sum (f_i'/f_i)
+                    if(owner.isConstant(d, 0))
+                        return d;
+                    return owner.product(copy(owner, NO_SUBSTITUTIONS), owner.new TernaryElement('s', owner.new SimpleElement(var.variable), limit.copy(owner, NO_SUBSTITUTIONS), 
+                            owner.quotient(d, operand.copy(owner, NO_SUBSTITUTIONS))));
                 default: throw new RuntimeException("Unexpected Ternary Operator. Please contact the developer. Bad "+formula.toString());
             }
         }
+
+        boolean needsDerivative(int i, String variable)
+        {
+            return i==1 && !var.variable.equals(variable);
+        }
+
+        FormulaElement canonical(RuntimeFormula owner, FormulaElement[] operands, Comparator<FormulaElement> order)
+        {
+            return owner.new TernaryElement(op, owner.new SimpleElement(var.variable), operands[0], operands[1]);
+        }
+
+        void beginOperand(CompactFormula.Builder builder, int i, int[] operands)
+        {
+            // The counter node comes between the limit and the operand
+            if(i==1)
+                operands[2]=builder.beginLoop(var.variable);
+        }
+
+        int compile(CompactFormula.Builder builder, int[] operands)
+        {
+            return builder.endLoop(op, operands[0], operands[2], iterationCost);
+        }
     }
 	
+	/**
+	 * 
+	 * A FormulaElement calling a function implemented in Java and registered
+	 * in a FunctionRegistry. operand2 is null for functions of one argument.
+	 */
+	public class FunctionElement extends FormulaElement
+	{
+		private FunctionRegistry.Function function;
+		private FormulaElement operand1, operand2;
+		
+		public FunctionElement(FunctionRegistry.Function function, FormulaElement operand1, FormulaElement operand2)
+		{
+			super();
+			if(function.isInlined())
+				throw new IllegalArgumentException("Function "+function.getName()+" is inlined, not called");
+			this.function=function;
+			this.operand1=operand1;
+			this.operand2=operand2;
+		}
+		
+		/**
+		 * @return the value returned by the function, or 0 if it is NaN and 
+		 * catchesArithmeticExceptions is true
+		 */
+		public double calcValue() throws UnexpectedVariableException
+		{
+			double result;
+			if(operand2==null)
+				result=function.unary.applyAsDouble(operand1.calcValue());
+			else
+				result=function.binary.applyAsDouble(operand1.calcValue(), operand2.calcValue());
+			if(Double.isNaN(result) && catchesArithmeticExceptions)
+				return caught();
+			return result;
+		}
+		
+		void appendPart(Appendable out, boolean minimal, int i) throws IOException
+		{
+			if(i==0)
+				out.append(function.getName()).append('(');
+			else if(i==1 && operand2!=null)
+				out.append(',');
+			else
+				out.append(')');
+		}
+		
+		int level()
+		{
+			return 6;
+		}
+		
+		int weight()
+		{
+			return FormulaCost.TRANSCENDENTAL;
+		}
+		
+		FormulaElement[] operands()
+		{
+			return operand2==null?new FormulaElement[]{operand1}:new FormulaElement[]{operand1, operand2};
+		}
+		
+		FormulaElement withOperands(RuntimeFormula owner, FormulaElement[] operands)
+		{
+			return owner.new FunctionElement(function, operands[0], operands.length>1?operands[1]:null);
+		}
+		
+		boolean foldable()
+		{
+			return function.isPure();
+		}
+		
+		FormulaElement unchecked(boolean catches)
+		{
+			return catches?this:new UncheckedFunctionElement(function, operand1, operand2);
+		}
+		
+		FormulaElement derivative(RuntimeFormula owner, String variable, FormulaElement[] derivatives)
+		{
+			FormulaElement d1=derivatives[0];
+			FormulaElement d2=operand2==null?d1:derivatives[1];
+			if(owner.isConstant(d1, 0) && owner.isConstant(d2, 0))
+				return d1;
+			throw new UnsupportedOperationException("No derivative for the Java function "+function.getName());
+		}
+		
+		int compile(CompactFormula.Builder builder, int[] operands)
+		{
+			return builder.call(function, operands[0], operand2==null?-1:operands[1]);
+		}
+		
+		FormulaElement canonical(RuntimeFormula owner, FormulaElement[] operands, Comparator<FormulaElement> order)
+		{
+			FormulaElement canonical1=operands[0];
+			FormulaElement canonical2=operand2==null?null:operands[1];
+			FormulaElement result=owner.new FunctionElement(function, canonical1, canonical2);
+			if(!function.isPure())
+				return result;
+			if(canonical2==null)
+				return owner.fold(result, canonical1);
+			return owner.fold(result, canonical1, canonical2);
+		}
+	}
+	
+	/**
+	 * 
+	 * A FunctionElement which doesn't check catchesArithmeticExceptions, 
+	 * built by specialize()
+	 */
+	public class UncheckedFunctionElement extends FunctionElement
+	{
+		UncheckedFunctionElement(FunctionRegistry.Function function, FormulaElement operand1, FormulaElement operand2)
+		{
+			super(function, operand1, operand2);
+		}
+		
+		public double calcValue() throws UnexpectedVariableException
+		{
+			if(super.operand2==null)
+				return super.function.unary.applyAsDouble(super.operand1.calcValue());
+			return super.function.binary.applyAsDouble(super.operand1.calcValue(), super.operand2.calcValue());
+		}
+	}
+	
+	/**
+	 * 
+	 * A FormulaElement whose value depends on the values of its operand in 
+	 * the previous evaluations, each evaluation being the next row of a 
+	 * series: lag(x,k) is the value of x k rows before, NaN for the first k 
+	 * rows; rollmean(x,n) and rollmax(x,n) are the mean and the maximum of the
+	 * last n values of x, or of all of them for the first n rows; ema(x,alpha)
+	 * is the exponential moving average of x giving the weight alpha to the 
+	 * new value. The last values are kept in a ring buffer, and rollmax keeps
+	 * the rows which can still be the maximum in a monotonic deque, so that 
+	 * each row costs O(1).
+	 */
+	public class SeriesElement extends FormulaElement
+	{
+		private char operator;
+		private FormulaElement operand;
+		private double parameter;
+		// The last values of the operand, at the index of their row modulo the length
+		private double[] window;
+		// The rows of the deque of rollmax, from the oldest; their values decrease
+		private long[] deque;
+		private int head, size;
+		// Number of rows seen, and the last row whose value wasn't finite
+		private long rows, lastNonFinite;
+		// Sum of the finite values of the window for rollmean, average for ema
+		private double sum;
+		
+		/**
+		 * @param operator 'l' for lag, 'a' for rollmean, 'x' for rollmax and
+		 * 'e' for ema
+		 * @throws UnexpectedTokenException if parameter isn't valid for the
+		 * operator
+		 */
+		public SeriesElement(char operator, FormulaElement operand, double parameter)
+		{
+			super();
+			this.operator=operator;
+			this.operand=operand;
+			this.parameter=parameter;
+			checkSeriesParameter(operator, parameter);
+			if(operator!='e')
+			{
+				window=new double[(int)parameter];
+				if(operator=='x')
+					deque=new long[window.length];
+			}
+			reset();
+		}
+		
+		private String name()
+		{
+			return seriesName(operator);
+		}
+		
+		/**
+		 * Forgets the rows seen
+		 */
+		void reset()
+		{
+			rows=0;
+			lastNonFinite=Long.MIN_VALUE/2;
+			sum=0;
+			head=size=0;
+		}
+		
+		public double calcValue() throws UnexpectedVariableException
+		{
+			return step(operand.calcValue());
+		}
+		
+		/**
+		 * Adds the next row of the series
+		 * 
+		 * @return the value of the element at that row
+		 */
+		private double step(double value)
+		{
+			long row=rows++;
+			if(operator=='e')
+				return sum=row==0?value:sum+parameter*(value-sum);
+			int n=window.length, index=(int)(row%n);
+			double old=window[index];
+			window[index]=value;
+			if(!Double.isFinite(value))
+				lastNonFinite=row;
+			switch(operator)
+			{
+				case 'l':
+					return row<n?Double.NaN:old;
+				case 'a':
+					if(row>=n && Double.isFinite(old))
+						sum-=old;
+					if(Double.isFinite(value))
+						sum+=value;
+					int count=(int)Math.min(rows, n);
+					if(row-lastNonFinite<n)
+					{
+						// NaN and infinities can't be taken out of the sum
+						double total=0;
+						for(int i=0;i<count;i++)
+							total+=window[i];
+						return total/count;
+					}
+					if(index==n-1)
+					{
+						// Recomputed once per window, against the rounding errors
+						sum=0;
+						for(double v:window)
+							sum+=v;
+					}
+					return sum/count;
+				case 'x':
+					if(size>0 && deque[head]<=row-n)
+					{
+						head=(head+1)%n;
+						size--;
+					}
+					if(Double.isNaN(value))
+						return Double.NaN;
+					while(size>0 && window[(int)(deque[(head+size-1)%n]%n)]<=value)
+						size--;
+					deque[(head+size++)%n]=row;
+					if(row-lastNonFinite<n && hasNaN())
+						return Double.NaN;
+					return window[(int)(deque[head]%n)];
+				default:throw new RuntimeException("Unexpected series operator "+operator+". Please contact the developer(s).");
+			}
+		}
+		
+		/**
+		 * @return true if one of the values of the window is NaN
+		 */
+		private boolean hasNaN()
+		{
+			for(int i=0;i<Math.min(rows, window.length);i++)
+				if(Double.isNaN(window[i]))
+					return true;
+			return false;
+		}
+		
+		/**
+		 * @return the rows seen, as an array which restore() accepts
+		 */
+		double[] state()
+		{
+			int n=window==null?0:window.length;
+			double[] state=new double[5+n+(deque==null?0:n)];
+			state[0]=rows;
+			state[1]=lastNonFinite;
+			state[2]=sum;
+			state[3]=head;
+			state[4]=size;
+			for(int i=0;i<n;i++)
+				state[5+i]=window[i];
+			for(int i=0;deque!=null && i<n;i++)
+				state[5+n+i]=deque[i];
+			return state;
+		}
+		
+		void restore(double[] state)
+		{
+			int n=window==null?0:window.length;
+			if(state.length!=5+n+(deque==null?0:n))
+				throw new IllegalArgumentException("The state doesn't belong to "+this);
+			rows=(long)state[0];
+			lastNonFinite=(long)state[1];
+			sum=state[2];
+			head=(int)state[3];
+			size=(int)state[4];
+			for(int i=0;i<n;i++)
+				window[i]=state[5+i];
+			for(int i=0;deque!=null && i<n;i++)
+				deque[i]=(long)state[5+n+i];
+		}
+		
+		void appendPart(Appendable out, boolean minimal, int i) throws IOException
+		{
+			if(i==0)
+				out.append(name()).append('(');
+			else
+			{
+				out.append(',');
+				new SimpleElement(parameter).appendPart(out, minimal, 0);
+				out.append(')');
+			}
+		}
+		
+		int level()
+		{
+			return 6;
+		}
+		
+		FormulaElement[] operands()
+		{
+			return new FormulaElement[]{operand};
+		}
+		
+		FormulaElement withOperands(RuntimeFormula owner, FormulaElement[] operands)
+		{
+			return owner.new SeriesElement(operator, operands[0], parameter);
+		}
+		
+		boolean foldable()
+		{
+			// The value of a constant changes with the rows seen
+			return false;
+		}
+		
+		FormulaElement derivative(RuntimeFormula owner, String variable, FormulaElement[] derivatives)
+		{
+			FormulaElement d=derivatives[0];
+			if(owner.isConstant(d, 0))
+				return d;
+			// The other operators are linear
+			if(operator=='x')
+				throw new UnsupportedOperationException("No derivative for rollmax");
+			return owner.new SeriesElement(operator, d, parameter);
+		}
+		
+		/**
+		 * A series is only compiled for the evaluations of its RuntimeFormula,
+		 * as a call to step, since its state can't be shared
+		 */
+		int compile(CompactFormula.Builder builder, int[] operands)
+		{
+			if(!builder.series)
+				throw new UnexpectedTokenException(name()+" keeps a state and can't be compiled to a shared formula");
+			return builder.step(FunctionRegistry.series(name(), this::step), operands[0]);
+		}
+		
+		FormulaElement canonical(RuntimeFormula owner, FormulaElement[] operands, Comparator<FormulaElement> order)
+		{
+			return owner.new SeriesElement(operator, operands[0], parameter);
+		}
+	}
+	
+	static private String seriesName(char operator)
+	{
+		switch(operator)
+		{
+			case 'l':return "lag";
+			case 'a':return "rollmean";
+			case 'x':return "rollmax";
+			case 'e':return "ema";
+			default:throw new RuntimeException("Unexpected series operator "+operator+". Please contact the developer(s).");
+		}
+	}
+	
+	/**
+	 * @throws UnexpectedTokenException if parameter isn't a valid window, or
+	 * weight for ema, for the series operator
+	 */
+	static private void checkSeriesParameter(char operator, double parameter)
+	{
+		if(operator=='e')
+		{
+			if(!(parameter>0 && parameter<=1))
+				throw new UnexpectedTokenException("The weight of ema must be between 0 and 1 : "+parameter);
+		}
+		else if(parameter<1 || parameter!=Math.floor(parameter) || parameter>MAX_WINDOW)
+			throw new UnexpectedTokenException("The window of "+seriesName(operator)+" must be an integer between 1 and "+MAX_WINDOW+" : "+parameter);
+	}
+	
+	/**
+	 * 
+	 * A FormulaElement evaluating a polynomial of variable in Horner form, 
+	 * ((c0*x+c1)*x+c2)*x+c3, with a fused multiply-add for each degree. Built
+	 * by RuntimeFormula.horner(); it is written as the expanded products and
+	 * sums.
+	 * 
+	 * The coefficients equal to 0 are not added but skipped, like in the 
+	 * expanded sums: adding +0.0 would turn a product equal to -0.0 into 
+	 * +0.0, and 1/-x^2 at 0 into +Infinity.
+	 */
+	public class HornerElement extends FormulaElement
+	{
+		private FormulaElement variable;
+		// From the coefficient of the highest degree to the constant term
+		private FormulaElement[] coefficients;
+		// True for the coefficients which are the constant 0
+		private boolean[] zero;
+		
+		HornerElement(FormulaElement variable, FormulaElement[] coefficients)
+		{
+			super();
+			this.variable=variable;
+			this.coefficients=coefficients;
+			zero=new boolean[coefficients.length];
+			for(int i=0;i<coefficients.length;i++)
+				zero[i]=isConstant(coefficients[i], 0);
+		}
+		
+		public double calcValue() throws UnexpectedVariableException
+		{
+			double x=variable.calcValue();
+			double result=coefficients[0].calcValue();
+			for(int i=1;i<coefficients.length;i++)
+				result=zero[i]?result*x:Math.fma(result, x, coefficients[i].calcValue());
+			return result;
+		}
+		
+		/**
+		 * @return the products and sums computing the same polynomial
+		 */
+		private FormulaElement expanded()
+		{
+			FormulaElement result=coefficients[0];
+			for(int i=1;i<coefficients.length;i++)
+			{
+				FormulaElement coefficient=coefficients[i];
+				if(isConstant(coefficient) && ((SimpleElement)coefficient).value<0)
+					result=difference(product(result, variable), new SimpleElement(-((SimpleElement)coefficient).value));
+				else
+					result=sum(product(result, variable), coefficient);
+			}
+			return result;
+		}
+		
+		FormulaElement writtenForm()
+		{
+			return expanded();
+		}
+		
+		void appendPart(Appendable out, boolean minimal, int i) throws IOException
+		{
+			throw new RuntimeException("A Horner form is written expanded. Please contact the developer(s).");
+		}
+		
+		int level()
+		{
+			return expanded().level();
+		}
+		
+		int weight()
+		{
+			// A multiplication and an addition by coefficient
+			return 2*(coefficients.length-1);
+		}
+		
+		FormulaElement[] operands()
+		{
+			FormulaElement[] operands=new FormulaElement[coefficients.length+1];
+			operands[0]=variable;
+			System.arraycopy(coefficients, 0, operands, 1, coefficients.length);
+			return operands;
+		}
+		
+		FormulaElement withOperands(RuntimeFormula owner, FormulaElement[] operands)
+		{
+			return owner.new HornerElement(operands[0], java.util.Arrays.copyOfRange(operands, 1, operands.length));
+		}
+		
+		FormulaElement derivative(RuntimeFormula owner, String variable, FormulaElement[] derivatives)
+		{
+			throw new RuntimeException("A Horner form is derived expanded. Please contact the developer(s).");
+		}
+		
+		FormulaElement canonical(RuntimeFormula owner, FormulaElement[] operands, Comparator<FormulaElement> order)
+		{
+			throw new RuntimeException("A Horner form is made canonical expanded. Please contact the developer(s).");
+		}
+		
+		int compile(CompactFormula.Builder builder, int[] operands)
+		{
+			int result=operands[1];
+			for(int i=1;i<coefficients.length;i++)
+			{
+				if(zero[i])
+					result=builder.binary('*', result, operands[0]);
+				else if(isConstant(coefficients[i]))
+					result=builder.fma(result, operands[0], ((SimpleElement)coefficients[i]).value);
+				else
+					result=builder.binary('+', builder.binary('*', result, operands[0]), operands[i+1]);
+			}
+			return result;
+		}
+	}
+	
+	/*
+	 * Powers with a constant exponent, computed without Math.pow: integer 
+	 * exponents up to MAX_INTEGER_EXPONENT by multiplications, 1/2 and -1/2 by
+	 * Math.sqrt and 1/3 by Math.cbrt. The values are those of Math.pow, 
+	 * including NaN for a negative base with a fractional exponent and the 
+	 * signs of infinities and zeros, within a few ulps for integer exponents
+	 * above 2 and for 1/3.
+	 */
+	
+	static final int POW=0, INTEGER_POWER=1, SQUARE_ROOT=2, INVERSE_SQUARE_ROOT=3, CUBE_ROOT=4;
+	static final int MAX_INTEGER_EXPONENT=64;
+	
+	/**
+	 * @return the factorial of the integer part of value, 1 if it is lower 
+	 * than 2
+	 */
+	static private double factorial(double value)
+	{
+		double result=1;
+		for(double cacheL=Math.floor(value);cacheL>1;cacheL--)
+		{
+			result*=cacheL;
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the way to compute a power with the given constant exponent, 
+	 * POW if the exponent is NaN, which stands for an exponent that isn't 
+	 * constant
+	 */
+	static int powerKind(double exponent)
+	{
+		if(exponent==Math.rint(exponent) && Math.abs(exponent)<=MAX_INTEGER_EXPONENT)
+			return INTEGER_POWER;
+		if(exponent==0.5)
+			return SQUARE_ROOT;
+		if(exponent==-0.5)
+			return INVERSE_SQUARE_ROOT;
+		if(exponent==1.0/3)
+			return CUBE_ROOT;
+		return POW;
+	}
+	
+	/**
+	 * @return Math.pow(base, exponent), for an exponent whose powerKind is 
+	 * kind
+	 */
+	static double power(double base, int kind, double exponent)
+	{
+		switch(kind)
+		{
+		case INTEGER_POWER:
+			int n=(int)Math.abs(exponent);
+			double result=1, square=base;
+			while(n>0)
+			{
+				if((n&1)!=0)
+					result*=square;
+				n>>=1;
+				if(n>0)
+					square*=square;
+			}
+			// Squaring loses the precision of the subnormal results or makes
+			// them 0, and the reciprocal of an infinite result isn't the 
+			// subnormal one
+			if(Math.abs(result)<Double.MIN_NORMAL || (exponent<0 && Double.isInfinite(result)))
+				return Math.pow(base, exponent);
+			return exponent<0?1/result:result;
+		// Math.pow gives +0 for -0 and +infinity for -infinity
+		case SQUARE_ROOT:return base==Double.NEGATIVE_INFINITY?Double.POSITIVE_INFINITY:Math.sqrt(base)+0.0;
+		case INVERSE_SQUARE_ROOT:return base==Double.NEGATIVE_INFINITY?0:1/(Math.sqrt(base)+0.0);
+		case CUBE_ROOT:
+			if(base==Double.NEGATIVE_INFINITY)
+				return Double.POSITIVE_INFINITY;
+			return base<0?Double.NaN:Math.cbrt(base)+0.0;
+		default:return Math.pow(base, exponent);
+		}
+	}
+	
+	/**
+	 * @return the value of element if it is made of numbers and of the 
+	 * operators + - * / on at most depth levels, NaN otherwise
+	 */
+	private double constantValue(FormulaElement element, int depth)
+	{
+		if(element instanceof SimpleElement)
+			return ((SimpleElement)element).variable.isEmpty()?((SimpleElement)element).value:Double.NaN;
+		if(depth==0)
+			return Double.NaN;
+		if(element instanceof UnaryElement && ((UnaryElement)element).operator=='-')
+			return -constantValue(((UnaryElement)element).operand, depth-1);
+		if(element instanceof BinaryElement)
+		{
+			BinaryElement binary=(BinaryElement)element;
+			double value1=constantValue(binary.operand1, depth-1), value2=constantValue(binary.operand2, depth-1);
+			switch(binary.operator)
+			{
+			case '+':return value1+value2;
+			case '-':return value1-value2;
+			case '*':return value1*value2;
+			case '/':return value1/value2;
+			}
+		}
+		return Double.NaN;
+	}
+	
+	static final Map<String, FormulaElement> NO_SUBSTITUTIONS=java.util.Collections.emptyMap();
+	static final FormulaElement[] NO_OPERANDS=new FormulaElement[0];
+	
+	/*
+	 * Walks over the trees with explicit stacks instead of recursion, so that
+	 * they work on trees of any depth
+	 */
+	
+	/**
+	 * 
+	 * An element being walked over, with the results of its operands
+	 */
+	static private class Visit<T>
+	{
+		final FormulaElement element;
+		final FormulaElement[] operands;
+		final T results;
+		final Map<String, FormulaElement> substitutions;
+		int next;
+		
+		Visit(FormulaElement element, T results, Map<String, FormulaElement> substitutions)
+		{
+			this.element=element;
+			this.operands=element.operands();
+			this.results=results;
+			this.substitutions=substitutions;
+		}
+	}
+	
+	/**
+	 * @return a copy of the tree of root belonging to owner, see 
+	 * FormulaElement.copy
+	 */
+	static private FormulaElement copyTree(FormulaElement root, RuntimeFormula owner, Map<String, FormulaElement> substitutions)
+	{
+		return copyTree(root, owner, substitutions, null, null);
+	}
+	
+	/**
+	 * @param replacement gives the element replacing each subtree in the 
+	 * copy, or null to copy the subtree
+	 * @param rewriting gives the element replacing each copied element with
+	 * operands, once its operands are copied, or null to keep the copies
+	 */
+	static private FormulaElement copyTree(FormulaElement root, RuntimeFormula owner, Map<String, FormulaElement> substitutions, java.util.function.UnaryOperator<FormulaElement> replacement, java.util.function.UnaryOperator<FormulaElement> rewriting)
+	{
+		FormulaElement replaced;
+		if(replacement!=null && (replaced=replacement.apply(root))!=null)
+			return replaced;
+		ArrayList<Visit<FormulaElement[]>> stack=new ArrayList<Visit<FormulaElement[]>>();
+		stack.add(new Visit<FormulaElement[]>(root, new FormulaElement[root.operands().length], substitutions));
+		FormulaElement copy=null;
+		while(true)
+		{
+			Visit<FormulaElement[]> top=stack.get(stack.size()-1);
+			if(copy!=null)
+				top.results[top.next++]=copy;
+			if(top.next<top.operands.length)
+			{
+				FormulaElement operand=top.operands[top.next];
+				Map<String, FormulaElement> operandSubstitutions=top.element.operandSubstitutions(top.next, top.substitutions);
+				if(replacement!=null && (copy=replacement.apply(operand))!=null)
+					continue;
+				if(operand.operands().length==0)
+					copy=operand.copy(owner, operandSubstitutions);
+				else
+				{
+					stack.add(new Visit<FormulaElement[]>(operand, new FormulaElement[operand.operands().length], operandSubstitutions));
+					copy=null;
+				}
+				continue;
+			}
+			if(top.operands.length==0)
+				copy=top.element.copy(owner, top.substitutions);
+			else
+			{
+				copy=top.element.withOperands(owner, top.results);
+				if(rewriting!=null)
+					copy=rewriting.apply(copy);
+			}
+			stack.remove(stack.size()-1);
+			if(stack.isEmpty())
+				return copy;
+		}
+	}
+	
+	/**
+	 * Adds the nodes of the tree of root to builder, in postorder
+	 * 
+	 * @return the index of the root
+	 */
+	static private int compileTree(FormulaElement root, CompactFormula.Builder builder)
+	{
+		ArrayList<Visit<int[]>> stack=new ArrayList<Visit<int[]>>();
+		stack.add(new Visit<int[]>(root, new int[root.operands().length+1], NO_SUBSTITUTIONS));
+		int index=-1;
+		while(true)
+		{
+			Visit<int[]> top=stack.get(stack.size()-1);
+			if(index>=0)
+				top.results[top.next++]=index;
+			if(top.next<top.operands.length)
+			{
+				top.element.beginOperand(builder, top.next, top.results);
+				FormulaElement operand=top.operands[top.next];
+				stack.add(new Visit<int[]>(operand, new int[operand.operands().length+1], NO_SUBSTITUTIONS));
+				index=-1;
+				continue;
+			}
+			index=top.element.compile(builder, top.results);
+			stack.remove(stack.size()-1);
+			if(stack.isEmpty())
+				return index;
+		}
+	}
+	
+	/**
+	 * Writes a tree part by part, see FormulaElement.appendPart
+	 */
+	static private class TreeWriter
+	{
+		private final ArrayList<Visit<Void>> stack=new ArrayList<Visit<Void>>();
+		private final boolean minimal;
+		
+		TreeWriter(FormulaElement root, boolean minimal)
+		{
+			stack.add(new Visit<Void>(root.writtenForm(), null, NO_SUBSTITUTIONS));
+			this.minimal=minimal;
+		}
+		
+		/**
+		 * @return false if the whole tree was already written
+		 */
+		boolean appendNext(Appendable out) throws IOException
+		{
+			if(stack.isEmpty())
+				return false;
+			Visit<Void> top=stack.get(stack.size()-1);
+			top.element.appendPart(out, minimal, top.next);
+			if(top.next<top.operands.length)
+				stack.add(new Visit<Void>(top.operands[top.next++].writtenForm(), null, NO_SUBSTITUTIONS));
+			else
+				stack.remove(stack.size()-1);
+			return true;
+		}
+	}
+	
+	/**
+	 * Writes the tree of root to out, see FormulaElement.appendTo
+	 */
+	static private void appendTree(FormulaElement root, Appendable out, boolean minimal) throws IOException
+	{
+		TreeWriter writer=new TreeWriter(root, minimal);
+		while(writer.appendNext(out));
+	}
+	
+	// Length of the beginning of the String kept for each canonical subtree
+	static private final int KEY_LENGTH=32;
+	
+	/**
+	 * @return the canonical tree of root belonging to owner, built in 
+	 * postorder, see FormulaElement.canonical. The operands of the 
+	 * commutative operators are sorted by their String: the beginning of the
+	 * String of each canonical subtree is kept and built from those of its 
+	 * operands, and the whole Strings are only compared when these are equal.
+	 * The operands whose Effects depend on their order aren't sorted.
+	 */
+	static private FormulaElement canonicalTree(FormulaElement root, RuntimeFormula owner)
+	{
+		final Map<FormulaElement, String> keys=new java.util.IdentityHashMap<FormulaElement, String>();
+		final Map<FormulaElement, Effects> effects=new java.util.IdentityHashMap<FormulaElement, Effects>();
+		Comparator<FormulaElement> order=(element1, element2) -> {
+			if(!effects.get(element1).independentOf(effects.get(element2)))
+				return 0;
+			String key1=keys.get(element1), key2=keys.get(element2);
+			int comparison=key1.compareTo(key2);
+			if(comparison!=0 || key1.length()<KEY_LENGTH)
+				return comparison;
+			return compareStrings(element1, element2);
+		};
+		ArrayList<Visit<FormulaElement[]>> stack=new ArrayList<Visit<FormulaElement[]>>();
+		root=root.writtenForm();
+		stack.add(new Visit<FormulaElement[]>(root, new FormulaElement[root.operands().length], NO_SUBSTITUTIONS));
+		FormulaElement canonical=null;
+		StringBuilder key=new StringBuilder();
+		while(true)
+		{
+			Visit<FormulaElement[]> top=stack.get(stack.size()-1);
+			if(canonical!=null)
+				top.results[top.next++]=canonical;
+			if(top.next<top.operands.length)
+			{
+				FormulaElement operand=top.operands[top.next].writtenForm();
+				stack.add(new Visit<FormulaElement[]>(operand, new FormulaElement[operand.operands().length], NO_SUBSTITUTIONS));
+				canonical=null;
+				continue;
+			}
+			canonical=top.element.canonical(owner, top.results, order);
+			FormulaElement[] operands=canonical.operands();
+			key.setLength(0);
+			try
+			{
+				for(int i=0;i<=operands.length && key.length()<KEY_LENGTH;i++)
+				{
+					canonical.appendPart(key, false, i);
+					if(i<operands.length)
+						key.append(keys.get(operands[i]));
+				}
+			} catch(IOException e)
+			{
+				// StringBuilder doesn't throw IOException
+			}
+			keys.put(canonical, key.substring(0, Math.min(key.length(), KEY_LENGTH)));
+			effects.put(canonical, new Effects(canonical, effects));
+			stack.remove(stack.size()-1);
+			if(stack.isEmpty())
+				return canonical;
+		}
+	}
+	
+	/**
+	 * @return the derivative of the tree of root with respect to variable, 
+	 * belonging to owner and built in postorder, see 
+	 * FormulaElement.derivative
+	 */
+	static private FormulaElement derivativeTree(FormulaElement root, RuntimeFormula owner, String variable)
+	{
+		ArrayList<Visit<FormulaElement[]>> stack=new ArrayList<Visit<FormulaElement[]>>();
+		root=root.writtenForm();
+		stack.add(new Visit<FormulaElement[]>(root, new FormulaElement[root.operands().length], NO_SUBSTITUTIONS));
+		FormulaElement derivative=null;
+		while(true)
+		{
+			Visit<FormulaElement[]> top=stack.get(stack.size()-1);
+			if(derivative!=null)
+				top.results[top.next++]=derivative;
+			while(top.next<top.operands.length && !top.element.needsDerivative(top.next, variable))
+				top.next++;
+			if(top.next<top.operands.length)
+			{
+				FormulaElement operand=top.operands[top.next].writtenForm();
+				stack.add(new Visit<FormulaElement[]>(operand, new FormulaElement[operand.operands().length], NO_SUBSTITUTIONS));
+				derivative=null;
+				continue;
+			}
+			derivative=top.element.derivative(owner, variable, top.results);
+			stack.remove(stack.size()-1);
+			if(stack.isEmpty())
+				return derivative;
+		}
+	}
+	
+	/**
+	 * 
+	 * What a subtree reads and changes, which can make its value depend on 
+	 * the order of evaluation: the variables it reads, the counting variables
+	 * of its loops, which are removed from the variables once the loops end,
+	 * and whether it reads 'r' or calls a Java function which isn't pure
+	 */
+	static private class Effects
+	{
+		final Set<String> reads, counters;
+		final boolean impure;
+		
+		/**
+		 * @param effects the Effects of the operands of element
+		 */
+		Effects(FormulaElement element, Map<FormulaElement, Effects> effects)
+		{
+			Set<String> reads=Collections.emptySet(), counters=Collections.emptySet();
+			boolean impure=false;
+			for(FormulaElement operand:element.operands())
+			{
+				Effects operandEffects=effects.get(operand);
+				reads=union(reads, operandEffects.reads);
+				counters=union(counters, operandEffects.counters);
+				impure|=operandEffects.impure;
+			}
+			if(element instanceof SimpleElement && !((SimpleElement)element).variable.isEmpty())
+			{
+				reads=union(reads, Collections.singleton(((SimpleElement)element).variable));
+				impure|=((SimpleElement)element).variable.equals("r");
+			}
+			else if(element instanceof SlotElement)
+				reads=union(reads, Collections.singleton(((SlotElement)element).variable));
+			else if(element instanceof TernaryElement)
+				counters=union(counters, Collections.singleton(((TernaryElement)element).var.variable));
+			else if(element instanceof FunctionElement)
+				impure|=!((FunctionElement)element).function.isPure();
+			this.reads=reads;
+			this.counters=counters;
+			this.impure=impure;
+		}
+		
+		/**
+		 * @return true if both subtrees give the same values whichever is 
+		 * evaluated first
+		 */
+		boolean independentOf(Effects other)
+		{
+			return !impure && !other.impure && Collections.disjoint(counters, other.reads) && Collections.disjoint(other.counters, reads);
+		}
+		
+		/**
+		 * @return the union of both sets, one of them if it holds the other
+		 */
+		static private Set<String> union(Set<String> set1, Set<String> set2)
+		{
+			if(set1.containsAll(set2))
+				return set1;
+			if(set2.containsAll(set1))
+				return set2;
+			Set<String> union=new HashSet<String>(set1);
+			union.addAll(set2);
+			return union;
+		}
+	}
+	
+	/**
+	 * @return the comparison of the Strings of both trees, written until 
+	 * they differ
+	 */
+	static private int compareStrings(FormulaElement root1, FormulaElement root2)
+	{
+		TreeWriter writer1=new TreeWriter(root1, false), writer2=new TreeWriter(root2, false);
+		StringBuilder string1=new StringBuilder(), string2=new StringBuilder();
+		try
+		{
+			for(int i=0;;i++)
+			{
+				while(string1.length()<=i && writer1.appendNext(string1));
+				while(string2.length()<=i && writer2.appendNext(string2));
+				if(string1.length()<=i || string2.length()<=i)
+					return string1.length()-string2.length();
+				if(string1.charAt(i)!=string2.charAt(i))
+					return string1.charAt(i)-string2.charAt(i);
+			}
+		} catch(IOException e)
+		{
+			// StringBuilder doesn't throw IOException
+			return 0;
+		}
+	}
+	
+	/**
+	 * @return the polynomial computed by each element of the tree of root 
+	 * which is a polynomial of its variables
+	 */
+	static private Map<FormulaElement, Polynomial> polynomials(FormulaElement root)
+	{
+		Map<FormulaElement, Polynomial> polynomials=new java.util.IdentityHashMap<FormulaElement, Polynomial>();
+		ArrayList<Visit<Polynomial[]>> stack=new ArrayList<Visit<Polynomial[]>>();
+		stack.add(new Visit<Polynomial[]>(root, new Polynomial[root.operands().length], NO_SUBSTITUTIONS));
+		while(true)
+		{
+			Visit<Polynomial[]> top=stack.get(stack.size()-1);
+			if(top.next<top.operands.length)
+			{
+				FormulaElement operand=top.operands[top.next];
+				if(polynomials.containsKey(operand))
+					top.results[top.next++]=polynomials.get(operand);
+				else
+					stack.add(new Visit<Polynomial[]>(operand, new Polynomial[operand.operands().length], NO_SUBSTITUTIONS));
+				continue;
+			}
+			Polynomial polynomial=top.element.polynomial(top.results);
+			polynomials.put(top.element, polynomial);
+			stack.remove(stack.size()-1);
+			if(stack.isEmpty())
+				return polynomials;
+			Visit<Polynomial[]> parent=stack.get(stack.size()-1);
+			parent.results[parent.next++]=polynomial;
+		}
+	}
+	
+	/**
+	 * @return true if polynomial stands for a product or power of sums, 
+	 * kept as a factor, see BinaryElement.polynomial
+	 */
+	static private boolean isFactor(Polynomial polynomial)
+	{
+		// Only these variables are named by the String of a BinaryElement
+		return polynomial!=null && polynomial.mainVariable()!=null && polynomial.mainVariable().startsWith("(") && polynomial.isVariable(polynomial.mainVariable());
+	}
+	
+	/**
+	 * @param variables an element of the tree for each variable of 
+	 * polynomial
+	 * @return the elements of owner computing polynomial in Horner form: a 
+	 * HornerElement of its variable of highest degree, whose coefficients are
+	 * themselves in Horner form
+	 */
+	private FormulaElement hornerForm(Polynomial polynomial, Map<String, FormulaElement> variables)
+	{
+		String variable=polynomial.mainVariable();
+		if(variable==null)
+			return new SimpleElement(polynomial.constantTerm());
+		FormulaElement x=variables.get(variable).copy(this, NO_SUBSTITUTIONS);
+		if(polynomial.isVariable(variable))
+			return x;
+		int degree=polynomial.degree(variable);
+		FormulaElement[] coefficients=new FormulaElement[degree+1];
+		for(int i=0;i<=degree;i++)
+			coefficients[i]=hornerForm(polynomial.coefficient(variable, degree-i), variables);
+		if(degree==1 && isConstant(coefficients[1], 0))
+			return product(coefficients[0], x);
+		return new HornerElement(x, coefficients);
+	}
+	
+	static private void forEachElement(FormulaElement root, java.util.function.Consumer<FormulaElement> action)
+	{
+		ArrayList<FormulaElement> elements=new ArrayList<FormulaElement>();
+		elements.add(root);
+		while(!elements.isEmpty())
+		{
+			FormulaElement element=elements.remove(elements.size()-1);
+			action.accept(element);
+			for(FormulaElement operand:element.operands())
+				elements.add(operand);
+		}
+	}
+	
+	/**
+	 * @return the number of elements on the longest path from root to a leaf
+	 */
+	static private int depth(FormulaElement root)
+	{
+		int depth=0;
+		ArrayList<FormulaElement> elements=new ArrayList<FormulaElement>();
+		int[] depths=new int[16];
+		elements.add(root);
+		depths[0]=1;
+		while(!elements.isEmpty())
+		{
+			FormulaElement element=elements.remove(elements.size()-1);
+			int elementDepth=depths[elements.size()];
+			depth=Math.max(depth, elementDepth);
+			for(FormulaElement operand:element.operands())
+			{
+				if(elements.size()==depths.length)
+					depths=java.util.Arrays.copyOf(depths, 2*depths.length);
+				depths[elements.size()]=elementDepth+1;
+				elements.add(operand);
+			}
+		}
+		return depth;
+	}
+	
+	// Indexes of the costs of a subtree, see estimate
+	static private final int TOTAL=0, FLAT=1, NODES=2, LOOPS=3, ITERATIONS=4, CONSTANT=5;
+	
+	/**
+	 * Estimates the cost of the tree of root, and sets the iterationCost of
+	 * its loops
+	 */
+	static private FormulaCost estimate(FormulaElement root)
+	{
+		ArrayList<Visit<double[][]>> stack=new ArrayList<Visit<double[][]>>();
+		stack.add(new Visit<double[][]>(root, new double[root.operands().length][], NO_SUBSTITUTIONS));
+		double[] cost=null;
+		while(true)
+		{
+			Visit<double[][]> top=stack.get(stack.size()-1);
+			if(cost!=null)
+				top.results[top.next++]=cost;
+			if(top.next<top.operands.length)
+			{
+				FormulaElement operand=top.operands[top.next];
+				stack.add(new Visit<double[][]>(operand, new double[operand.operands().length][], NO_SUBSTITUTIONS));
+				cost=null;
+				continue;
+			}
+			cost=estimate(top.element, top.results);
+			stack.remove(stack.size()-1);
+			if(stack.isEmpty())
+				return new FormulaCost((int)cost[NODES], (int)cost[LOOPS], cost[TOTAL], cost[ITERATIONS], cost[FLAT]);
+		}
+	}
+	
+	/**
+	 * @param operands the costs of the operands of element
+	 * @return the costs of the subtree of element: its operations, those 
+	 * outside its loops, its elements, loops and iterations, and 1 if its 
+	 * value is constant
+	 */
+	static private double[] estimate(FormulaElement element, double[][] operands)
+	{
+		double[] cost=new double[6];
+		cost[NODES]=1;
+		boolean constant=element.foldable();
+		for(double[] operand:operands)
+		{
+			cost[NODES]+=operand[NODES];
+			cost[LOOPS]+=operand[LOOPS];
+			constant&=operand[CONSTANT]!=0;
+		}
+		if(element instanceof TernaryElement)
+		{
+			TernaryElement loop=(TernaryElement)element;
+			double[] limit=operands[0], body=operands[1];
+			double trips=Double.POSITIVE_INFINITY;
+			if(limit[CONSTANT]!=0)
+			{
+				double value=loop.limit.calcValue();
+				trips=value>=1?Math.floor(value):0;
+			}
+			loop.iterationCost=1+body[FLAT];
+			// A loop without iteration costs nothing, whatever its operand
+			cost[TOTAL]=1+limit[TOTAL]+(trips==0?0:trips*(1+body[TOTAL]));
+			cost[ITERATIONS]=limit[ITERATIONS]+(trips==0?0:trips*(1+body[ITERATIONS]));
+			cost[FLAT]=1+limit[FLAT];
+			cost[LOOPS]++;
+			return cost;
+		}
+		cost[TOTAL]=cost[FLAT]=element.weight();
+		for(double[] operand:operands)
+		{
+			cost[TOTAL]+=operand[TOTAL];
+			cost[FLAT]+=operand[FLAT];
+			cost[ITERATIONS]+=operand[ITERATIONS];
+		}
+		if(operands.length==0)
+		{
+			// Numbers and the named constants
+			String variable=element instanceof SimpleElement?((SimpleElement)element).variable.toLowerCase():null;
+			constant="".equals(variable) || "pi".equals(variable) || "e".equals(variable);
+		}
+		cost[CONSTANT]=constant?1:0;
+		return cost;
+	}
+	
+	/**
+	 * @return true if operand is written between parentheses when its 
+	 * operator needs the given level
+	 */
+	static private boolean parenthesized(FormulaElement operand, boolean minimal, int level)
+	{
+		return minimal && operand.level()<level;
+	}
+	
+	/*
+	 * Builders for the elements of derivatives, which leave out the additions
+	 * of 0 and multiplications by 0 or 1
+	 */
+	
+	private boolean isConstant(FormulaElement element)
+	{
+		return element instanceof SimpleElement && ((SimpleElement)element).variable.isEmpty();
+	}
+	
+	private boolean isConstant(FormulaElement element, double value)
+	{
+		return element instanceof SimpleElement && ((SimpleElement)element).variable.isEmpty() && ((SimpleElement)element).value==value;
+	}
+	
+	private FormulaElement sum(FormulaElement operand1, FormulaElement operand2)
+	{
+		if(isConstant(operand1, 0))
+			return operand2;
+		if(isConstant(operand2, 0))
+			return operand1;
+		return new BinaryElement('+', operand1, operand2);
+	}
+	
+	private FormulaElement difference(FormulaElement operand1, FormulaElement operand2)
+	{
+		if(isConstant(operand2, 0))
+			return operand1;
+		if(isConstant(operand1, 0))
+			return negative(operand2);
+		return new BinaryElement('-', operand1, operand2);
+	}
+	
+	private FormulaElement product(FormulaElement operand1, FormulaElement operand2)
+	{
+		if(isConstant(operand1, 0) || isConstant(operand2, 1))
+			return operand1;
+		if(isConstant(operand2, 0) || isConstant(operand1, 1))
+			return operand2;
+		return new BinaryElement('*', operand1, operand2);
+	}
+	
+	private FormulaElement quotient(FormulaElement operand1, FormulaElement operand2)
+	{
+		if(isConstant(operand1, 0) || isConstant(operand2, 1))
+			return operand1;
+		return new BinaryElement('/', operand1, operand2);
+	}
+	
+	private FormulaElement negative(FormulaElement operand)
+	{
+		if(isConstant(operand, 0))
+			return operand;
+		return new UnaryElement('-', operand);
+	}
+	
+	/**
+	 * @return the value of element as a SimpleElement if all its operands are
+	 * constants and the value is a number, element otherwise; the arithmetic
+	 * exceptions caught leave element as it is, without telling the listener
+	 */
+	private FormulaElement fold(FormulaElement element, FormulaElement... operands)
+	{
+		for(FormulaElement operand:operands)
+			if(!(operand instanceof SimpleElement) || !((SimpleElement)operand).variable.isEmpty())
+				return element;
+		double value;
+		folding=true;
+		try
+		{
+			value=element.calcValue();
+		} finally
+		{
+			folding=false;
+		}
+		if(Double.isNaN(value))
+			return element;
+		return new SimpleElement(value);
+	}
+	
 	/**
 	 * 
 	 * @author François Luc Denhez-Teuton
@@ -388,6 +2346,13 @@ public class RuntimeFormula
 	private class FormulaTree
 	{
 		FormulaElement root;
+		// True if the tree is too deep to be evaluated by recursion
+		final boolean deep;
+		// The formula given to setFormula, or the tree written once the 
+		// listener needs it
+		String name;
+		// Estimated once needed
+		private FormulaCost cost;
 		
 		/**
 		 * @param root The root of the already completed tree
@@ -398,6 +2363,7 @@ public class RuntimeFormula
 		public FormulaTree(FormulaElement root)
 		{
 			this.root=root;
+			deep=depth(root)>MAX_RECURSION_DEPTH;
 		}
 		
 		/**
@@ -407,18 +2373,59 @@ public class RuntimeFormula
 		 *  Polish Notation
 		 */ 
 		public FormulaTree(FormulaTokens formula)
+		{
+			this.root=build(formula, new HashMap<String, FormulaElement>());
+			deep=depth(root)>MAX_RECURSION_DEPTH;
+		}
+		
+		String name()
+		{
+			if(name==null)
+				name=root.toString();
+			return name;
+		}
+		
+		FormulaCost cost()
+		{
+			if(cost==null)
+				cost=estimate(root);
+			return cost;
+		}
+		
+		/**
+		 * @param formula FormulaTokens in RPN
+		 * @param arguments the subtrees replacing the parameters, when formula 
+		 * is the body of a function being inlined. The arguments are passed by
+		 * name: each use of a parameter gets its own copy of the argument, 
+		 * which is evaluated as many times as the use is.
+		 * @return the root of the tree
+		 * @throws UnexpectedTokenException if an argument which isn't pure 
+		 * would be evaluated more than once
+		 */
+		private FormulaElement build(FormulaTokens formula, Map<String, FormulaElement> arguments)
 		{
 			Stack<FormulaElement> treeStack = new Stack<FormulaElement>();
+			Set<String> used=new HashSet<String>();
 			
 			for(Token e: formula)
 			{
 				if(e.level==0)
 				{
 					Character c=e.element.charAt(0);
+					FormulaElement argument;
 					if(c=='.' || Character.isDigit(c))
 					{
 						treeStack.push(new SimpleElement(Double.parseDouble(e.element)));
 					}
+					else if((argument=arguments.get(e.element))!=null)
+					{
+						if(!used.add(e.element))
+						{
+							checkPure(argument);
+							argument=argument.copy(RuntimeFormula.this, NO_SUBSTITUTIONS);
+						}
+						treeStack.push(argument);
+					}
 					else
 					{
 						treeStack.push(new SimpleElement(e.element));
@@ -509,54 +2516,34 @@ public class RuntimeFormula
 				}
 				else if(e.level==6)
 				{
-					if(e.element.equals("sqrt"))
-						treeStack.push(new UnaryElement('x',treeStack.pop()));
-					else if(e.element.equals("log"))
-							treeStack.push(new UnaryElement('l',treeStack.pop()));
-					else if(e.element.equals("ln"))
-							treeStack.push(new UnaryElement('e',treeStack.pop()));
-					else if(e.element.equals("sin"))
-							treeStack.push(new UnaryElement('s',treeStack.pop()));
-					else if(e.element.equals("cos"))
-							treeStack.push(new UnaryElement('c',treeStack.pop()));
-					else if(e.element.equals("tan"))
-							treeStack.push(new UnaryElement('t',treeStack.pop()));
-					else if(e.element.equals("sinh"))
-							treeStack.push(new UnaryElement('h',treeStack.pop()));
-					else if(e.element.equals("cosh"))
-							treeStack.push(new UnaryElement('o',treeStack.pop()));
-					else if(e.element.equals("tanh"))
-							treeStack.push(new UnaryElement('n',treeStack.pop()));
-					else if(e.element.equals("asin"))
-							treeStack.push(new UnaryElement('a',treeStack.pop()));
-					else if(e.element.equals("acos"))
-							treeStack.push(new UnaryElement('q',treeStack.pop()));
-					else if(e.element.equals("atan"))
-							treeStack.push(new UnaryElement('u',treeStack.pop()));
-					else if(e.element.equals("abs"))
-							treeStack.push(new UnaryElement('i',treeStack.pop()));
-					else if(e.element.equals("ceil"))
-							treeStack.push(new UnaryElement('k',treeStack.pop()));
-					else if(e.element.equals("floor"))
-							treeStack.push(new UnaryElement('f',treeStack.pop()));
-					else if(e.element.equals("!"))
-						treeStack.push(new UnaryElement('r',treeStack.pop()));
-                    else if(e.element.equals("sum"))
-                    {
-                        FormulaElement operand, limit, var;
-                        operand=treeStack.pop();
-                        limit=treeStack.pop();
-                        var=treeStack.pop();
-                        treeStack.push(new TernaryElement('s',(SimpleElement)var,limit,operand ));
-                    }
-                    else if(e.element.equals("mult"))
+					Character operator;
+					FunctionRegistry.Function function;
+					if((operator=FunctionRegistry.unaryOperator(e.element))!=null)
+						treeStack.push(new UnaryElement(operator,treeStack.pop()));
+                    else if((operator=FunctionRegistry.ternaryOperator(e.element))!=null)
                     {
                         FormulaElement operand, limit, var;
                         operand=treeStack.pop();
                         limit=treeStack.pop();
                         var=treeStack.pop();
-                        treeStack.push(new TernaryElement('m',(SimpleElement)var,limit,operand ));
+                        // The operand is evaluated once per iteration
+                        for(FormulaElement argument:arguments.values())
+                            if(contains(operand, argument))
+                                checkPure(argument);
+                        treeStack.push(new TernaryElement(operator,(SimpleElement)var,limit,operand ));
                     }
+					else if((operator=FunctionRegistry.seriesOperator(e.element))!=null)
+					{
+						// checkFormula made sure that the parameter is a number
+						FormulaElement parameter=treeStack.pop();
+						if(!(parameter instanceof SimpleElement) || !((SimpleElement)parameter).variable.isEmpty())
+							throw new RuntimeException("The second argument of "+e.element+" isn't a number : "+parameter+". Please contact the developer(s).");
+						treeStack.push(new SeriesElement(operator, treeStack.pop(), ((SimpleElement)parameter).value));
+					}
+					else if((function=formula.functions.get(e.element))!=null)
+						treeStack.push(call(function, treeStack));
+					else
+						throw new RuntimeException("Unknown function "+e.element+". Please contact the developer(s).");
 				}
 				else if(e.level==5)
 				{
@@ -565,9 +2552,53 @@ public class RuntimeFormula
 				}
 			}
 			
-			this.root=treeStack.pop();
+			FormulaElement root=treeStack.pop();
 			if(!treeStack.isEmpty())
 				throw new RuntimeException(""+treeStack.pop()+" Non-empty stack at end of abstract syntax tree creation. Please contact the developer(s).");
+			return root;
+		}
+		
+		/**
+		 * @throws UnexpectedTokenException if argument reads 'r' or calls a 
+		 * Java function which isn't pure
+		 */
+		private void checkPure(FormulaElement argument)
+		{
+			if(!pure(argument, true))
+				throw new UnexpectedTokenException("The argument "+argument+" isn't pure and would be evaluated more than once");
+		}
+		
+		/**
+		 * Pops the arguments of a registered function and returns the element
+		 * replacing the call: the inlined body for functions defined by a 
+		 * formula, the value of the call for pure Java functions of constant 
+		 * arguments, and a FunctionElement otherwise
+		 */
+		private FormulaElement call(FunctionRegistry.Function function, Stack<FormulaElement> treeStack)
+		{
+			FormulaElement[] operands=new FormulaElement[function.getArity()];
+			for(int i=operands.length-1;i>=0;i--)
+				operands[i]=treeStack.pop();
+			
+			if(function.isInlined())
+			{
+				Map<String, FormulaElement> arguments=new HashMap<String, FormulaElement>();
+				for(int i=0;i<operands.length;i++)
+					arguments.put(function.parameters[i], operands[i]);
+				return build(function.body, arguments);
+			}
+			
+			FunctionElement call=new FunctionElement(function, operands[0], operands.length>1?operands[1]:null);
+			if(function.isPure())
+			{
+				for(FormulaElement operand:operands)
+					if(!(operand instanceof SimpleElement) || !((SimpleElement)operand).variable.isEmpty())
+						return call;
+				double value=call.calcValue();
+				if(!Double.isNaN(value))
+					return new SimpleElement(value);
+			}
+			return call;
 		}
 		
 		public double calcValue() throws UnexpectedVariableException
@@ -579,6 +2610,11 @@ public class RuntimeFormula
 		{
 			return root.toString();
 		}
+		
+		public void appendTo(Appendable out, boolean minimal) throws IOException
+		{
+			root.appendTo(out, minimal);
+		}
 	}
 	
 	static public class Token
@@ -607,7 +2643,7 @@ public class RuntimeFormula
 				level=4;break;
 			case "--":
 				level=5;break;
-			case "sqrt" : case "log" : case "ln" :  case "sin" :  case "cos": case "tan" : case "sinh" : case "cosh" : case "tanh" : case "asin" : case "acos" : case "atan" : case "abs" : case "ceil" : case "floor": case "!":case "sum":case "mult":
+			case "sqrt" : case "log" : case "ln" :  case "sin" :  case "cos": case "tan" : case "sinh" : case "cosh" : case "tanh" : case "asin" : case "acos" : case "atan" : case "abs" : case "ceil" : case "floor": case "!":case "sum":case "mult":case "lag":case "rollmean":case "rollmax":case "ema":
 				level=6;break;
 			case "(": case ")":case ",":
 				level=7;break;
@@ -640,9 +2676,14 @@ public class RuntimeFormula
 	public static class FormulaTokens extends ArrayList<Token> implements List<Token>
 	{
 		private static final long serialVersionUID = 56L;
+		
+		// The functions known when the formula was tokenized
+		transient FunctionRegistry functions;
+		
 		public FormulaTokens()
 		{
 			super();
+			functions=FunctionRegistry.getDefault();
 		}
 		
 		@Override
@@ -668,108 +2709,143 @@ public class RuntimeFormula
 		@Override
 		public String toString()
 		{
-			String tokensString="";
+			StringBuilder tokensString=new StringBuilder();
 			for(Token e:this)
-				tokensString+=e.toString()+"\n";
-			return tokensString;
+				tokensString.append(e.element).append(',').append(e.level).append('\n');
+			return tokensString.toString();
 		}
 
 		
 		static public FormulaTokens Tokenize(String formula) throws UnexpectedCharacterException, UnexpectedEOLException
+		{
+			return Tokenize(formula, FunctionRegistry.getDefault());
+		}
+		
+		/**
+		 * @param functions the functions whose names are recognized, in 
+		 * addition to the built-in ones
+		 */
+		static public FormulaTokens Tokenize(String formula, FunctionRegistry functions) throws UnexpectedCharacterException, UnexpectedEOLException
 		{
 			FormulaTokens formulaTokens= new FormulaTokens();
+			formulaTokens.functions=functions;
 			
 			if(formula.length()==0)
 			{
 				throw new UnexpectedEOLException("Formula is empty");
 			}
-			for(int i=0;i<formula.length();i++)
+			for(int i=0;i<formula.length();)
+				i=scan(formula, i, functions, formulaTokens);
+			
+			return formulaTokens;
+		}
+		
+		/**
+		 * Reads the token starting at index i of formula, or the space at i, 
+		 * and adds the token to tokens
+		 * 
+		 * @return the index following the token or the space
+		 */
+		static int scan(String formula, int i, FunctionRegistry functions, List<Token> formulaTokens) throws UnexpectedCharacterException
+		{
+			Character current=formula.charAt(i);
+			if(Character.isDigit(current)|| current=='.')
 			{
-				Character current=formula.charAt(i);
-				if(Character.isDigit(current)|| current=='.')
-				{
-					int j;
-					for(j=1;i+j<formula.length() && (Character.isDigit(formula.charAt(i+j))|| formula.charAt(i+j)=='.');j++)
-					{
-					}
-					formulaTokens.add(new Token(formula.substring(i, i+j), 0));
-					i+=j-1;
-				}
-				else if(Character.isAlphabetic(current))
-				{
-					int j;
-					for(j=1;i+j<formula.length() && Character.isAlphabetic(formula.charAt(i+j));j++)
-					{
-					}
-					String temp=formula.substring(i, i+j);
-					String tempFunc=temp.toLowerCase();
-					if(tempFunc.equals("sqrt") ||tempFunc.equals("log") ||tempFunc.equals("ln") || tempFunc.equals("sin") || tempFunc.equals("cos")||tempFunc.equals("tan") ||tempFunc.equals("sinh") ||tempFunc.equals("cosh") ||tempFunc.equals("tanh") ||tempFunc.equals("asin") ||tempFunc.equals("acos") ||tempFunc.equals("atan") ||tempFunc.equals("abs") ||tempFunc.equals("ceil") ||tempFunc.equals("floor")|| tempFunc.equals("sum")||tempFunc.equals("mult"))
-					{
-						formulaTokens.add(new Token(tempFunc,6));
-						i+=j-1;
-					}
-					else
-					{
-						int k=i+j;
-						for(j=0;k+j<formula.length() && (Character.isAlphabetic(formula.charAt(k+j))||Character.isDigit(formula.charAt(k+j)));j++)
-						{
-						}
-						temp=temp.concat(formula.substring(k,k+j));
-						formulaTokens.add(new Token(temp, 0));
-						i=k+j-1;
-					}
-				}
-				else if(current=='=' || current=='!' || current=='>' || current=='<')
+				int j;
+				for(j=1;i+j<formula.length() && (Character.isDigit(formula.charAt(i+j))|| formula.charAt(i+j)=='.');j++)
 				{
-					if(current=='!' && formula.charAt(i+1)=='=')
-					{
-						formulaTokens.add(new Token("!=",1));
-						i++;
-					}
-					else if(current=='!'){
-						formulaTokens.add(new Token(current.toString(),6));
-					}
-					else
-					{
-						formulaTokens.add(new Token(current.toString(),1));
-					}
 				}
-				else if(current=='+' || current=='-')
+				formulaTokens.add(new Token(formula.substring(i, i+j), 0));
+				i+=j-1;
+			}
+			else if(Character.isAlphabetic(current))
+			{
+				int j;
+				for(j=1;i+j<formula.length() && Character.isAlphabetic(formula.charAt(i+j));j++)
 				{
-					formulaTokens.add(new Token(current.toString(),2));
 				}
-				else if(current=='*' || current=='/' || current=='%')
+				String temp=formula.substring(i, i+j);
+				String tempFunc=temp.toLowerCase();
+				// A registered function is only called with parentheses, so 
+				// that it doesn't hide a variable of the same name
+				if(functions.isFunction(tempFunc) && (FunctionRegistry.isBuiltIn(tempFunc) || opensParenthesis(formula, i+j)))
 				{
-					formulaTokens.add(new Token(current.toString(),3));
+					formulaTokens.add(new Token(tempFunc,6));
+					i+=j-1;
 				}
-				else if(current=='^')
+				else
 				{
-					formulaTokens.add(new Token(current.toString(),4));
+					int k=i+j;
+					for(j=0;k+j<formula.length() && (Character.isAlphabetic(formula.charAt(k+j))||Character.isDigit(formula.charAt(k+j)));j++)
+					{
+					}
+					temp=temp.concat(formula.substring(k,k+j));
+					formulaTokens.add(new Token(temp, 0));
+					i=k+j-1;
 				}
-				else if(current=='(' || current==')')
+			}
+			else if(current=='=' || current=='!' || current=='>' || current=='<')
+			{
+				if(current=='!' && formula.charAt(i+1)=='=')
 				{
-					formulaTokens.add(new Token(current.toString(),7));
+					formulaTokens.add(new Token("!=",1));
+					i++;
 				}
-                else if(current==',')
-                    formulaTokens.add(new Token(current.toString(),7));
-				else if(current==' ')
-				{
+				else if(current=='!'){
+					formulaTokens.add(new Token(current.toString(),6));
 				}
 				else
 				{
-					throw new UnexpectedCharacterException("Unexpected Character : "+current.toString());
+					formulaTokens.add(new Token(current.toString(),1));
 				}
 			}
-			
-			return formulaTokens;
+			else if(current=='+' || current=='-')
+			{
+				formulaTokens.add(new Token(current.toString(),2));
+			}
+			else if(current=='*' || current=='/' || current=='%')
+			{
+				formulaTokens.add(new Token(current.toString(),3));
+			}
+			else if(current=='^')
+			{
+				formulaTokens.add(new Token(current.toString(),4));
+			}
+			else if(current=='(' || current==')')
+			{
+				formulaTokens.add(new Token(current.toString(),7));
+			}
+            else if(current==',')
+                formulaTokens.add(new Token(current.toString(),7));
+			else if(current==' ')
+			{
+			}
+			else
+			{
+				throw new UnexpectedCharacterException("Unexpected Character : "+current.toString());
+			}
+			return i+1;
+		}
+		
+		/**
+		 * @return true if the first character of formula from index i which
+		 * isn't a space is '('
+		 */
+		static private boolean opensParenthesis(String formula, int i)
+		{
+			while(i<formula.length() && formula.charAt(i)==' ')
+				i++;
+			return i<formula.length() && formula.charAt(i)=='(';
 		}
 		
 		//S-> P (B P)*
-			//P-> V | "(" S ")" | U P | F "(" S ")" | T "(" E*N*E* "," S "," S ")"
+			//P-> V | "(" S ")" | U P | F "(" S ")" | T "(" E*N*E* "," S "," S ")" | G "(" S ("," S)* ")"
 			//B->"=" | "!=" | ">" | "<" | "+" | "-" | "*" | "/" | "^"
 			//U-> "-" 
 			//F->"log" | "ln" | "sin" | "cos" | "tan" | "sinh" | "cosh" | "tanh" | "asin" | "acos" | "atan" | "sqrt"| "ceil" | "floor"| "abs"
 			//T->"sum" | "mult"
+			//L->"lag" | "rollmean" | "rollmax" | "ema", with two arguments like G, the second a number
+			//G->functions registered in the FunctionRegistry, with one "," S per extra parameter
             //V->E*N*E* � F | N*.?N*
 			//E->[a-z|A-Z]
 			//N->[0-9]
@@ -785,86 +2861,154 @@ public class RuntimeFormula
 						
 			}
 			
-			private Token s(Iterator<Token> iterator) throws UnexpectedTokenException, UnevenParenthesesException
+			/*
+			 * The grammar checked by checkFormula:
+			 * S -> P (op P)*
+			 * P -> number | variable | ( S ) | - P | function ( S (, S)* ) | sum ( variable , S , S ) | series ( S , number )
+			 * It is checked with an explicit stack of what remains to do after 
+			 * each S, so that the nesting of the formula doesn't use the Java 
+			 * stack.
+			 */
+			
+			// What remains to do once an S is checked
+			static private final int END=0, OPERAND=1, LIMIT=2, BODY=3, PARENTHESIS=4, SERIES=5, ARGUMENTS=6;
+			// ARGUMENTS+n: the arguments of a function, n of them remaining
+			// SERIES: the number after the first argument of a series, whose 
+			// operator is below on the stack
+			
+			private Token nextToken(Iterator<Token> iterator) throws UnexpectedEOLException
 			{
-				p(iterator);
-				Token next=(iterator.hasNext()?iterator.next():new Token("End of Line",8));
-				while(iterator.hasNext() && (next.level!=0 && next.level!=5 && next.level!=6 && next.level!=7 && next.level!=8))
-				{
-					p(iterator);
-					next=(iterator.hasNext()?iterator.next():new Token("End of Line",8));
-				}
-				return next;
+				if(iterator.hasNext())
+					return iterator.next();
+				throw new UnexpectedEOLException();
 			}
 			
-			private void p(Iterator<Token> iterator) throws UnexpectedTokenException, UnevenParenthesesException
+			public FormulaTokens checkFormula() throws UnexpectedTokenException, UnevenParenthesesException, UnexpectedEOLException
 			{
+				Iterator<Token> iterator=this.iterator();
+				int[] stack=new int[16];
+				int size=0;
+				stack[size++]=END;
+				boolean checkS=true;
 				Token next;
-				if(iterator.hasNext())
-					next=iterator.next();
-				else 
-					throw new UnexpectedEOLException("Unexpected end of formula");
-				if(next.level==0)
-					return;
-                else if(next.element.equals("sum")||next.element.equals("mult"))
-                {
-                    if(iterator.hasNext())
-                        next=iterator.next();
-                    else
-                        throw new UnexpectedEOLException();
-                    expect(next, new Token("(",7));
-                    if(iterator.hasNext())
-                        next=iterator.next();
-                    else
-                        throw new UnexpectedEOLException();
-                    if(next.level!=0)
-                        throw new UnexpectedTokenException("Unexpected symbol: Expected a variable, got "+next.elementToString());
-                    if(iterator.hasNext())
-                        next=iterator.next();
-                    else
-                        throw new UnexpectedEOLException();
-                    expect(next,new Token(","));
-                    next=s(iterator);
-                    expect(next,new Token(","));
-                    next=s(iterator);
-                    expect(next,new Token(")"));
-                    return;
-
-                }
-				else if(next.element.equals("("))
-				{
-					next=s(iterator);
-					if(!(next.equals(new Token(")"))))
-						throw new UnevenParenthesesException("Open parenthese not closed");
-					return;
-				}
-				else if(next.element.equals("-"))
-				{
-					next.element="--";
-					next.level=5;
-					p(iterator);
-				}
-				else if(next.level==6)
+				while(true)
 				{
+					if(checkS)
+					{
+						// Start of an S: check a P, then the operators and their P
+						if(size==stack.length)
+							stack=java.util.Arrays.copyOf(stack, 2*size);
+						stack[size++]=OPERAND;
+						checkS=false;
+					}
+					
+					// Start of a P
 					if(iterator.hasNext())
 						next=iterator.next();
 					else 
-						throw new UnexpectedEOLException();
-					expect(next,new Token("(",7));
-					next=s(iterator);
-					expect(next, new Token(")",7));
+						throw new UnexpectedEOLException("Unexpected end of formula");
+					int then;
+					if(next.level==0)
+						then=-1;
+					else if(next.element.equals("sum")||next.element.equals("mult"))
+					{
+						expect(nextToken(iterator), new Token("(",7));
+						next=nextToken(iterator);
+						if(next.level!=0)
+							throw new UnexpectedTokenException("Unexpected symbol: Expected a variable, got "+next.elementToString());
+						expect(nextToken(iterator), new Token(","));
+						then=LIMIT;
+					}
+					else if(next.element.equals("("))
+						then=PARENTHESIS;
+					else if(next.element.equals("-"))
+					{
+						next.element="--";
+						next.level=5;
+						continue;
+					}
+					else if(next.level==6 && FunctionRegistry.seriesOperator(next.element)!=null)
+					{
+						expect(nextToken(iterator), new Token("(",7));
+						if(size+1>=stack.length)
+							stack=java.util.Arrays.copyOf(stack, 2*stack.length);
+						stack[size++]=FunctionRegistry.seriesOperator(next.element);
+						then=SERIES;
+					}
+					else if(next.level==6)
+					{
+						int arity=functions.arity(next.element);
+						expect(nextToken(iterator), new Token("(",7));
+						then=ARGUMENTS+arity-1;
+					}
+					else throw new UnexpectedTokenException("Unexpected symbol : "+next.elementToString());
+					if(then>=0)
+					{
+						if(size==stack.length)
+							stack=java.util.Arrays.copyOf(stack, 2*size);
+						stack[size++]=then;
+						checkS=true;
+						continue;
+					}
+					
+					// End of a P: it is followed by an operator and another P, or 
+					// ends its S, which may end the P around it
+					while(true)
+					{
+						next=(iterator.hasNext()?iterator.next():new Token("End of Line",8));
+						if(iterator.hasNext() && (next.level!=0 && next.level!=5 && next.level!=6 && next.level!=7 && next.level!=8))
+							break;
+						size--;
+						int todo=stack[--size];
+						if(todo==END)
+						{
+							if(!next.equals(new Token("End of Line",8)))
+								throw new UnexpectedTokenException("Unexpected symbol : "+next.toString());
+							return this;
+						}
+						else if(todo==LIMIT)
+						{
+							expect(next,new Token(","));
+							stack[size++]=BODY;
+							checkS=true;
+							break;
+						}
+						else if(todo==BODY)
+							expect(next,new Token(")"));
+						else if(todo==SERIES)
+						{
+							char operator=(char)stack[--size];
+							expect(next, new Token(",",7));
+							Token parameter=nextToken(iterator);
+							double value;
+							try
+							{
+								if(parameter.level!=0 || !(Character.isDigit(parameter.element.charAt(0)) || parameter.element.charAt(0)=='.'))
+									throw new NumberFormatException();
+								value=Double.parseDouble(parameter.element);
+							} catch(NumberFormatException e)
+							{
+								throw new UnexpectedTokenException("The second argument of "+seriesName(operator)+" must be a number, got "+parameter.elementToString());
+							}
+							checkSeriesParameter(operator, value);
+							expect(nextToken(iterator), new Token(")",7));
+						}
+						else if(todo==PARENTHESIS)
+						{
+							if(!(next.equals(new Token(")"))))
+								throw new UnevenParenthesesException("Open parenthese not closed");
+						}
+						else if(todo>ARGUMENTS)
+						{
+							expect(next, new Token(",",7));
+							stack[size++]=todo-1;
+							checkS=true;
+							break;
+						}
+						else
+							expect(next, new Token(")",7));
+					}
 				}
-				else throw new UnexpectedTokenException("Unexpected symbol : "+next.elementToString());
-			}
-			
-			
-			public FormulaTokens checkFormula() throws UnexpectedTokenException, UnevenParenthesesException, UnexpectedEOLException
-			{
-				Iterator<Token> iter= this.iterator();
-				Token next=s(iter);
-				if(!next.equals(new Token("End of Line",8)))
-					throw new UnexpectedTokenException("Unexpected symbol : "+next.toString());
-				return this;
 			}
 			
 			public FormulaTokens checkVariables(String[] expectedVariables) throws UnexpectedVariableException
@@ -889,6 +3033,7 @@ public class RuntimeFormula
 			public FormulaTokens makePostFix()
 			{
 				FormulaTokens result=new FormulaTokens();
+				result.functions=functions;
 				Stack<Token> operatorStack = new Stack<Token>();
 				
 				
@@ -898,6 +3043,14 @@ public class RuntimeFormula
 					{
 						result.add(e);
 					}
+					else if(e.element.equals(","))
+					{
+						// Closes the previous argument, but not the function call
+						while(!operatorStack.empty()&&!operatorStack.peek().element.equals("("))
+						{
+							result.add(operatorStack.pop());
+						}
+					}
 					else if(operatorStack.empty())
 					{
 						operatorStack.add(e);
@@ -910,7 +3063,9 @@ public class RuntimeFormula
 						}
 						operatorStack.pop();
 					}
-					else if(operatorStack.peek().level<e.level)
+					// A negative operator has no left operand, so it doesn't apply 
+					// the operators before it, even other negative operators
+					else if(operatorStack.peek().level<e.level || e.level==5)
 					{
 						operatorStack.add(e);
 					}
@@ -934,20 +3089,354 @@ public class RuntimeFormula
 			}
 	}
 	
+	/**
+	 * 
+	 * The compiled form of a FormulaTree, used by calcValue instead of the 
+	 * tree once it is ready. It is only valid for the tree and the mode it was
+	 * compiled from.
+	 */
+	static private class CompiledTier
+	{
+		final FormulaTree tree;
+		final boolean catchesArithmeticExceptions;
+		final CompactFormula formula;
+		final String[] variables;
+		// Slot of each variable in the bound slots, or -1 if it is in the Map
+		final int[] boundIndex;
+		final double[] frame;
+		
+		CompiledTier(FormulaTree tree, boolean catchesArithmeticExceptions, CompactFormula formula, String[] boundVariables)
+		{
+			this.tree=tree;
+			this.catchesArithmeticExceptions=catchesArithmeticExceptions;
+			this.formula=formula;
+			variables=formula.getVariables();
+			boundIndex=new int[variables.length];
+			for(int i=0;i<variables.length;i++)
+			{
+				boundIndex[i]=-1;
+				for(int j=0;boundVariables!=null&&j<boundVariables.length;j++)
+					if(boundVariables[j].equals(variables[i]))
+						boundIndex[i]=j;
+			}
+			frame=formula.newFrame();
+		}
+	}
+	
+	/**
+	 * 
+	 * The cache of the results of a FormulaTree in a mode, with the variables
+	 * of its keys; the cache is null if the tree isn't deterministic.
+	 */
+	static private class MemoTier
+	{
+		final FormulaTree tree;
+		final boolean catchesArithmeticExceptions;
+		final String[] variables;
+		// Slot of each variable in the bound slots, or -1 if it is in the Map
+		final int[] boundIndex;
+		final long[] key;
+		final ResultCache cache;
+		
+		MemoTier(FormulaTree tree, boolean catchesArithmeticExceptions, int capacity, String[] boundVariables)
+		{
+			this.tree=tree;
+			this.catchesArithmeticExceptions=catchesArithmeticExceptions;
+			if(!deterministic(tree.root))
+			{
+				variables=null;
+				boundIndex=null;
+				key=null;
+				cache=null;
+				return;
+			}
+			// The variables of the CompactFormula exclude the counting variables
+			CompiledTier tier=new CompiledTier(tree, catchesArithmeticExceptions, compile(tree, catchesArithmeticExceptions, true), boundVariables);
+			variables=tier.variables;
+			boundIndex=tier.boundIndex;
+			key=new long[variables.length];
+			cache=new ResultCache(capacity, variables.length);
+		}
+	}
+	
+	/**
+	 * @return false if the subtree of root reads 'r', calls a Java function
+	 * which isn't pure, or keeps a series
+	 */
+	static private boolean deterministic(FormulaElement root)
+	{
+		return pure(root, false);
+	}
+	
+	/**
+	 * @param series true if the series are allowed
+	 * @return false if the subtree of root reads 'r', calls a Java function
+	 * which isn't pure, or keeps a series when series is false
+	 */
+	static private boolean pure(FormulaElement root, boolean series)
+	{
+		ArrayList<FormulaElement> stack=new ArrayList<FormulaElement>();
+		stack.add(root);
+		while(!stack.isEmpty())
+		{
+			FormulaElement element=stack.remove(stack.size()-1);
+			if(element instanceof SimpleElement && ((SimpleElement)element).variable.equals("r"))
+				return false;
+			if(element instanceof FunctionElement && !((FunctionElement)element).function.isPure())
+				return false;
+			if(element instanceof SeriesElement && !series)
+				return false;
+			for(FormulaElement operand:element.operands())
+				stack.add(operand);
+		}
+		return true;
+	}
+	
+	/**
+	 * @return true if element is in the subtree of root
+	 */
+	static private boolean contains(FormulaElement root, FormulaElement element)
+	{
+		ArrayList<FormulaElement> stack=new ArrayList<FormulaElement>();
+		stack.add(root);
+		while(!stack.isEmpty())
+		{
+			FormulaElement next=stack.remove(stack.size()-1);
+			if(next==element)
+				return true;
+			for(FormulaElement operand:next.operands())
+				stack.add(operand);
+		}
+		return false;
+	}
+	
 	/*
 	 * BEGINNING OF PUBLIC FUNCTIONS
 	 * */
 	public RuntimeFormula()
 	{
 		variables=new HashMap<String, Double>();
+		functions=FunctionRegistry.getDefault();
 		catchesArithmeticExceptions=true;
+		compilationThreshold=DEFAULT_COMPILATION_THRESHOLD;
 	}
 	
 	public RuntimeFormula(FormulaElement root, Map<String, Double> variables)
 	{
 		this.variables=variables;
 		formula=new FormulaTree(root);
+		functions=FunctionRegistry.getDefault();
 		catchesArithmeticExceptions=true;
+		compilationThreshold=DEFAULT_COMPILATION_THRESHOLD;
+	}
+	
+	/**
+	 * @return a RuntimeFormula with a copy of the formula and of the variables,
+	 * which can be used independently of this one, for instance by another 
+	 * thread
+	 */
+	public RuntimeFormula copy()
+	{
+		RuntimeFormula copy=emptyCopy();
+		if(formula!=null)
+			copy.formula=copy.new FormulaTree(formula.root.copy(copy, new HashMap<String, FormulaElement>()));
+		return copy;
+	}
+	
+	/**
+	 * @param slotVariables the variables whose values will be given through
+	 * the slots of the BoundFormula
+	 * @return a copy of the formula reading the slot variables from an array,
+	 * and the other variables from a copy of the current Map
+	 */
+	public BoundFormula bind(String... slotVariables)
+	{
+		if(formula==null)
+			throw new IllegalStateException("No formula to bind");
+		RuntimeFormula copy=emptyCopy();
+		double[] slots=new double[slotVariables.length];
+		Map<String, FormulaElement> substitutions=new HashMap<String, FormulaElement>();
+		for(int i=0;i<slotVariables.length;i++)
+		{
+			if(substitutions.put(slotVariables[i], copy.new SlotElement(slotVariables[i], slots, i))!=null)
+				throw new IllegalArgumentException("Variable bound twice : "+slotVariables[i]);
+			copy.variables.remove(slotVariables[i]);
+		}
+		copy.formula=copy.new FormulaTree(formula.root.copy(copy, substitutions));
+		copy.boundVariables=slotVariables.clone();
+		copy.boundSlots=slots;
+		return new BoundFormula(copy, copy.boundVariables, slots);
+	}
+	
+	/**
+	 * @param variable the variable of derivation
+	 * @return a RuntimeFormula computing the derivative of the formula with 
+	 * respect to variable, with a copy of the variables
+	 * @throws UnsupportedOperationException if the formula calls a Java 
+	 * function of variable
+	 */
+	public RuntimeFormula derivative(String variable)
+	{
+		if(formula==null)
+			throw new IllegalStateException("No formula to derive");
+		RuntimeFormula derivative=emptyCopy();
+		derivative.formula=derivative.new FormulaTree(derivativeTree(formula.root, derivative, variable));
+		return derivative;
+	}
+	
+	/**
+	 * @return a RuntimeFormula computing the same values with a canonical 
+	 * tree: the named constants pi and e and the operations on constants are
+	 * replaced by their value, and the operands of '+', '*', '=' and '!=' 
+	 * are sorted by their structure. Formulas that only differ by spaces, parentheses, the 
+	 * order of these operands or the writing of the constants have the same
+	 * canonical formulaToString().
+	 */
+	public RuntimeFormula canonical()
+	{
+		if(formula==null)
+			throw new IllegalStateException("No formula to canonicalize");
+		RuntimeFormula canonical=emptyCopy();
+		canonical.formula=canonical.new FormulaTree(canonicalTree(formula.root, canonical));
+		return canonical;
+	}
+	
+	/**
+	 * @param constants the variables which keep the same value for the 
+	 * formula returned, with their value
+	 * @return a RuntimeFormula where these variables are replaced by their
+	 * value, the operations whose operands are all constants are replaced by
+	 * their value, and the elements which would check 
+	 * catchesArithmeticExceptions are replaced by unchecked ones unless it is
+	 * true and the check can be needed. The mode of the RuntimeFormula 
+	 * returned can't be changed.
+	 */
+	public RuntimeFormula specialize(Map<String, Double> constants)
+	{
+		if(formula==null)
+			throw new IllegalStateException("No formula to specialize");
+		RuntimeFormula residual=emptyCopy();
+		Map<String, FormulaElement> substitutions=new HashMap<String, FormulaElement>();
+		for(Map.Entry<String, Double> constant:constants.entrySet())
+		{
+			substitutions.put(constant.getKey(), residual.new SimpleElement(constant.getValue()));
+			residual.variables.remove(constant.getKey());
+		}
+		final boolean catches=catchesArithmeticExceptions;
+		residual.formula=residual.new FormulaTree(copyTree(formula.root, residual, substitutions, null, 
+				element -> (element.foldable()?residual.fold(element, element.operands()):element).unchecked(catches)));
+		residual.modeFixed=true;
+		return residual;
+	}
+	
+	/**
+	 * @return a RuntimeFormula where the subtrees computing a polynomial of 
+	 * degree 2 or more in one of their variables, like 3*x^4+2*x^3-x^2+7*x+1,
+	 * are evaluated in Horner form with fused multiply-adds instead of 
+	 * powers. Only the sums of monomials written in the formula are 
+	 * rewritten: the products and powers of sums, like (x-1)^10, are kept as
+	 * factors rather than expanded into terms which would cancel out. The 
+	 * values can differ from those of the formula by a few ulps per term; 
+	 * infinite or NaN variables can also give NaN where the formula gave an 
+	 * infinity, or the reverse. Polynomials of a degree above 16 or with 
+	 * more than 64 terms are left as they are.
+	 */
+	public RuntimeFormula horner()
+	{
+		if(formula==null)
+			throw new IllegalStateException("No formula to rewrite");
+		final RuntimeFormula horner=emptyCopy();
+		final Map<FormulaElement, Polynomial> polynomials=polynomials(formula.root);
+		final Map<String, FormulaElement> variables=new HashMap<String, FormulaElement>();
+		for(FormulaElement element:polynomials.keySet())
+			if(element instanceof SimpleElement && !((SimpleElement)element).variable.isEmpty())
+				variables.put(((SimpleElement)element).variable, element);
+			else if(element instanceof SlotElement)
+				variables.put(((SlotElement)element).variable, element);
+			else if(isFactor(polynomials.get(element)))
+				variables.put(polynomials.get(element).mainVariable(), element);
+		horner.formula=horner.new FormulaTree(copyTree(formula.root, horner, NO_SUBSTITUTIONS, element -> {
+			Polynomial polynomial=polynomials.get(element);
+			if(polynomial==null || polynomial.isConstant() || polynomial.degree(polynomial.mainVariable())<2)
+				return null;
+			return horner.hornerForm(polynomial, variables);
+		}, null));
+		return horner;
+	}
+	
+	/**
+	 * @return the formula stored as arrays of primitives, which uses less 
+	 * memory than the tree and can be shared between threads. The variables 
+	 * of the CompactFormula are given to each call of calcValue, and the 
+	 * current value of catchesArithmeticExceptions is kept.
+	 * 
+	 * @throws UnexpectedTokenException if the formula keeps a series (lag, 
+	 * rollmean, rollmax or ema), whose state can't be shared
+	 */
+	public CompactFormula compile()
+	{
+		if(formula==null)
+			throw new IllegalStateException("No formula to compile");
+		return compile(formula, catchesArithmeticExceptions, false);
+	}
+	
+	/**
+	 * @param series true if the CompactFormula is only evaluated by this 
+	 * RuntimeFormula, and steps the series of tree
+	 */
+	static private CompactFormula compile(FormulaTree tree, boolean catchesArithmeticExceptions, boolean series)
+	{
+		// Sets the iterationCost of the loops
+		tree.cost();
+		CompactFormula.Builder builder=new CompactFormula.Builder(series);
+		compileTree(tree.root, builder);
+		return builder.build(catchesArithmeticExceptions);
+	}
+	
+	/**
+	 * @return the factors of the formula compiled separately: the operands of
+	 * the '*' at the root and of the '*' on the left of these, so that 
+	 * multiplying their values from left to right gives the value of the 
+	 * formula, or the formula itself if it isn't a product
+	 * @throws UnexpectedTokenException like compile()
+	 */
+	CompactFormula[] compileFactors()
+	{
+		if(formula==null)
+			throw new IllegalStateException("No formula to compile");
+		ArrayList<FormulaElement> factors=new ArrayList<FormulaElement>();
+		FormulaElement product=formula.root;
+		while(product instanceof BinaryElement && ((BinaryElement)product).operator=='*')
+		{
+			factors.add(0, ((BinaryElement)product).operand2);
+			product=((BinaryElement)product).operand1;
+		}
+		factors.add(0, product);
+		CompactFormula[] compiled=new CompactFormula[factors.size()];
+		for(int i=0;i<compiled.length;i++)
+		{
+			CompactFormula.Builder builder=new CompactFormula.Builder();
+			compileTree(factors.get(i), builder);
+			compiled[i]=builder.build(catchesArithmeticExceptions);
+		}
+		return compiled;
+	}
+	
+	/**
+	 * @return a RuntimeFormula without formula, with a copy of the variables 
+	 * and the same settings
+	 */
+	private RuntimeFormula emptyCopy()
+	{
+		RuntimeFormula copy=new RuntimeFormula();
+		copy.variables.putAll(variables);
+		copy.functions=functions;
+		copy.catchesArithmeticExceptions=catchesArithmeticExceptions;
+		copy.compilationThreshold=compilationThreshold;
+		copy.cacheCapacity=cacheCapacity;
+		copy.maxOperations=maxOperations;
+		copy.maxNanos=maxNanos;
+		return copy;
 	}
 	
 	public Map<String, Double> getAllVars()
@@ -967,17 +3456,211 @@ public class RuntimeFormula
 	
 	public void setFormula(String formula, String[] expectedVariables) throws UnexpectedCharacterException, UnexpectedTokenException, UnevenParenthesesException, UnexpectedVariableException, UnexpectedEOLException
 	{
-		this.formula= new FormulaTree(FormulaTokens.Tokenize(formula).checkFormula().checkVariables(expectedVariables).makePostFix());
+		FormulaListener listener=RuntimeFormula.listener;
+		long start=listener==FormulaListener.NONE?0:System.nanoTime();
+		FormulaTree tree;
+		try
+		{
+			tree=new FormulaTree(FormulaTokens.Tokenize(formula, functions).checkFormula().checkVariables(expectedVariables).makePostFix());
+		} catch(UnexpectedCharacterException | UnexpectedTokenException | UnevenParenthesesException | UnexpectedVariableException | UnexpectedEOLException e)
+		{
+			listener.parseFailed(formula, e);
+			throw e;
+		}
+		// The tree is complete before it replaces the previous one
+		tree.name=formula;
+		this.formula=tree;
+		evaluations=0;
+		modeFixed=false;
+		if(listener!=FormulaListener.NONE)
+			listener.formulaParsed(formula, System.nanoTime()-start);
 	}
 	
 	public void checkFormula(String formula, String[] expectedVariables) throws UnexpectedCharacterException, UnexpectedTokenException, UnevenParenthesesException, UnexpectedVariableException, UnexpectedEOLException
 	{
-		FormulaTokens.Tokenize(formula).checkFormula().checkVariables(expectedVariables);
+		FormulaTokens.Tokenize(formula, functions).checkFormula().checkVariables(expectedVariables);
+	}
+	
+	/**
+	 * @param functions the functions that can be called by the formulas given
+	 * to setFormula and checkFormula from now on
+	 */
+	public void setFunctionRegistry(FunctionRegistry functions)
+	{
+		this.functions=functions;
+	}
+	
+	public FunctionRegistry getFunctionRegistry()
+	{
+		return functions;
 	}
 	
+	/**
+	 * The formula is evaluated through its tree until it has been evaluated
+	 * compilationThreshold times; it is then compiled to a CompactFormula on a
+	 * background thread, and evaluated through it once it is ready. Formulas
+	 * deeper than MAX_RECURSION_DEPTH are compiled on the first call, without
+	 * recursion, and always evaluated through their CompactFormula.
+	 */
 	public double calcValue() throws UnexpectedVariableException
 	{
-		return formula.calcValue();
+		FormulaListener listener=RuntimeFormula.listener;
+		if(listener==FormulaListener.NONE)
+			return evaluate();
+		long start=System.nanoTime();
+		double value;
+		try
+		{
+			value=evaluate();
+		} catch(RuntimeException e)
+		{
+			listener.evaluationFailed(formula==null?"null":formula.name(), e);
+			throw e;
+		}
+		listener.formulaEvaluated(formula.name(), System.nanoTime()-start);
+		return value;
+	}
+	
+	private double evaluate() throws UnexpectedVariableException
+	{
+		if(cacheCapacity==0)
+			return calculate();
+		MemoTier memo=this.memo;
+		if(memo==null||memo.tree!=formula||memo.catchesArithmeticExceptions!=catchesArithmeticExceptions)
+			this.memo=memo=new MemoTier(formula, catchesArithmeticExceptions, cacheCapacity, boundVariables);
+		if(memo.cache==null)
+			return calculate();
+		long[] key=memo.key;
+		for(int i=0;i<key.length;i++)
+		{
+			int slot=memo.boundIndex[i];
+			if(slot>=0)
+				key[i]=Double.doubleToRawLongBits(boundSlots[slot]);
+			else
+			{
+				Double value=variables.get(memo.variables[i]);
+				// The evaluation throws the exception, unless the variable isn't evaluated
+				if(value==null)
+					return calculate();
+				key[i]=Double.doubleToRawLongBits(value);
+			}
+		}
+		int entry=memo.cache.find(key);
+		if(entry>=0)
+			return memo.cache.value(entry);
+		double value=calculate();
+		memo.cache.put(key, value);
+		return value;
+	}
+	
+	private double calculate() throws UnexpectedVariableException
+	{
+		CompactFormula.Budget budget=null;
+		if(maxOperations!=Long.MAX_VALUE || maxNanos!=Long.MAX_VALUE)
+		{
+			FormulaCost cost=formula.cost();
+			if(cost.isBounded() && cost.getOperations()>maxOperations)
+				throw new BudgetExceededException("The estimated "+cost.getOperations()+" operations exceed the budget of "+maxOperations+" : "+formula.name());
+			if(cost.getLoops()>0 && (!cost.isBounded() || maxNanos!=Long.MAX_VALUE))
+			{
+				budget=new CompactFormula.Budget(maxOperations, maxNanos, formula.name());
+				budget.spend(cost.outside);
+				// Deep formulas spend it in the loops of their CompactFormula
+				if(!formula.deep)
+					return calculateWithinBudget(budget);
+			}
+		}
+		CompiledTier tier=compiled;
+		if(tier==null||tier.tree!=formula||tier.catchesArithmeticExceptions!=catchesArithmeticExceptions)
+		{
+			if(!formula.deep)
+			{
+				if(++evaluations==compilationThreshold)
+					scheduleCompilation();
+				return formula.calcValue();
+			}
+			tier=new CompiledTier(formula, catchesArithmeticExceptions, compile(formula, catchesArithmeticExceptions, true), boundVariables);
+			compiled=tier;
+		}
+		double[] frame=tier.frame;
+		for(int i=0;i<tier.variables.length;i++)
+		{
+			int slot=tier.boundIndex[i];
+			if(slot>=0)
+				frame[i]=boundSlots[slot];
+			else
+			{
+				Double value=variables.get(tier.variables[i]);
+				if(value==null)
+				{
+					if(formula.deep)
+						throw new UnexpectedVariableException("Variable : "+tier.variables[i]);
+					// The tree throws the exception, unless the variable isn't evaluated
+					return formula.calcValue();
+				}
+				frame[i]=value;
+			}
+		}
+		return tier.formula.calcValue(frame, budget);
+	}
+	
+	/**
+	 * Evaluates the tree, whose loops spend budget
+	 */
+	private double calculateWithinBudget(CompactFormula.Budget budget) throws UnexpectedVariableException
+	{
+		this.budget=budget;
+		try
+		{
+			return formula.calcValue();
+		} finally
+		{
+			this.budget=null;
+		}
+	}
+	
+	private void scheduleCompilation()
+	{
+		final FormulaTree tree=formula;
+		final boolean catches=catchesArithmeticExceptions;
+		final String[] bound=boundVariables;
+		// Estimates the cost, and sets the iterationCost of the loops, on this
+		// thread which evaluates the tree: the compiler only reads them then
+		tree.cost();
+		COMPILER.execute(() -> {
+			try
+			{
+				compiled=new CompiledTier(tree, catches, compile(tree, catches, true), bound);
+			} catch(UnsupportedOperationException e)
+			{
+				// The formula can't be compiled and stays evaluated by its tree
+			}
+		});
+	}
+	
+	/**
+	 * @param threshold the number of evaluations of a formula by its tree 
+	 * after which it is compiled, or Long.MAX_VALUE to never compile it
+	 */
+	public void setCompilationThreshold(long threshold)
+	{
+		if(threshold<1)
+			throw new IllegalArgumentException("The compilation threshold must be positive");
+		compilationThreshold=threshold;
+	}
+	
+	public long getCompilationThreshold()
+	{
+		return compilationThreshold;
+	}
+	
+	/**
+	 * @return true if calcValue uses the compiled form of the current formula
+	 */
+	public boolean isCompiled()
+	{
+		CompiledTier tier=compiled;
+		return tier!=null&&tier.tree==formula&&tier.catchesArithmeticExceptions==catchesArithmeticExceptions;
 	}
 	
 	public int calcValueInt() throws UnexpectedVariableException
@@ -987,28 +3670,264 @@ public class RuntimeFormula
 
 	public String toString()
 	{
-		String formulaString;
-		if(formula==null)
-			formulaString="null";
-		else
-			formulaString=formula.toString();
-		return formulaString+"\n"+variables.entrySet().toString();
+		StringBuilder formulaString=new StringBuilder();
+		try
+		{
+			appendFormula(formulaString, false);
+		} catch(IOException e)
+		{
+			// StringBuilder doesn't throw IOException
+		}
+		return formulaString.append('\n').append(variables.entrySet()).toString();
 	}
 	
 	public String formulaToString()
 	{
-		String formulaString;
+		return formulaToString(false);
+	}
+	
+	/**
+	 * @param minimalParentheses if true, only the parentheses needed to parse
+	 * the same tree again are written; otherwise every binary operation is 
+	 * surrounded by parentheses
+	 */
+	public String formulaToString(boolean minimalParentheses)
+	{
+		StringBuilder formulaString=new StringBuilder();
+		try
+		{
+			appendFormula(formulaString, minimalParentheses);
+		} catch(IOException e)
+		{
+			// StringBuilder doesn't throw IOException
+		}
+		return formulaString.toString();
+	}
+	
+	/**
+	 * Writes the formula to out in a single pass, like formulaToString. With
+	 * minimalParentheses, the constants are written without exponent, so that
+	 * setFormula builds the same tree again from the output. Constants which 
+	 * are not numbers or infinite can't be parsed again.
+	 */
+	public void appendFormula(Appendable out, boolean minimalParentheses) throws IOException
+	{
 		if(formula==null)
-			formulaString="null";
+			out.append("null");
 		else
-			formulaString=formula.toString();
-		return formulaString;
+			formula.appendTo(out, minimalParentheses);
+	}
+	
+	/**
+	 * @return the variables read by the formula from its Map, without the 
+	 * named constants, 'r' and the counting variables inside their loops
+	 */
+	Set<String> variables()
+	{
+		Set<String> names=new TreeSet<String>();
+		if(formula==null)
+			return names;
+		ArrayList<FormulaElement> stack=new ArrayList<FormulaElement>();
+		// The counting variables of the loops around each element of the stack
+		ArrayList<Set<String>> counters=new ArrayList<Set<String>>();
+		stack.add(formula.root);
+		counters.add(Collections.<String>emptySet());
+		while(!stack.isEmpty())
+		{
+			FormulaElement element=stack.remove(stack.size()-1);
+			Set<String> counting=counters.remove(counters.size()-1);
+			if(element instanceof SimpleElement)
+			{
+				String variable=((SimpleElement)element).variable;
+				if(!variable.isEmpty() && !variable.equals("r") && !variable.equalsIgnoreCase("pi") && !variable.equalsIgnoreCase("e") && !counting.contains(variable))
+					names.add(variable);
+			}
+			FormulaElement[] operands=element.operands();
+			for(int i=0;i<operands.length;i++)
+			{
+				stack.add(operands[i]);
+				if(element instanceof TernaryElement && i==1)
+				{
+					Set<String> inside=new HashSet<String>(counting);
+					inside.add(((TernaryElement)element).var.variable);
+					counters.add(inside);
+				}
+				else
+					counters.add(counting);
+			}
+		}
+		return names;
+	}
+	
+	/**
+	 * @return the elements of lag, rollmean, rollmax and ema in the formula,
+	 * in the order where they are written
+	 */
+	private ArrayList<SeriesElement> series()
+	{
+		ArrayList<SeriesElement> series=new ArrayList<SeriesElement>();
+		if(formula==null)
+			return series;
+		ArrayList<FormulaElement> stack=new ArrayList<FormulaElement>();
+		stack.add(formula.root);
+		while(!stack.isEmpty())
+		{
+			FormulaElement element=stack.remove(stack.size()-1);
+			if(element instanceof SeriesElement)
+				series.add((SeriesElement)element);
+			FormulaElement[] operands=element.operands();
+			for(int i=operands.length-1;i>=0;i--)
+				stack.add(operands[i]);
+		}
+		return series;
+	}
+	
+	/**
+	 * Starts the series again: lag, rollmean, rollmax and ema forget the rows
+	 * evaluated before
+	 */
+	public void resetSeries()
+	{
+		for(SeriesElement element:series())
+			element.reset();
+	}
+	
+	/**
+	 * @return the state of each lag, rollmean, rollmax and ema of the 
+	 * formula, to give to restoreSeries
+	 */
+	public double[][] saveSeries()
+	{
+		ArrayList<SeriesElement> series=series();
+		double[][] states=new double[series.size()][];
+		for(int i=0;i<states.length;i++)
+			states[i]=series.get(i).state();
+		return states;
+	}
+	
+	/**
+	 * Puts the series back where they were when saveSeries returned states,
+	 * for this formula or another RuntimeFormula with the same formula
+	 */
+	public void restoreSeries(double[][] states)
+	{
+		ArrayList<SeriesElement> series=series();
+		if(states.length!=series.size())
+			throw new IllegalArgumentException(states.length+" states for "+series.size()+" series");
+		for(int i=0;i<states.length;i++)
+			series.get(i).restore(states[i]);
+	}
+	
+	/**
+	 * Caches the results of calcValue by the values of the variables, for 
+	 * the formulas which don't read 'r' nor call an impure Java function; a 
+	 * new cache is started when the formula or the mode changes.
+	 * 
+	 * @param capacity the number of results kept, or 0 to evaluate the 
+	 * formula on every call
+	 */
+	public void setCacheCapacity(int capacity)
+	{
+		if(capacity<0)
+			throw new IllegalArgumentException("The cache capacity can't be negative");
+		cacheCapacity=capacity;
+		memo=null;
+	}
+	
+	public int getCacheCapacity()
+	{
+		return cacheCapacity;
+	}
+	
+	/**
+	 * @return the cache of the results of the current formula, or null if 
+	 * they aren't cached or calcValue wasn't called since the formula or the
+	 * mode changed
+	 */
+	public ResultCache getResultCache()
+	{
+		MemoTier memo=this.memo;
+		if(memo==null||memo.tree!=formula||memo.catchesArithmeticExceptions!=catchesArithmeticExceptions)
+			return null;
+		return memo.cache;
+	}
+	
+	/**
+	 * @return the estimated cost of an evaluation of the formula
+	 * @throws IllegalStateException if there is no formula
+	 */
+	public FormulaCost estimateCost()
+	{
+		if(formula==null)
+			throw new IllegalStateException("No formula");
+		return formula.cost();
+	}
+	
+	/**
+	 * Bounds the evaluations of calcValue. A formula whose estimated cost 
+	 * exceeds maxOperations throws a BudgetExceededException without being 
+	 * evaluated. A formula with a loop whose limit isn't constant, or with 
+	 * any loop when maxNanos is set, is evaluated through its tree, or its 
+	 * CompactFormula if it is deeper than MAX_RECURSION_DEPTH, and stopped 
+	 * by a BudgetExceededException once its loops spent its budget.
+	 * 
+	 * @param maxOperations the operations of an evaluation, as counted by 
+	 * estimateCost, or Long.MAX_VALUE for no bound
+	 * @param maxNanos the duration of an evaluation, or Long.MAX_VALUE for 
+	 * no bound
+	 */
+	public void setEvaluationBudget(long maxOperations, long maxNanos)
+	{
+		if(maxOperations<1 || maxNanos<1)
+			throw new IllegalArgumentException("The budget must be positive");
+		this.maxOperations=maxOperations;
+		this.maxNanos=maxNanos;
+	}
+	
+	public long getMaxOperations()
+	{
+		return maxOperations;
+	}
+	
+	public long getMaxNanos()
+	{
+		return maxNanos;
 	}
 	
 	public void setCatchesArithmeticExceptions(boolean noExceptionMode)
 	{
+		if(modeFixed && noExceptionMode!=catchesArithmeticExceptions)
+			throw new IllegalStateException("The mode of a specialized formula can't be changed");
 		catchesArithmeticExceptions=noExceptionMode;
-		System.out.println(noExceptionMode?"Operations causing numeric exceptions will return 0":"Operations causing numeric exceptions will throw them");
+		evaluations=0;
+		listener.modeChanged(noExceptionMode);
+	}
+	
+	/**
+	 * @param listener told about the parsing and the evaluation of every 
+	 * formula from now on, or FormulaListener.NONE
+	 */
+	static public void setListener(FormulaListener listener)
+	{
+		if(listener==null)
+			throw new NullPointerException("The listener can't be null; use FormulaListener.NONE");
+		RuntimeFormula.listener=listener;
+	}
+	
+	static public FormulaListener getListener()
+	{
+		return listener;
+	}
+	
+	/**
+	 * Called by the operations returning 0 instead of failing
+	 * 
+	 * @return 0
+	 */
+	static double caught()
+	{
+		listener.arithmeticExceptionCaught();
+		return 0;
 	}
 }
 
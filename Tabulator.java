@@ -0,0 +1,238 @@
+package darformula;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *
+ * Tabulator evaluates a formula on every point of a grid, one Axis per
+ * variable. The values are stored in row-major order: the last axis varies
+ * the fastest, so the value at indices (i0, i1, ..., in) is at
+ * ((i0*steps1+i1)*steps2+...)*stepsn+in.
+ *
+ * The grid is split between the threads of a ForkJoinPool, each thread
+ * evaluating its own BoundFormula.
+ *
+ */
+
+public class Tabulator
+{
+	// Number of points under which a task is not split anymore
+	static private final int THRESHOLD=4096;
+	// Number of doubles of each memory-mapped region of a file
+	static private final int MAPPED_DOUBLES=1<<26;
+
+	private final BoundFormula formula;
+	private final Axis[] axes;
+	private final long size;
+	private ForkJoinPool pool;
+
+	/**
+	 *
+	 * The values taken by a variable: steps values evenly spaced from "from"
+	 * to "to", both included.
+	 */
+
+	static public class Axis
+	{
+		private final String variable;
+		private final double from, to;
+		private final int steps;
+
+		public Axis(String variable, double from, double to, int steps)
+		{
+			if(steps<1)
+				throw new IllegalArgumentException("An axis needs at least one step : "+variable);
+			this.variable=variable;
+			this.from=from;
+			this.to=to;
+			this.steps=steps;
+		}
+
+		public String getVariable()
+		{
+			return variable;
+		}
+
+		public int getSteps()
+		{
+			return steps;
+		}
+
+		public double valueAt(int step)
+		{
+			if(steps==1)
+				return from;
+			return from+(to-from)*step/(steps-1);
+		}
+
+		public String toString()
+		{
+			return variable+"="+from+".."+to+"/"+steps;
+		}
+	}
+
+	private interface Output
+	{
+		void put(long index, double value);
+	}
+
+	/**
+	 * @param formula the formula to evaluate; the variables that are not on an
+	 * axis keep the value they have in formula when the Tabulator is created
+	 */
+
+	public Tabulator(RuntimeFormula formula, Axis... axes)
+	{
+		String[] variables=new String[axes.length];
+		long size=1;
+		for(int i=0;i<axes.length;i++)
+		{
+			variables[i]=axes[i].variable;
+			size=Math.multiplyExact(size, axes[i].steps);
+		}
+		this.formula=formula.bind(variables);
+		this.axes=axes.clone();
+		this.size=size;
+		this.pool=ForkJoinPool.commonPool();
+	}
+
+	public void setPool(ForkJoinPool pool)
+	{
+		this.pool=pool;
+	}
+
+	/**
+	 * @return the number of points of the grid
+	 */
+
+	public long size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the values of the formula on every point of the grid
+	 * @throws IllegalStateException if the grid has too many points for an array
+	 */
+
+	public double[] tabulate() throws UnexpectedVariableException
+	{
+		if(size>Integer.MAX_VALUE-8)
+			throw new IllegalStateException("Grid too large for an array ("+size+" points), tabulate to a file instead");
+		double[] result=new double[(int)size];
+		tabulate(result, 0);
+		return result;
+	}
+
+	/**
+	 * Stores the values of the formula in result, starting at offset
+	 */
+
+	public void tabulate(final double[] result, final int offset) throws UnexpectedVariableException
+	{
+		if(offset<0 || result.length-offset<size)
+			throw new IndexOutOfBoundsException("Not enough room for "+size+" values");
+		run(0, size, new Output(){
+			public void put(long index, double value)
+			{
+				result[offset+(int)index]=value;
+			}
+		});
+	}
+
+	/**
+	 * Stores the values of the formula in a file, as doubles in the native
+	 * byte order, through memory-mapped regions. Used for grids too large for
+	 * the heap.
+	 */
+
+	public void tabulate(Path file) throws IOException, UnexpectedVariableException
+	{
+		try(FileChannel channel=FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			for(long start=0;start<size;start+=MAPPED_DOUBLES)
+			{
+				long end=Math.min(size, start+MAPPED_DOUBLES);
+				final long first=start;
+				final DoubleBuffer region=channel.map(FileChannel.MapMode.READ_WRITE, start*Double.BYTES, (end-start)*Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+				run(start, end, new Output(){
+					public void put(long index, double value)
+					{
+						region.put((int)(index-first), value);
+					}
+				});
+			}
+		}
+	}
+
+	private void run(long start, long end, Output output)
+	{
+		final ThreadLocal<BoundFormula> formulas=new ThreadLocal<BoundFormula>(){
+			protected BoundFormula initialValue()
+			{
+				return formula.copy();
+			}
+		};
+		pool.invoke(new Task(start, end, output, formulas));
+	}
+
+	private class Task extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final long start, end;
+		private final Output output;
+		private final ThreadLocal<BoundFormula> formulas;
+
+		Task(long start, long end, Output output, ThreadLocal<BoundFormula> formulas)
+		{
+			this.start=start;
+			this.end=end;
+			this.output=output;
+			this.formulas=formulas;
+		}
+
+		protected void compute()
+		{
+			if(end-start>THRESHOLD)
+			{
+				long middle=(start+end)>>>1;
+				invokeAll(new Task(start, middle, output, formulas), new Task(middle, end, output, formulas));
+				return;
+			}
+
+			BoundFormula local=formulas.get();
+			double[] slots=local.slots();
+			int[] steps=new int[axes.length];
+			long rest=start;
+			for(int i=axes.length-1;i>=0;i--)
+			{
+				steps[i]=(int)(rest%axes[i].steps);
+				rest/=axes[i].steps;
+				slots[i]=axes[i].valueAt(steps[i]);
+			}
+			for(long index=start;index<end;index++)
+			{
+				output.put(index, local.calcValue());
+				// Next point: increment the last axis and carry over
+				for(int i=axes.length-1;i>=0;i--)
+				{
+					if(++steps[i]<axes[i].steps)
+					{
+						slots[i]=axes[i].valueAt(steps[i]);
+						break;
+					}
+					steps[i]=0;
+					slots[i]=axes[i].valueAt(0);
+				}
+			}
+		}
+	}
+}